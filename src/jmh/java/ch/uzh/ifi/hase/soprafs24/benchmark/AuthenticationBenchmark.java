@@ -0,0 +1,43 @@
+package ch.uzh.ifi.hase.soprafs24.benchmark;
+
+import ch.uzh.ifi.hase.soprafs24.config.CustomAuthenticationProvider;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks CustomAuthenticationProvider.authenticate, which runs on every
+ * form login and on every request with HTTP Basic. The time is mostly the
+ * BCrypt verification, compare runs with different bcryptStrength values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AuthenticationBenchmark {
+
+    private CustomAuthenticationProvider authenticationProvider;
+
+    private int tableSize;
+
+    @Setup(Level.Trial)
+    public void setup(UserTableState state) {
+        authenticationProvider = state.getBean(CustomAuthenticationProvider.class);
+        tableSize = state.tableSize;
+    }
+
+    @Benchmark
+    public Authentication authenticate() {
+        String username = "user" + ThreadLocalRandom.current().nextInt(tableSize);
+        return authenticationProvider.authenticate(new UsernamePasswordAuthenticationToken(username, BenchmarkApplication.PASSWORD));
+    }
+
+    @Benchmark
+    public Authentication authenticate_wrongPassword() {
+        String username = "user" + ThreadLocalRandom.current().nextInt(tableSize);
+        return authenticationProvider.authenticate(new UsernamePasswordAuthenticationToken(username, "wrong"));
+    }
+
+}
@@ -0,0 +1,67 @@
+package ch.uzh.ifi.hase.soprafs24.benchmark;
+
+import ch.uzh.ifi.hase.soprafs24.Application;
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.service.PasswordHasher;
+import ch.uzh.ifi.hase.soprafs24.service.UserTableVersion;
+import ch.uzh.ifi.hase.soprafs24.service.UsernameIndex;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Starts the application for the benchmarks: on a random port, with its own
+ * embedded H2 database and a USER table filled with a given number of users.
+ */
+final class BenchmarkApplication {
+
+    static final String PASSWORD = "benchmark";
+
+    private static final int SEED_BATCH_SIZE = 1000;
+
+    private BenchmarkApplication() {
+    }
+
+    static ConfigurableApplicationContext start(Map<String, Object> properties) {
+        Map<String, Object> defaults = new HashMap<>();
+        defaults.put("server.port", 0);
+        defaults.put("spring.datasource.url", "jdbc:h2:mem:benchmark-" + UUID.randomUUID());
+        defaults.put("spring.h2.console.enabled", false);
+        defaults.put("logging.level.root", "WARN");
+        defaults.putAll(properties);
+        return new SpringApplicationBuilder(Application.class).properties(defaults).run();
+    }
+
+    /**
+     * Inserts the users "user0" to "user{count-1}" with the ids 1 to count, all
+     * with the password {@link #PASSWORD}, and rebuilds the username index.
+     */
+    static void seedUsers(ConfigurableApplicationContext context, int count) {
+        JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+        // hashed once, hashing every row would dominate the setup
+        String passwordHash = context.getBean(PasswordHasher.class).hash(PASSWORD);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        Timestamp tokenExpiry = new Timestamp(System.currentTimeMillis() + 86_400_000L);
+
+        List<Object[]> batch = new ArrayList<>(SEED_BATCH_SIZE);
+        for (long id = 1; id <= count; id++) {
+            batch.add(new Object[]{id, "user" + (id - 1), passwordHash, now, UUID.randomUUID().toString(), tokenExpiry,
+                    UserStatus.OFFLINE.ordinal()});
+            if (batch.size() == SEED_BATCH_SIZE || id == count) {
+                jdbcTemplate.batchUpdate("insert into \"USER\" (id, username, password, creation_date, token, token_expiry, status, version)"
+                        + " values (?, ?, ?, ?, ?, ?, ?, 0)", batch);
+                batch.clear();
+            }
+        }
+        context.getBean(UserTableVersion.class).increment();
+        context.getBean(UsernameIndex.class).build();
+    }
+
+}
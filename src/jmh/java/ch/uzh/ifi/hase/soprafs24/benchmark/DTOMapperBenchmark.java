@@ -0,0 +1,53 @@
+package ch.uzh.ifi.hase.soprafs24.benchmark;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.mapper.DTOMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the MapStruct conversions between the User entity and its DTOs,
+ * they run once per user on every GET /users.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DTOMapperBenchmark {
+
+    private User user;
+
+    private UserPostDTO userPostDTO;
+
+    @Setup
+    public void setup() {
+        user = new User();
+        user.setId(1L);
+        user.setUsername("firstname@lastname");
+        user.setPassword("password");
+        user.setCreationDate(new Date());
+        user.setBirthday(new Date());
+        user.setToken("token");
+        user.setStatus(UserStatus.ONLINE);
+
+        userPostDTO = new UserPostDTO();
+        userPostDTO.setUsername("firstname@lastname");
+        userPostDTO.setPassword("password");
+        userPostDTO.setBirthday(new Date());
+    }
+
+    @Benchmark
+    public UserGetDTO convertEntityToUserGetDTO() {
+        return DTOMapper.INSTANCE.convertEntityToUserGetDTO(user);
+    }
+
+    @Benchmark
+    public User convertUserPostDTOtoEntity() {
+        return DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO);
+    }
+
+}
@@ -0,0 +1,115 @@
+package ch.uzh.ifi.hase.soprafs24.benchmark;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.json.JsonResponseWriter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the JsonResponseWriter with the reflective Jackson serialization
+ * and String.format for the bodies of GET /users/{id}, GET /users and
+ * /current_user. Run it with -PjmhProfilers=gc, gc.alloc.rate.norm is the
+ * number of bytes allocated per response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResponseWriterBenchmark {
+
+    private static final byte[] CURRENT_USER_ID = "{\"id\":".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] CURRENT_USER_NAME = ", \"name\":".getBytes(StandardCharsets.UTF_8);
+
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+    // stands in for the servlet output stream, it is reused so that only the response itself allocates
+    private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(64 * 1024);
+
+    private UserGetDTO userGetDTO;
+
+    private List<UserGetDTO> userGetDTOs;
+
+    @Setup
+    public void setup() {
+        userGetDTO = userGetDTO(1L);
+        userGetDTOs = new ArrayList<>();
+        for (long id = 1; id <= 100; id++) {
+            userGetDTOs.add(userGetDTO(id));
+        }
+    }
+
+    @Benchmark
+    public int userJackson() throws IOException {
+        outputStream.reset();
+        objectMapper.writeValue(outputStream, userGetDTO);
+        return outputStream.size();
+    }
+
+    @Benchmark
+    public int userWriter() throws IOException {
+        outputStream.reset();
+        JsonResponseWriter writer = new JsonResponseWriter(outputStream, 256);
+        writer.writeUser(userGetDTO);
+        writer.flushBuffer();
+        return outputStream.size();
+    }
+
+    @Benchmark
+    public int usersJackson() throws IOException {
+        outputStream.reset();
+        objectMapper.writeValue(outputStream, userGetDTOs);
+        return outputStream.size();
+    }
+
+    @Benchmark
+    public int usersWriter() throws IOException {
+        outputStream.reset();
+        JsonResponseWriter writer = new JsonResponseWriter(outputStream);
+        writer.writeUsers(userGetDTOs);
+        writer.flushBuffer();
+        return outputStream.size();
+    }
+
+    @Benchmark
+    public int currentUserFormat() throws IOException {
+        outputStream.reset();
+        // what the StringHttpMessageConverter did with the formatted string
+        outputStream.write(String.format("{\"id\":%s, \"name\":\"%s\"}", userGetDTO.getId(), userGetDTO.getUsername())
+                .getBytes(StandardCharsets.UTF_8));
+        return outputStream.size();
+    }
+
+    @Benchmark
+    public int currentUserWriter() throws IOException {
+        outputStream.reset();
+        JsonResponseWriter writer = new JsonResponseWriter(outputStream, 128);
+        writer.writeRaw(CURRENT_USER_ID);
+        writer.writeNumber(userGetDTO.getId());
+        writer.writeRaw(CURRENT_USER_NAME);
+        writer.writeString(userGetDTO.getUsername());
+        writer.writeByte('}');
+        writer.flushBuffer();
+        return outputStream.size();
+    }
+
+    private static UserGetDTO userGetDTO(Long id) {
+        UserGetDTO userGetDTO = new UserGetDTO();
+        userGetDTO.setId(id);
+        userGetDTO.setUsername("firstname@lastname" + id);
+        userGetDTO.setBirthday(new Date());
+        userGetDTO.setCreationDate(new Date());
+        userGetDTO.setStatus(UserStatus.ONLINE);
+        return userGetDTO;
+    }
+
+}
@@ -0,0 +1,70 @@
+package ch.uzh.ifi.hase.soprafs24.benchmark;
+
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.service.UserService;
+import ch.uzh.ifi.hase.soprafs24.service.UsernameIndex;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks the UserService against the embedded H2 database. createUser
+ * includes hashing the password, the uniqueness check alone is measured by
+ * creating a user with a taken username (rejected before hashing) and by the
+ * username index for a free one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UserServiceBenchmark {
+
+    private final AtomicLong createdUsers = new AtomicLong();
+
+    private UserService userService;
+
+    private UsernameIndex usernameIndex;
+
+    private int tableSize;
+
+    @Setup(Level.Trial)
+    public void setup(UserTableState state) {
+        userService = state.getBean(UserService.class);
+        usernameIndex = state.getBean(UsernameIndex.class);
+        tableSize = state.tableSize;
+    }
+
+    @Benchmark
+    public User createUser() {
+        User user = new User();
+        user.setUsername("created" + createdUsers.incrementAndGet());
+        user.setPassword(BenchmarkApplication.PASSWORD);
+        return userService.createUser(user);
+    }
+
+    @Benchmark
+    public Object createUser_usernameTaken() {
+        User user = new User();
+        user.setUsername("user" + ThreadLocalRandom.current().nextInt(tableSize));
+        user.setPassword(BenchmarkApplication.PASSWORD);
+        try {
+            return userService.createUser(user);
+        }
+        catch (ResponseStatusException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public boolean checkIfUserExists_usernameFree() {
+        return usernameIndex.mightExist("free" + ThreadLocalRandom.current().nextInt());
+    }
+
+    @Benchmark
+    public User getUser() {
+        return userService.getUser((long) ThreadLocalRandom.current().nextInt(1, tableSize + 1));
+    }
+
+}
@@ -0,0 +1,39 @@
+package ch.uzh.ifi.hase.soprafs24.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.Map;
+
+/**
+ * The running application with a USER table of the given size, shared by all
+ * threads of a benchmark. The BCrypt cost is a parameter as well, since it
+ * dominates every path that hashes or verifies a password.
+ */
+@State(Scope.Benchmark)
+public class UserTableState {
+
+    @Param({"1000", "100000"})
+    public int tableSize;
+
+    @Param({"10"})
+    public int bcryptStrength;
+
+    ConfigurableApplicationContext context;
+
+    @Setup(Level.Trial)
+    public void start() {
+        context = BenchmarkApplication.start(Map.of("security.password.bcrypt-strength", bcryptStrength));
+        BenchmarkApplication.seedUsers(context, tableSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        context.close();
+    }
+
+    <T> T getBean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+}
@@ -0,0 +1,515 @@
+package ch.uzh.ifi.hase.soprafs24.loadtest;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+
+/**
+ * Load Test
+ * Boots the application with a seeded database and drives a mix of the user
+ * endpoints at a fixed arrival rate (open loop): requests are sent on schedule
+ * whether or not the previous ones have completed, and the latency is measured
+ * from the time a request was due, so a slow server can't hide its queueing
+ * delay (coordinated omission).
+ * The latencies are recorded per endpoint in HdrHistograms, the run fails if
+ * a configured latency budget or the error rate is exceeded. Requests the
+ * server sheds (503 with Retry-After, see ConcurrencyLimitFilter) are counted
+ * separately and not in the latencies, their share can be budgeted with shedRate.
+ * Configured with system properties, see ./gradlew loadTest in build.gradle:
+ * loadTest.rate (requests per second), loadTest.durationSeconds,
+ * loadTest.warmupSeconds, loadTest.seedUsers, loadTest.sessions,
+ * loadTest.mix (e.g. getUser=40,currentUser=35,...), loadTest.budgets
+ * (e.g. getUser.p99=50,*.p99.9=500,*.errorRate=0.01, latencies in ms),
+ * loadTest.maxInFlight, loadTest.executionMode (platform or virtual, see
+ * ExecutionModeConfig), loadTest.concurrencyLimit (false turns the server's
+ * load shedding off) and loadTest.reportDir.
+ * While recording, the requests in flight, the heap and the live platform
+ * threads are sampled to compare the memory and threads per concurrent request
+ * of the execution modes. The client runs in the same JVM, so the figures are
+ * only comparable between runs with the same rate and mix.
+ */
+public final class LoadTest {
+
+    enum Endpoint {
+        CREATE_USER("createUser", "POST /users", 201),
+        GET_USERS("getUsers", "GET /users", 200),
+        GET_USER("getUser", "GET /users/{id}", 200),
+        UPDATE_USER("updateUser", "PUT /users/{id}", 204),
+        LOGIN("login", "POST /perform_login", 302),
+        CURRENT_USER("currentUser", "GET /current_user", 200);
+
+        private final String key;
+
+        private final String description;
+
+        private final int expectedStatus;
+
+        Endpoint(String key, String description, int expectedStatus) {
+            this.key = key;
+            this.description = description;
+            this.expectedStatus = expectedStatus;
+        }
+
+        static Endpoint forKey(String key) {
+            for (Endpoint endpoint : values()) {
+                if (endpoint.key.equals(key)) {
+                    return endpoint;
+                }
+            }
+            throw new IllegalArgumentException("Unknown endpoint " + key);
+        }
+    }
+
+    // latencies above one minute are recorded as one minute
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private static final long SAMPLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final HttpClient client;
+
+    private final URI baseUri;
+
+    private final int seedUsers;
+
+    private final List<Session> sessions = new ArrayList<>();
+
+    private final AtomicLong createdUsers = new AtomicLong();
+
+    private final Map<Endpoint, EndpointStats> stats = new EnumMap<>(Endpoint.class);
+
+    private final ResourceStats resources = new ResourceStats();
+
+    private final String executionMode;
+
+    private LoadTest(HttpClient client, URI baseUri, int seedUsers, String executionMode) {
+        this.client = client;
+        this.baseUri = baseUri;
+        this.seedUsers = seedUsers;
+        this.executionMode = executionMode;
+        for (Endpoint endpoint : Endpoint.values()) {
+            stats.put(endpoint, new EndpointStats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rate = Integer.getInteger("loadTest.rate", 100);
+        int durationSeconds = Integer.getInteger("loadTest.durationSeconds", 30);
+        int warmupSeconds = Integer.getInteger("loadTest.warmupSeconds", 10);
+        int seedUsers = Integer.getInteger("loadTest.seedUsers", 1000);
+        int sessionCount = Math.min(seedUsers, Integer.getInteger("loadTest.sessions", 50));
+        int maxInFlight = Integer.getInteger("loadTest.maxInFlight", 10000);
+        NavigableMap<Integer, Endpoint> mix = parseMix(System.getProperty("loadTest.mix",
+                "createUser=5,getUsers=10,getUser=40,updateUser=5,login=5,currentUser=35"));
+        List<Budget> budgets = parseBudgets(System.getProperty("loadTest.budgets", "*.errorRate=0.01"));
+        Path reportDir = Paths.get(System.getProperty("loadTest.reportDir", "build/reports/loadTest"));
+        String executionMode = System.getProperty("loadTest.executionMode", "platform");
+        boolean concurrencyLimit = Boolean.parseBoolean(System.getProperty("loadTest.concurrencyLimit", "true"));
+
+        LoadTestApplication application = LoadTestApplication.start(seedUsers, executionMode, concurrencyLimit);
+        ExecutorService executor = Executors.newFixedThreadPool(8, runnable -> {
+            Thread thread = new Thread(runnable, "load-test-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        boolean passed;
+        try {
+            HttpClient client = HttpClient.newBuilder()
+                    .executor(executor)
+                    .followRedirects(HttpClient.Redirect.NEVER)
+                    .connectTimeout(Duration.ofSeconds(10))
+                    .build();
+            LoadTest loadTest = new LoadTest(client, URI.create("http://localhost:" + application.getPort()), seedUsers,
+                    executionMode);
+            loadTest.login(sessionCount);
+            loadTest.run(mix, rate, warmupSeconds, durationSeconds, maxInFlight);
+            passed = loadTest.report(durationSeconds, budgets, reportDir, application.getStats("concurrencyLimit"));
+        }
+        finally {
+            executor.shutdownNow();
+            application.stop();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Logs in the first users and keeps their sessions for the authenticated
+     * requests, PUT /users/{id} is sent for the user of the session.
+     */
+    private void login(int count) throws IOException, InterruptedException {
+        for (int i = 0; i < count; i++) {
+            HttpResponse<Void> response = client.send(loginRequest("user" + i), HttpResponse.BodyHandlers.discarding());
+            String cookie = response.headers().firstValue("Set-Cookie")
+                    .map(header -> header.split(";", 2)[0])
+                    .orElseThrow(() -> new IllegalStateException("The login didn't create a session"));
+            sessions.add(new Session(i + 1, "user" + i, cookie));
+        }
+    }
+
+    private void run(NavigableMap<Integer, Endpoint> mix, int rate, int warmupSeconds, int durationSeconds, int maxInFlight)
+            throws InterruptedException {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long recordFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = recordFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        int totalWeight = mix.lastKey();
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        AtomicInteger sent = new AtomicInteger();
+        Thread sampler = startSampler(recordFrom, end, () -> maxInFlight - inFlight.availablePermits());
+
+        for (long i = 0; ; i++) {
+            long intended = start + i * intervalNanos;
+            if (intended >= end) {
+                break;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Endpoint endpoint = mix.higherEntry(ThreadLocalRandom.current().nextInt(totalWeight)).getValue();
+            boolean record = intended >= recordFrom;
+            EndpointStats endpointStats = stats.get(endpoint);
+            if (!inFlight.tryAcquire()) {
+                // the server is too far behind, the request is counted as failed instead of piling up
+                if (record) {
+                    endpointStats.dropped.increment();
+                }
+                continue;
+            }
+            sent.incrementAndGet();
+            client.sendAsync(request(endpoint), HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+                long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended);
+                inFlight.release();
+                if (!record) {
+                    return;
+                }
+                if (error == null && isShed(response)) {
+                    endpointStats.shed.increment();
+                    return;
+                }
+                endpointStats.histogram.recordValue(Math.min(latencyMicros, HIGHEST_LATENCY_MICROS));
+                if (error != null || !isSuccess(endpoint, response)) {
+                    endpointStats.errors.increment();
+                }
+            });
+        }
+        sampler.join();
+        // wait for the outstanding requests
+        if (!inFlight.tryAcquire(maxInFlight, 1, TimeUnit.MINUTES)) {
+            System.err.println("Not all requests have completed within a minute");
+        }
+        System.out.printf("Sent %d requests%n", sent.get());
+    }
+
+    /**
+     * Samples the requests in flight, the used heap and the live platform threads
+     * (virtual threads aren't counted) between recordFrom and end.
+     */
+    private Thread startSampler(long recordFrom, long end, IntSupplier inFlight) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Thread sampler = new Thread(() -> {
+            long next = recordFrom;
+            while (next < end) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                    continue;
+                }
+                resources.sample(inFlight.getAsInt(), memory.getHeapMemoryUsage().getUsed(), threads.getThreadCount());
+                next += SAMPLE_INTERVAL_NANOS;
+            }
+        }, "load-test-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+        return sampler;
+    }
+
+    private static boolean isSuccess(Endpoint endpoint, HttpResponse<Void> response) {
+        if (response.statusCode() != endpoint.expectedStatus) {
+            return false;
+        }
+        // a failed login is a redirect as well
+        return endpoint != Endpoint.LOGIN
+                || response.headers().firstValue("Location").map(location -> location.endsWith("/login_success")).orElse(false);
+    }
+
+    private static boolean isShed(HttpResponse<Void> response) {
+        return response.statusCode() == 503 && response.headers().firstValue("Retry-After").isPresent();
+    }
+
+    private HttpRequest request(Endpoint endpoint) {
+        Session session = sessions.get(ThreadLocalRandom.current().nextInt(sessions.size()));
+        switch (endpoint) {
+            case CREATE_USER:
+                return HttpRequest.newBuilder(baseUri.resolve("/users"))
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(String.format("{\"username\":\"created%d\",\"password\":\"%s\"}",
+                                createdUsers.incrementAndGet(), LoadTestApplication.PASSWORD)))
+                        .build();
+            case GET_USERS:
+                return requestBuilder(session, "/users").GET().build();
+            case GET_USER:
+                return requestBuilder(session, "/users/" + ThreadLocalRandom.current().nextInt(1, seedUsers + 1)).GET().build();
+            case UPDATE_USER:
+                // the username stays the same, only the birthday changes
+                return requestBuilder(session, "/users/" + session.id)
+                        .header("Content-Type", "application/json")
+                        .PUT(HttpRequest.BodyPublishers.ofString(String.format("{\"username\":\"%s\",\"birthday\":%d}",
+                                session.username, System.currentTimeMillis())))
+                        .build();
+            case LOGIN:
+                return loginRequest("user" + ThreadLocalRandom.current().nextInt(seedUsers));
+            case CURRENT_USER:
+                return requestBuilder(session, "/current_user").GET().build();
+            default:
+                throw new IllegalArgumentException("Unknown endpoint " + endpoint);
+        }
+    }
+
+    private HttpRequest.Builder requestBuilder(Session session, String path) {
+        return HttpRequest.newBuilder(baseUri.resolve(path))
+                .header("Cookie", session.cookie)
+                .timeout(Duration.ofSeconds(30));
+    }
+
+    private HttpRequest loginRequest(String username) {
+        String form = "username=" + URLEncoder.encode(username, StandardCharsets.UTF_8)
+                + "&password=" + URLEncoder.encode(LoadTestApplication.PASSWORD, StandardCharsets.UTF_8);
+        return HttpRequest.newBuilder(baseUri.resolve("/perform_login"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .timeout(Duration.ofSeconds(30))
+                .POST(HttpRequest.BodyPublishers.ofString(form))
+                .build();
+    }
+
+    /**
+     * Prints the throughput and latency percentiles per endpoint, writes them and
+     * the full latency distributions to the report directory and checks the budgets.
+     *
+     * @param concurrencyLimit the figures of the server's concurrency limits at the end of the run
+     * @return true if all budgets are met
+     */
+    private boolean report(int durationSeconds, List<Budget> budgets, Path reportDir, Map<String, Number> concurrencyLimit)
+            throws IOException {
+        Files.createDirectories(reportDir);
+        boolean passed = true;
+        try (PrintStream summary = new PrintStream(Files.newOutputStream(reportDir.resolve("summary.txt")), true, StandardCharsets.UTF_8)) {
+            String mode = String.format("execution mode: %s, Java %s", executionMode, System.getProperty("java.version"));
+            System.out.println(mode);
+            summary.println(mode);
+            String header = String.format("%-22s %8s %8s %8s %8s %10s %10s %10s %10s", "endpoint", "count", "req/s", "errors",
+                    "shed", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+            System.out.println(header);
+            summary.println(header);
+            for (Map.Entry<Endpoint, EndpointStats> entry : stats.entrySet()) {
+                Histogram histogram = entry.getValue().histogram;
+                long errors = entry.getValue().errors.sum() + entry.getValue().dropped.sum();
+                String line = String.format("%-22s %8d %8.1f %8d %8d %10.2f %10.2f %10.2f %10.2f", entry.getKey().description,
+                        histogram.getTotalCount(), (double) histogram.getTotalCount() / durationSeconds, errors,
+                        entry.getValue().shed.sum(), millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(99)),
+                        millis(histogram.getValueAtPercentile(99.9)), millis(histogram.getMaxValue()));
+                System.out.println(line);
+                summary.println(line);
+
+                try (PrintStream distribution = new PrintStream(Files.newOutputStream(reportDir.resolve(entry.getKey().key + ".hgrm")),
+                        true, StandardCharsets.UTF_8)) {
+                    histogram.outputPercentileDistribution(distribution, 1000.0);
+                }
+            }
+
+            String resourceLine = resources.format();
+            System.out.println(resourceLine);
+            summary.println(resourceLine);
+
+            if (!concurrencyLimit.isEmpty()) {
+                String limitLine = "concurrency limit: " + concurrencyLimit;
+                System.out.println(limitLine);
+                summary.println(limitLine);
+            }
+
+            for (Budget budget : budgets) {
+                for (Map.Entry<Endpoint, EndpointStats> entry : stats.entrySet()) {
+                    if (!budget.appliesTo(entry.getKey()) || entry.getValue().requests() == 0) {
+                        continue;
+                    }
+                    double actual = budget.measure(entry.getValue());
+                    if (actual > budget.limit) {
+                        String violation = String.format("Budget exceeded: %s %s is %.3f, the budget is %.3f",
+                                entry.getKey().description, budget.metric, actual, budget.limit);
+                        System.err.println(violation);
+                        summary.println(violation);
+                        passed = false;
+                    }
+                }
+            }
+        }
+        return passed;
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static NavigableMap<Integer, Endpoint> parseMix(String mix) {
+        // cumulative weights: an endpoint is chosen by the first bound above a random number
+        NavigableMap<Integer, Endpoint> cumulative = new TreeMap<>();
+        int total = 0;
+        for (String part : mix.split(",")) {
+            String[] keyAndWeight = part.trim().split("=");
+            int weight = Integer.parseInt(keyAndWeight[1].trim());
+            if (weight > 0) {
+                total += weight;
+                cumulative.put(total, Endpoint.forKey(keyAndWeight[0].trim()));
+            }
+        }
+        if (cumulative.isEmpty()) {
+            throw new IllegalArgumentException("The mix doesn't contain any endpoint");
+        }
+        return cumulative;
+    }
+
+    private static List<Budget> parseBudgets(String budgets) {
+        List<Budget> parsed = new ArrayList<>();
+        for (String part : budgets.split(",")) {
+            if (part.isBlank()) {
+                continue;
+            }
+            String[] keyAndLimit = part.trim().split("=");
+            String key = keyAndLimit[0].trim();
+            int dot = key.indexOf('.');
+            String endpoint = key.substring(0, dot);
+            parsed.add(new Budget("*".equals(endpoint) ? null : Endpoint.forKey(endpoint), key.substring(dot + 1),
+                    Double.parseDouble(keyAndLimit[1].trim())));
+        }
+        return parsed;
+    }
+
+    private static final class Session {
+
+        private final long id;
+
+        private final String username;
+
+        private final String cookie;
+
+        private Session(long id, String username, String cookie) {
+            this.id = id;
+            this.username = username;
+            this.cookie = cookie;
+        }
+    }
+
+    private static final class EndpointStats {
+
+        // latencies in microseconds, recorded from the client threads
+        private final Histogram histogram = new ConcurrentHistogram(HIGHEST_LATENCY_MICROS, 3);
+
+        private final LongAdder errors = new LongAdder();
+
+        private final LongAdder dropped = new LongAdder();
+
+        // rejected by the server with 503 and Retry-After, not in the histogram
+        private final LongAdder shed = new LongAdder();
+
+        private long requests() {
+            return histogram.getTotalCount() + dropped.sum() + shed.sum();
+        }
+    }
+
+    private static final class ResourceStats {
+
+        private long samples;
+
+        private long inFlightSum;
+
+        private int peakInFlight;
+
+        private long heapSum;
+
+        private int peakThreads;
+
+        // only called from the sampler thread, read after it has been joined
+        private void sample(int inFlight, long heapUsed, int threads) {
+            samples++;
+            inFlightSum += inFlight;
+            peakInFlight = Math.max(peakInFlight, inFlight);
+            heapSum += heapUsed;
+            peakThreads = Math.max(peakThreads, threads);
+        }
+
+        private String format() {
+            if (samples == 0) {
+                return "no resource samples";
+            }
+            double averageInFlight = (double) inFlightSum / samples;
+            double averageHeapMb = heapSum / (double) samples / (1024 * 1024);
+            return String.format("in flight avg %.1f peak %d, platform threads peak %d, heap avg %.1f MB, %.1f KB per request in flight",
+                    averageInFlight, peakInFlight, peakThreads, averageHeapMb,
+                    averageInFlight > 0 ? averageHeapMb * 1024 / averageInFlight : 0.0);
+        }
+    }
+
+    private static final class Budget {
+
+        // null for all endpoints
+        private final Endpoint endpoint;
+
+        private final String metric;
+
+        private final double limit;
+
+        private Budget(Endpoint endpoint, String metric, double limit) {
+            this.endpoint = endpoint;
+            this.metric = metric;
+            this.limit = limit;
+        }
+
+        private boolean appliesTo(Endpoint endpoint) {
+            return this.endpoint == null || this.endpoint == endpoint;
+        }
+
+        private double measure(EndpointStats endpointStats) {
+            Histogram histogram = endpointStats.histogram;
+            switch (metric) {
+                case "errorRate":
+                    return (double) (endpointStats.errors.sum() + endpointStats.dropped.sum()) / endpointStats.requests();
+                case "shedRate":
+                    return (double) endpointStats.shed.sum() / endpointStats.requests();
+                case "max":
+                    return millis(histogram.getMaxValue());
+                default:
+                    if (metric.startsWith("p")) {
+                        return millis(histogram.getValueAtPercentile(Double.parseDouble(metric.substring(1))));
+                    }
+                    throw new IllegalArgumentException("Unknown budget metric " + metric);
+            }
+        }
+    }
+
+}
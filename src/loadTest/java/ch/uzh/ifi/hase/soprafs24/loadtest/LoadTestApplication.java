@@ -0,0 +1,95 @@
+package ch.uzh.ifi.hase.soprafs24.loadtest;
+
+import ch.uzh.ifi.hase.soprafs24.Application;
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import ch.uzh.ifi.hase.soprafs24.service.PasswordHasher;
+import ch.uzh.ifi.hase.soprafs24.service.UserTableVersion;
+import ch.uzh.ifi.hase.soprafs24.service.UsernameIndex;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Starts the application for a load test: on a random port, with its own
+ * embedded H2 database seeded with the users "user0" to "user{count-1}" (ids 1
+ * to count), all with the password {@link #PASSWORD}. The requests are handled
+ * on platform or virtual threads depending on the execution mode, with or
+ * without the concurrency limits of ConcurrencyLimitFilter.
+ */
+final class LoadTestApplication {
+
+    static final String PASSWORD = "loadtest";
+
+    private static final int SEED_BATCH_SIZE = 1000;
+
+    private final ConfigurableApplicationContext context;
+
+    private LoadTestApplication(ConfigurableApplicationContext context) {
+        this.context = context;
+    }
+
+    static LoadTestApplication start(int seedUsers, String executionMode, boolean concurrencyLimit) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("server.port", 0);
+        properties.put("server.execution-mode", executionMode);
+        properties.put("user.concurrency-limit.enabled", concurrencyLimit);
+        properties.put("spring.datasource.url", "jdbc:h2:mem:loadtest-" + UUID.randomUUID());
+        properties.put("spring.h2.console.enabled", false);
+        properties.put("logging.level.root", "WARN");
+        LoadTestApplication application = new LoadTestApplication(new SpringApplicationBuilder(Application.class)
+                .properties(properties)
+                .run());
+        application.seedUsers(seedUsers);
+        return application;
+    }
+
+    int getPort() {
+        return ((WebServerApplicationContext) context).getWebServer().getPort();
+    }
+
+    /**
+     * @return the figures of the StatsSource with the name, empty if there is none
+     */
+    Map<String, Number> getStats(String name) {
+        return context.getBeanProvider(StatsSource.class).orderedStream()
+                .filter(source -> source.getStatsName().equals(name))
+                .findFirst()
+                .map(StatsSource::getStats)
+                .orElse(Map.of());
+    }
+
+    private void seedUsers(int count) {
+        JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+        // hashed once, the logins still verify it with the configured cost
+        String passwordHash = context.getBean(PasswordHasher.class).hash(PASSWORD);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        Timestamp tokenExpiry = new Timestamp(System.currentTimeMillis() + 86_400_000L);
+
+        List<Object[]> batch = new ArrayList<>(SEED_BATCH_SIZE);
+        for (long id = 1; id <= count; id++) {
+            batch.add(new Object[]{id, "user" + (id - 1), passwordHash, now, UUID.randomUUID().toString(), tokenExpiry,
+                    UserStatus.OFFLINE.ordinal()});
+            if (batch.size() == SEED_BATCH_SIZE || id == count) {
+                jdbcTemplate.batchUpdate("insert into \"USER\" (id, username, password, creation_date, token, token_expiry, status, version)"
+                        + " values (?, ?, ?, ?, ?, ?, ?, 0)", batch);
+                batch.clear();
+            }
+        }
+        context.getBean(UserTableVersion.class).increment();
+        context.getBean(UsernameIndex.class).build();
+    }
+
+    void stop() {
+        context.close();
+    }
+
+}
@@ -0,0 +1,241 @@
+package ch.uzh.ifi.hase.soprafs24.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Startup Benchmark
+ * Measures the time to first request: a new JVM is started for every run and
+ * POST /users is sent until it is answered, the time from starting the process
+ * to the response is recorded. This is what a request waits for on a cold
+ * App Engine instance. The modes compare the default start with the lazy
+ * beans of the fast-start profile and the class data sharing archive built by
+ * ./gradlew cdsArchive. Configured with system properties, see
+ * ./gradlew startupBenchmark in build.gradle: startup.java (the java
+ * executable), startup.bootJar, startup.cdsDir, startup.runs,
+ * startup.timeoutSeconds and startup.reportDir.
+ * The summary names the JDK and the machine, results are only comparable
+ * between runs on the same ones.
+ */
+public final class StartupBenchmark {
+
+    private static final Pattern JVM_TO_READY = Pattern.compile("\"jvmToReadyMillis\":(\\d+)");
+
+    enum Mode {
+        DEFAULT("default", false, false),
+        LAZY("lazy", true, false),
+        CDS("cds", false, true),
+        LAZY_CDS("lazy+cds", true, true);
+
+        private final String key;
+
+        private final boolean lazy;
+
+        private final boolean cds;
+
+        Mode(String key, boolean lazy, boolean cds) {
+            this.key = key;
+            this.lazy = lazy;
+            this.cds = cds;
+        }
+    }
+
+    private final String java;
+
+    private final Path bootJar;
+
+    private final Path cdsDir;
+
+    private final Duration timeout;
+
+    private final Path reportDir;
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(1))
+            .build();
+
+    private StartupBenchmark(String java, Path bootJar, Path cdsDir, Duration timeout, Path reportDir) {
+        this.java = java;
+        this.bootJar = bootJar;
+        this.cdsDir = cdsDir;
+        this.timeout = timeout;
+        this.reportDir = reportDir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int runs = Integer.getInteger("startup.runs", 5);
+        StartupBenchmark benchmark = new StartupBenchmark(
+                System.getProperty("startup.java", Paths.get(System.getProperty("java.home"), "bin", "java").toString()),
+                Paths.get(System.getProperty("startup.bootJar", "build/libs/soprafs24.jar")),
+                Paths.get(System.getProperty("startup.cdsDir", "build/cds")),
+                Duration.ofSeconds(Long.getLong("startup.timeoutSeconds", 120)),
+                Paths.get(System.getProperty("startup.reportDir", "build/reports/startup")));
+        Files.createDirectories(benchmark.reportDir);
+
+        List<String> summary = new ArrayList<>();
+        summary.add(String.format("%-10s %8s %8s %8s %14s", "mode", "median", "min", "max", "jvmToReady"));
+        for (Mode mode : Mode.values()) {
+            if (mode.cds && !Files.exists(benchmark.cdsDir.resolve("application.jsa"))) {
+                summary.add(String.format("%-10s skipped, no archive in %s (./gradlew cdsArchive)", mode.key, benchmark.cdsDir));
+                continue;
+            }
+            long[] firstRequestMillis = new long[runs];
+            long[] jvmToReadyMillis = new long[runs];
+            for (int run = 0; run < runs; run++) {
+                long[] result = benchmark.measure(mode, run);
+                firstRequestMillis[run] = result[0];
+                jvmToReadyMillis[run] = result[1];
+                System.out.printf("%s run %d: first request after %d ms%n", mode.key, run + 1, result[0]);
+            }
+            summary.add(String.format("%-10s %6d ms %5d ms %5d ms %11d ms", mode.key, median(firstRequestMillis),
+                    min(firstRequestMillis), max(firstRequestMillis), median(jvmToReadyMillis)));
+        }
+
+        Path summaryFile = benchmark.reportDir.resolve("summary.txt");
+        try (PrintStream out = new PrintStream(Files.newOutputStream(summaryFile), true, StandardCharsets.UTF_8)) {
+            out.printf("Time to first request (POST /users) over %d runs per mode%n", runs);
+            out.printf("JDK: %s%n", benchmark.javaVersion());
+            out.printf("Machine: %s %s %s, %d CPUs, %d MB max heap of the benchmark JVM%n", System.getProperty("os.name"),
+                    System.getProperty("os.version"), System.getProperty("os.arch"),
+                    Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / (1024 * 1024));
+            summary.forEach(out::println);
+        }
+        System.out.println(Files.readString(summaryFile));
+    }
+
+    /**
+     * @return the milliseconds from starting the process to the first response and
+     * the time to ready the application reported on /internal/startup
+     */
+    private long[] measure(Mode mode, int run) throws IOException, InterruptedException {
+        int port = freePort();
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        File workingDir;
+        if (mode.cds) {
+            // started like the training run, the archive is only used with the same class path
+            workingDir = cdsDir.toFile();
+            command.addAll(Arrays.asList("-XX:SharedArchiveFile=application.jsa", "-jar", "application.jar"));
+        }
+        else {
+            workingDir = bootJar.toAbsolutePath().getParent().toFile();
+            command.addAll(Arrays.asList("-jar", bootJar.toAbsolutePath().toString()));
+        }
+        command.add("--server.port=" + port);
+        if (mode.lazy) {
+            command.add("--spring.profiles.active=fast-start");
+        }
+
+        Path log = reportDir.resolve(mode.key.replace('+', '-') + "-" + (run + 1) + ".log");
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+                .directory(workingDir)
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+        try {
+            long firstRequestMillis = awaitFirstResponse(process, port, run, start);
+            return new long[]{firstRequestMillis, jvmToReadyMillis(port)};
+        }
+        finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        }
+    }
+
+    private long awaitFirstResponse(Process process, int port, int run, long start) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/users"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString("{\"username\":\"startup" + run + "\",\"password\":\"startup\"}"))
+                .build();
+        long deadline = start + timeout.toNanos();
+        while (System.nanoTime() < deadline) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("The application exited with " + process.exitValue() + ", see " + reportDir);
+            }
+            try {
+                HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                if (response.statusCode() != 201) {
+                    throw new IllegalStateException("POST /users answered " + response.statusCode());
+                }
+                return millis;
+            }
+            catch (ConnectException e) {
+                // not listening yet
+                Thread.sleep(5);
+            }
+        }
+        throw new IllegalStateException("No response within " + timeout.toSeconds() + " s");
+    }
+
+    private long jvmToReadyMillis(int port) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/internal/startup")).build();
+        // the report is written by the last ready listener, the first request may be answered before
+        for (int attempt = 0; attempt < 100; attempt++) {
+            Matcher matcher = JVM_TO_READY.matcher(httpClient.send(request, HttpResponse.BodyHandlers.ofString()).body());
+            if (matcher.find()) {
+                return Long.parseLong(matcher.group(1));
+            }
+            Thread.sleep(50);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the version line of the measured java executable, e.g. the vendor and build
+     */
+    private String javaVersion() throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(java, "-version").redirectErrorStream(true).start();
+        String output;
+        try (InputStream in = process.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        process.waitFor();
+        // the second line names the runtime build, e.g. OpenJDK Runtime Environment Temurin-17.0.9+9
+        String[] lines = output.split("\\R");
+        return lines.length > 1 ? lines[0] + ", " + lines[1] : output.trim();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static long min(long[] values) {
+        return Arrays.stream(values).min().orElse(0);
+    }
+
+    private static long max(long[] values) {
+        return Arrays.stream(values).max().orElse(0);
+    }
+
+}
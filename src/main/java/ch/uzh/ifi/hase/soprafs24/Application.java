@@ -4,6 +4,7 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.WebApplicationType;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.metrics.buffering.BufferingApplicationStartup;
 import org.springframework.boot.web.servlet.support.SpringBootServletInitializer;
 import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.annotation.Bean;
@@ -14,8 +15,13 @@ import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 @SpringBootApplication
 public class Application extends SpringBootServletInitializer {
 
+  // startup steps kept for the timeline on /internal/startup, a start records a few thousand
+  private static final int STARTUP_STEPS = 10000;
+
   public static void main(String[] args) {
-      SpringApplication.run(Application.class, args);
+      SpringApplication application = new SpringApplication(Application.class);
+      application.setApplicationStartup(new BufferingApplicationStartup(STARTUP_STEPS));
+      application.run(args);
   }
 
 }
@@ -1,10 +1,10 @@
 package ch.uzh.ifi.hase.soprafs24.config;
 
 import ch.uzh.ifi.hase.soprafs24.entity.User;
-import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
-import ch.uzh.ifi.hase.soprafs24.service.UserService;
+import ch.uzh.ifi.hase.soprafs24.service.UserCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.web.authentication.SimpleUrlAuthenticationSuccessHandler;
 
@@ -14,9 +14,9 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
 public class AppAuthenticationSuccessHandler extends SimpleUrlAuthenticationSuccessHandler {
-    @Qualifier("userRepository")
+    private final Logger log = LoggerFactory.getLogger(AppAuthenticationSuccessHandler.class);
     @Autowired
-    private UserRepository userRepository;
+    private UserCache userCache;
     public AppAuthenticationSuccessHandler(String url) {
         super(url);
     }
@@ -24,8 +24,8 @@ public class AppAuthenticationSuccessHandler extends SimpleUrlAuthenticationSucc
     @Override
     public void onAuthenticationSuccess(HttpServletRequest request, HttpServletResponse response, Authentication authentication) throws IOException, ServletException {
         super.onAuthenticationSuccess(request, response, authentication);
-        User user = userRepository.findByUsername(authentication.getName());
-        System.out.println("auth success uid:" + user.getId());
+        User user = userCache.findByUsername(authentication.getName());
+        log.debug("Authenticated user {}", user.getId());
         request.getSession().setAttribute("uid", user.getId());
     }
 }
\ No newline at end of file
@@ -1,26 +1,23 @@
 package ch.uzh.ifi.hase.soprafs24.config;
 
 import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
-import ch.uzh.ifi.hase.soprafs24.entity.User;
-import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
 import ch.uzh.ifi.hase.soprafs24.service.UserService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.web.authentication.logout.LogoutHandler;
-import org.springframework.transaction.annotation.Transactional;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
-import java.util.Optional;
 
-@Transactional
 public class AppLogoutHandler implements LogoutHandler {
 
-    @Qualifier("userRepository")
+    private final Logger log = LoggerFactory.getLogger(AppLogoutHandler.class);
+
     @Autowired
-    private UserRepository userRepository;
+    private UserService userService;
 
     @Override
     public void logout(HttpServletRequest request, HttpServletResponse response, Authentication authentication) {
@@ -30,11 +27,8 @@ public class AppLogoutHandler implements LogoutHandler {
             return;
         }
         Long id = Long.parseLong(uid.toString());
-        Optional<User> user = userRepository.findById(id);
-        if(user.isEmpty()) {
-            return;
-        }
-        System.out.println("uid logout:" + id);
-        user.get().setStatus(UserStatus.OFFLINE);
+        log.debug("Logged out user {}", id);
+        // buffered, the USER table is updated with the next flush
+        userService.setStatus(id, UserStatus.OFFLINE);
     }
 }
@@ -0,0 +1,39 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import org.springframework.security.authentication.AbstractAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+
+/**
+ * The authentication of a request that carried a valid bearer token. It holds
+ * the id of the user, so the controllers don't have to look the user up by
+ * name.
+ */
+public class BearerTokenAuthentication extends AbstractAuthenticationToken {
+
+    private final Long userId;
+
+    private final String username;
+
+    public BearerTokenAuthentication(Long userId, String username) {
+        super(AuthorityUtils.NO_AUTHORITIES);
+        this.userId = userId;
+        this.username = username;
+        setAuthenticated(true);
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    @Override
+    public Object getCredentials() {
+        // the token is not kept, it mustn't end up in logs
+        return null;
+    }
+
+    @Override
+    public Object getPrincipal() {
+        return username;
+    }
+
+}
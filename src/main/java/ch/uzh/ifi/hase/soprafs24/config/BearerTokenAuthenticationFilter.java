@@ -0,0 +1,70 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.service.TokenIndex;
+import ch.uzh.ifi.hase.soprafs24.service.UserCache;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Authenticates requests with an "Authorization: Bearer <token>" header. The
+ * token is resolved through the TokenIndex and the user through the UserCache,
+ * so usually neither a session nor a database query is needed. Requests
+ * without a bearer token are passed on unchanged (form login, HTTP Basic), an
+ * invalid or expired token is rejected with 401.
+ * The filter is created by the SecurityConfig and not registered as a bean,
+ * otherwise it would also run outside of the security filter chain.
+ */
+public class BearerTokenAuthenticationFilter extends OncePerRequestFilter {
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private final TokenIndex tokenIndex;
+
+    private final UserCache userCache;
+
+    public BearerTokenAuthenticationFilter(TokenIndex tokenIndex, UserCache userCache) {
+        this.tokenIndex = tokenIndex;
+        this.userCache = userCache;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String header = request.getHeader(HttpHeaders.AUTHORIZATION);
+        if (header == null || !header.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        String token = header.substring(BEARER_PREFIX.length()).trim();
+        Optional<User> user = tokenIndex.resolve(token).flatMap(userCache::findById);
+        if (user.isEmpty()) {
+            response.setHeader(HttpHeaders.WWW_AUTHENTICATE, "Bearer error=\"invalid_token\"");
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "The token is invalid or has expired");
+            return;
+        }
+
+        // a new context, the one loaded from the session (if any) stays as it is
+        SecurityContext previous = SecurityContextHolder.getContext();
+        SecurityContext context = SecurityContextHolder.createEmptyContext();
+        context.setAuthentication(new BearerTokenAuthentication(user.get().getId(), user.get().getUsername()));
+        SecurityContextHolder.setContext(context);
+        try {
+            filterChain.doFilter(request, response);
+        }
+        finally {
+            SecurityContextHolder.setContext(previous);
+        }
+    }
+
+}
@@ -0,0 +1,241 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.session.SessionRepository;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compact JDBC Session Repository
+ * Stores the HTTP sessions in the HTTP_SESSION table instead of the heap of
+ * one Tomcat, so any instance on the same database can serve a session and a
+ * restarted instance keeps them. A request costs one select by primary key:
+ * - the attributes are one compact binary column (SessionAttributeCodec),
+ * decoded one by one when they are read
+ * - the row is only rewritten when an attribute has changed, e.g. on login
+ * - the last access time of the other requests is buffered and written in
+ * JDBC batches on an interval, an instance merges its own buffered times
+ * when it loads a session
+ * Expired sessions are deleted on an interval, and when they are loaded.
+ */
+public class CompactJdbcSessionRepository implements SessionRepository<CompactSession>, StatsSource {
+
+    private static final String SELECT = "select creation_time, last_accessed_time, max_inactive_seconds, attributes"
+            + " from HTTP_SESSION where id = ?";
+
+    private static final String INSERT = "insert into HTTP_SESSION (id, creation_time, last_accessed_time,"
+            + " max_inactive_seconds, expiry_time, attributes) values (?, ?, ?, ?, ?, ?)";
+
+    private static final String UPDATE = "update HTTP_SESSION set id = ?, last_accessed_time = ?, max_inactive_seconds = ?,"
+            + " expiry_time = ?, attributes = ? where id = ?";
+
+    // a time that another instance has written in the meantime may be newer
+    private static final String TOUCH = "update HTTP_SESSION set last_accessed_time = ?, expiry_time = ?"
+            + " where id = ? and last_accessed_time < ?";
+
+    private static final String DELETE = "delete from HTTP_SESSION where id = ?";
+
+    private static final String DELETE_EXPIRED = "delete from HTTP_SESSION where expiry_time < ?";
+
+    private final Logger log = LoggerFactory.getLogger(CompactJdbcSessionRepository.class);
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final Duration defaultMaxInactiveInterval;
+
+    private final int batchSize;
+
+    // last access times that haven't been written yet, by session id
+    private final ConcurrentHashMap<String, Touch> pendingTouches = new ConcurrentHashMap<>();
+
+    private final LongAdder loaded = new LongAdder();
+
+    private final LongAdder created = new LongAdder();
+
+    private final LongAdder rewritten = new LongAdder();
+
+    private final LongAdder touched = new LongAdder();
+
+    private final LongAdder touchesWritten = new LongAdder();
+
+    private final LongAdder expired = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    private final AtomicLong maxEncodedBytes = new AtomicLong();
+
+    public CompactJdbcSessionRepository(JdbcTemplate jdbcTemplate, Duration defaultMaxInactiveInterval, int batchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.defaultMaxInactiveInterval = defaultMaxInactiveInterval;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public CompactSession createSession() {
+        return new CompactSession(defaultMaxInactiveInterval);
+    }
+
+    @Override
+    public void save(CompactSession session) {
+        if (!session.isChanged()) {
+            // coalesced per session, only the latest time is written
+            touched.increment();
+            pendingTouches.merge(session.getId(), new Touch(session), Touch::latest);
+            return;
+        }
+        byte[] attributes = session.encodeAttributes();
+        maxEncodedBytes.accumulateAndGet(attributes.length, Math::max);
+        long maxInactiveSeconds = session.getMaxInactiveInterval().getSeconds();
+        if (session.isNew()) {
+            jdbcTemplate.update(INSERT, session.getId(), session.getCreationTime().toEpochMilli(),
+                    session.getLastAccessedTime().toEpochMilli(), maxInactiveSeconds, session.getExpiryMillis(), attributes);
+            created.increment();
+        }
+        else {
+            jdbcTemplate.update(UPDATE, session.getId(), session.getLastAccessedTime().toEpochMilli(), maxInactiveSeconds,
+                    session.getExpiryMillis(), attributes, session.getStoredId());
+            rewritten.increment();
+            // the row has the current time now, also under a changed id
+            pendingTouches.remove(session.getStoredId());
+        }
+        session.markSaved();
+    }
+
+    @Override
+    public CompactSession findById(String id) {
+        List<CompactSession> sessions = jdbcTemplate.query(SELECT, (resultSet, rowNum) -> new CompactSession(id,
+                Instant.ofEpochMilli(resultSet.getLong(1)),
+                Instant.ofEpochMilli(resultSet.getLong(2)),
+                Duration.ofSeconds(resultSet.getLong(3)),
+                resultSet.getBytes(4)), id);
+        if (sessions.isEmpty()) {
+            return null;
+        }
+        loaded.increment();
+        CompactSession session = sessions.get(0);
+        Touch touch = pendingTouches.get(id);
+        if (touch != null && touch.lastAccessedTime.isAfter(session.getLastAccessedTime())) {
+            session.setLastAccessedTime(touch.lastAccessedTime);
+        }
+        if (session.isExpired()) {
+            deleteById(id);
+            expired.increment();
+            return null;
+        }
+        return session;
+    }
+
+    @Override
+    public void deleteById(String id) {
+        pendingTouches.remove(id);
+        jdbcTemplate.update(DELETE, id);
+    }
+
+    @Scheduled(fixedDelayString = "${user.session.touch-flush-interval-millis:1000}")
+    public synchronized void flushTouches() {
+        if (pendingTouches.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<String, Touch>> batch = new ArrayList<>(Math.min(pendingTouches.size(), batchSize));
+        for (Map.Entry<String, Touch> entry : pendingTouches.entrySet()) {
+            batch.add(Map.entry(entry.getKey(), entry.getValue()));
+            if (batch.size() == batchSize) {
+                writeTouches(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            writeTouches(batch);
+        }
+    }
+
+    private void writeTouches(List<Map.Entry<String, Touch>> batch) {
+        try {
+            jdbcTemplate.batchUpdate(TOUCH, batch, batch.size(), (statement, entry) -> {
+                long lastAccessedMillis = entry.getValue().lastAccessedTime.toEpochMilli();
+                statement.setLong(1, lastAccessedMillis);
+                statement.setLong(2, entry.getValue().expiryMillis);
+                statement.setString(3, entry.getKey());
+                statement.setLong(4, lastAccessedMillis);
+            });
+        }
+        catch (DataAccessException e) {
+            // the times stay in the buffer and are written with the next flush
+            failures.increment();
+            log.warn("Could not write the last access time of {} sessions", batch.size(), e);
+            return;
+        }
+        for (Map.Entry<String, Touch> entry : batch) {
+            // a newer time buffered during the flush stays in the buffer
+            pendingTouches.remove(entry.getKey(), entry.getValue());
+        }
+        touchesWritten.add(batch.size());
+    }
+
+    @Scheduled(fixedDelayString = "${user.session.cleanup-interval-millis:60000}")
+    public void deleteExpiredSessions() {
+        // the buffered times are written first, they may keep a session alive
+        flushTouches();
+        int deleted = jdbcTemplate.update(DELETE_EXPIRED, System.currentTimeMillis());
+        if (deleted > 0) {
+            expired.add(deleted);
+            log.debug("Deleted {} expired sessions", deleted);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flushTouches();
+    }
+
+    @Override
+    public String getStatsName() {
+        return "sessions";
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("loaded", loaded.sum());
+        stats.put("created", created.sum());
+        stats.put("rewritten", rewritten.sum());
+        stats.put("touched", touched.sum());
+        stats.put("pendingTouches", pendingTouches.size());
+        stats.put("touchesWritten", touchesWritten.sum());
+        stats.put("expired", expired.sum());
+        stats.put("failures", failures.sum());
+        stats.put("maxEncodedBytes", maxEncodedBytes.get());
+        return stats;
+    }
+
+    private static final class Touch {
+
+        private final Instant lastAccessedTime;
+
+        private final long expiryMillis;
+
+        private Touch(CompactSession session) {
+            this.lastAccessedTime = session.getLastAccessedTime();
+            this.expiryMillis = session.getExpiryMillis();
+        }
+
+        private static Touch latest(Touch previous, Touch next) {
+            return next.lastAccessedTime.isBefore(previous.lastAccessedTime) ? previous : next;
+        }
+    }
+
+}
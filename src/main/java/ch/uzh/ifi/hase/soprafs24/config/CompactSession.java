@@ -0,0 +1,250 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import org.springframework.session.Session;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Session of the CompactJdbcSessionRepository. The attributes are kept in the
+ * encoded form they were loaded in and only decoded when they are read, an
+ * attribute that is never read is written back without being decoded. The
+ * session tracks what has changed since it was loaded, so saving it writes the
+ * attributes only if one of them has been set or removed.
+ */
+public final class CompactSession implements Session {
+
+    private static final byte FORMAT_VERSION = 1;
+
+    private String id;
+
+    // the id of the stored row, null until the session has been inserted
+    private String storedId;
+
+    private final Instant creationTime;
+
+    private Instant lastAccessedTime;
+
+    private Duration maxInactiveInterval;
+
+    // values are either decoded or still an Encoded slice of the loaded attributes
+    private final Map<String, Object> attributes;
+
+    private boolean attributesChanged;
+
+    private boolean maxInactiveIntervalChanged;
+
+    CompactSession(Duration maxInactiveInterval) {
+        this.id = newId();
+        this.creationTime = Instant.now();
+        this.lastAccessedTime = creationTime;
+        this.maxInactiveInterval = maxInactiveInterval;
+        this.attributes = new LinkedHashMap<>();
+    }
+
+    CompactSession(String id, Instant creationTime, Instant lastAccessedTime, Duration maxInactiveInterval,
+                   byte[] encodedAttributes) {
+        this.id = id;
+        this.storedId = id;
+        this.creationTime = creationTime;
+        this.lastAccessedTime = lastAccessedTime;
+        this.maxInactiveInterval = maxInactiveInterval;
+        this.attributes = index(encodedAttributes);
+    }
+
+    private static String newId() {
+        return UUID.randomUUID().toString();
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public String changeSessionId() {
+        id = newId();
+        return id;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getAttribute(String attributeName) {
+        Object value = attributes.get(attributeName);
+        if (value instanceof Encoded) {
+            Encoded encoded = (Encoded) value;
+            value = SessionAttributeCodec.decode(encoded.bytes, encoded.offset, encoded.length);
+            attributes.put(attributeName, value);
+        }
+        return (T) value;
+    }
+
+    @Override
+    public Set<String> getAttributeNames() {
+        return Collections.unmodifiableSet(attributes.keySet());
+    }
+
+    @Override
+    public void setAttribute(String attributeName, Object attributeValue) {
+        if (attributeValue == null) {
+            removeAttribute(attributeName);
+            return;
+        }
+        Object previous = attributes.put(attributeName, attributeValue);
+        // setting an equal immutable value again (e.g. the same user id) doesn't need a write
+        if (!(isImmutable(attributeValue) && attributeValue.equals(previous))) {
+            attributesChanged = true;
+        }
+    }
+
+    private static boolean isImmutable(Object value) {
+        return value instanceof String || value instanceof Long || value instanceof Integer || value instanceof Boolean;
+    }
+
+    @Override
+    public void removeAttribute(String attributeName) {
+        if (attributes.remove(attributeName) != null) {
+            attributesChanged = true;
+        }
+    }
+
+    @Override
+    public Instant getCreationTime() {
+        return creationTime;
+    }
+
+    @Override
+    public void setLastAccessedTime(Instant lastAccessedTime) {
+        this.lastAccessedTime = lastAccessedTime;
+    }
+
+    @Override
+    public Instant getLastAccessedTime() {
+        return lastAccessedTime;
+    }
+
+    @Override
+    public void setMaxInactiveInterval(Duration interval) {
+        if (!Objects.equals(maxInactiveInterval, interval)) {
+            maxInactiveInterval = interval;
+            maxInactiveIntervalChanged = true;
+        }
+    }
+
+    @Override
+    public Duration getMaxInactiveInterval() {
+        return maxInactiveInterval;
+    }
+
+    @Override
+    public boolean isExpired() {
+        return isExpired(Instant.now());
+    }
+
+    boolean isExpired(Instant now) {
+        // a negative interval never expires
+        return !maxInactiveInterval.isNegative() && !now.minus(maxInactiveInterval).isBefore(lastAccessedTime);
+    }
+
+    /**
+     * @return the epoch millis after which the session has expired, Long.MAX_VALUE if never
+     */
+    long getExpiryMillis() {
+        return maxInactiveInterval.isNegative() ? Long.MAX_VALUE
+                : lastAccessedTime.plus(maxInactiveInterval).toEpochMilli();
+    }
+
+    String getStoredId() {
+        return storedId;
+    }
+
+    boolean isNew() {
+        return storedId == null;
+    }
+
+    /**
+     * @return whether the row has to be rewritten, not only its last access time
+     */
+    boolean isChanged() {
+        return isNew() || attributesChanged || maxInactiveIntervalChanged || !id.equals(storedId);
+    }
+
+    void markSaved() {
+        storedId = id;
+        attributesChanged = false;
+        maxInactiveIntervalChanged = false;
+    }
+
+    /**
+     * Encodes the attributes: the format version, the number of attributes
+     * and then the name, the length of the value and the value of each one.
+     */
+    byte[] encodeAttributes() {
+        SessionAttributeCodec.Output output = new SessionAttributeCodec.Output();
+        output.write(FORMAT_VERSION);
+        output.writeVarLong(attributes.size());
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            output.writeString(entry.getKey());
+            Object value = entry.getValue();
+            if (value instanceof Encoded) {
+                Encoded encoded = (Encoded) value;
+                output.writeVarLong(encoded.length);
+                output.write(encoded.bytes, encoded.offset, encoded.length);
+            }
+            else {
+                byte[] bytes = SessionAttributeCodec.encode(value);
+                output.writeVarLong(bytes.length);
+                output.write(bytes, 0, bytes.length);
+            }
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Finds the name and the position of every value without decoding one.
+     */
+    private static Map<String, Object> index(byte[] encodedAttributes) {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        if (encodedAttributes == null || encodedAttributes.length == 0) {
+            return attributes;
+        }
+        SessionAttributeCodec.Input input = new SessionAttributeCodec.Input(encodedAttributes, 0, encodedAttributes.length);
+        byte version = input.read();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalStateException("Unknown session format " + version);
+        }
+        int count = input.readLength();
+        for (int i = 0; i < count; i++) {
+            String name = input.readString();
+            int length = input.readLength();
+            attributes.put(name, new Encoded(encodedAttributes, input.position(), length));
+            input.skip(length);
+        }
+        return attributes;
+    }
+
+    /**
+     * Value that hasn't been decoded yet, a slice of the loaded attributes
+     */
+    private static final class Encoded {
+
+        private final byte[] bytes;
+
+        private final int offset;
+
+        private final int length;
+
+        private Encoded(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import ch.uzh.ifi.hase.soprafs24.util.AdaptiveConcurrencyLimit;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.annotation.Order;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.session.web.http.SessionRepositoryFilter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Concurrency Limit Filter
+ * Sheds load instead of queueing it: every endpoint group has an adaptive
+ * limit of requests in flight (AdaptiveConcurrencyLimit) that follows the
+ * latency of its requests, a request beyond the limit is answered at once with
+ * 503 and Retry-After. When the database slows down, the limits shrink and the
+ * requests that are accepted still complete in time, instead of all of them
+ * waiting in Tomcat's queue until they time out.
+ * The groups are configured with user.concurrency-limit.{group}.* (initial-limit,
+ * min-limit, max-limit, tolerance, window-size). The filter runs before the
+ * session is loaded, so a rejected request doesn't touch the database.
+ */
+@Component
+@Profile("!reactive")
+@Order(SessionRepositoryFilter.DEFAULT_ORDER - 1)
+public class ConcurrencyLimitFilter extends OncePerRequestFilter implements StatsSource {
+
+    private static final byte[] REJECTED_JSON = "{\"status\":503, \"error\":\"The server is overloaded, please try again later\"}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    enum EndpointGroup {
+        // GET /users?limit=, /users/{id}, /users/search and /users/stats, the long-lived event stream and export aren't limited
+        READS("reads", 64, 8, 512),
+        // GET /users without a limit, it reads the whole table and would skew the latency of the point reads
+        LIST("list", 4, 1, 32),
+        // POST /users, a password hash each
+        SIGNUPS("signups", 8, 2, 64),
+        // POST /perform_login, a password verification each
+        LOGIN("login", 8, 2, 64);
+
+        private final String key;
+
+        private final int initialLimit;
+
+        private final int minLimit;
+
+        private final int maxLimit;
+
+        EndpointGroup(String key, int initialLimit, int minLimit, int maxLimit) {
+            this.key = key;
+            this.initialLimit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+        }
+
+        static EndpointGroup of(String method, String path, boolean paged) {
+            if (HttpMethod.GET.matches(method)) {
+                if (path.equals("/users")) {
+                    return paged ? READS : LIST;
+                }
+                if (path.startsWith("/users/") && !path.equals("/users/events") && !path.equals("/users/export")) {
+                    return READS;
+                }
+            }
+            else if (HttpMethod.POST.matches(method)) {
+                if (path.equals("/users")) {
+                    return SIGNUPS;
+                }
+                if (path.equals("/perform_login")) {
+                    return LOGIN;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final boolean enabled;
+
+    private final String retryAfterSeconds;
+
+    private final Map<EndpointGroup, AdaptiveConcurrencyLimit> limits = new EnumMap<>(EndpointGroup.class);
+
+    @Autowired
+    public ConcurrencyLimitFilter(Environment environment,
+                                  @Value("${user.concurrency-limit.enabled:true}") boolean enabled,
+                                  @Value("${user.concurrency-limit.retry-after-seconds:1}") int retryAfterSeconds) {
+        this.enabled = enabled;
+        this.retryAfterSeconds = Integer.toString(retryAfterSeconds);
+        for (EndpointGroup group : EndpointGroup.values()) {
+            String prefix = "user.concurrency-limit." + group.key + ".";
+            limits.put(group, new AdaptiveConcurrencyLimit(
+                    environment.getProperty(prefix + "initial-limit", Integer.class, group.initialLimit),
+                    environment.getProperty(prefix + "min-limit", Integer.class, group.minLimit),
+                    environment.getProperty(prefix + "max-limit", Integer.class, group.maxLimit),
+                    environment.getProperty(prefix + "tolerance", Double.class, 2.0),
+                    environment.getProperty(prefix + "window-size", Integer.class, 50)));
+        }
+    }
+
+    AdaptiveConcurrencyLimit getLimit(EndpointGroup group) {
+        return limits.get(group);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !enabled;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        EndpointGroup group = EndpointGroup.of(request.getMethod(),
+                request.getRequestURI().substring(request.getContextPath().length()), request.getParameter("limit") != null);
+        if (group == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        AdaptiveConcurrencyLimit limit = limits.get(group);
+        int inFlight = limit.tryAcquire();
+        if (inFlight < 0) {
+            reject(response);
+            return;
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            filterChain.doFilter(request, response);
+            // a 503 from further down (e.g. a saturated password hasher) is a sign of overload as well
+            failed = response.getStatus() >= HttpStatus.INTERNAL_SERVER_ERROR.value();
+        }
+        finally {
+            limit.release(System.nanoTime() - start, inFlight, failed);
+        }
+    }
+
+    private void reject(HttpServletResponse response) throws IOException {
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, retryAfterSeconds);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setContentLength(REJECTED_JSON.length);
+        response.getOutputStream().write(REJECTED_JSON);
+    }
+
+    @Override
+    public String getStatsName() {
+        return "concurrencyLimit";
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        for (Map.Entry<EndpointGroup, AdaptiveConcurrencyLimit> entry : limits.entrySet()) {
+            String key = entry.getKey().key;
+            AdaptiveConcurrencyLimit limit = entry.getValue();
+            stats.put(key + ".limit", limit.getLimit());
+            stats.put(key + ".inFlight", limit.getInFlight());
+            stats.put(key + ".accepted", limit.getAccepted());
+            stats.put(key + ".rejected", limit.getRejected());
+            stats.put(key + ".latencyMicros", limit.getLatencyMicros());
+            stats.put(key + ".baselineLatencyMicros", limit.getBaselineLatencyMicros());
+        }
+        return stats;
+    }
+
+}
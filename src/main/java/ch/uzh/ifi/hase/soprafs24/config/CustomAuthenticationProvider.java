@@ -1,9 +1,14 @@
 package ch.uzh.ifi.hase.soprafs24.config;
 
 import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
-import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs24.service.OptimisticRetry;
+import ch.uzh.ifi.hase.soprafs24.service.PasswordHasher;
+import ch.uzh.ifi.hase.soprafs24.service.UserCache;
+import ch.uzh.ifi.hase.soprafs24.service.UserService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
@@ -12,20 +17,29 @@ import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.User;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.server.ResponseStatusException;
 
 import java.util.ArrayList;
 import java.util.List;
 
 @Service
-@Transactional
 public class CustomAuthenticationProvider implements AuthenticationProvider {
 
-    private final UserRepository userRepository;
+    private final UserCache userCache;
+
+    private final UserService userService;
+
+    private final PasswordHasher passwordHasher;
+
+    private final OptimisticRetry optimisticRetry;
 
     @Autowired
-    public CustomAuthenticationProvider(UserRepository userRepository) {
-        this.userRepository = userRepository;
+    public CustomAuthenticationProvider(UserCache userCache, UserService userService, PasswordHasher passwordHasher,
+                                        OptimisticRetry optimisticRetry) {
+        this.userCache = userCache;
+        this.userService = userService;
+        this.passwordHasher = passwordHasher;
+        this.optimisticRetry = optimisticRetry;
     }
 
     @Override
@@ -33,14 +47,24 @@ public class CustomAuthenticationProvider implements AuthenticationProvider {
         final String name = authentication.getName();
         final String password = authentication.getCredentials().toString();
 
-        ch.uzh.ifi.hase.soprafs24.entity.User user = userRepository.findByUsername(name);
+        // HTTP Basic authenticates every request, so the user is read from the cache
+        ch.uzh.ifi.hase.soprafs24.entity.User user = userCache.findByUsername(name);
 
         if(user == null) {
+            // as slow as a wrong password, so the response time doesn't tell whether the username exists
+            matchesUnknownUser(password);
             return null;
         }
 
-        if (password.equals(user.getPassword())) {
-            user.setStatus(UserStatus.ONLINE);
+        if (matches(password, user.getPassword())) {
+            // clear text passwords and hashes with an outdated cost are replaced transparently
+            if (passwordHasher.needsUpgrade(user.getPassword())) {
+                upgradePassword(user.getId(), password);
+            }
+            // only write the status when it changes, not on every request
+            if (userService.getStatus(user) != UserStatus.ONLINE) {
+                userService.setStatus(user.getId(), UserStatus.ONLINE);
+            }
 
             return authenticateAgainstThirdPartyAndGetAuthentication(name, password);
         }
@@ -48,6 +72,38 @@ public class CustomAuthenticationProvider implements AuthenticationProvider {
         return null;
     }
 
+    private boolean matches(String password, String storedPassword) {
+        try {
+            return passwordHasher.matches(password, storedPassword);
+        }
+        catch (ResponseStatusException e) {
+            // the hashing threads are saturated, fail this attempt instead of queueing it
+            throw new AuthenticationServiceException(e.getReason(), e);
+        }
+    }
+
+    private void matchesUnknownUser(String password) {
+        try {
+            passwordHasher.matchesUnknownUser(password);
+        }
+        catch (ResponseStatusException e) {
+            throw new AuthenticationServiceException(e.getReason(), e);
+        }
+    }
+
+    private void upgradePassword(Long id, String password) {
+        try {
+            String passwordHash = passwordHasher.hash(password);
+            optimisticRetry.run(() -> userService.setPasswordHash(id, passwordHash));
+        }
+        catch (ResponseStatusException e) {
+            // the hashing threads are busy, the password is upgraded on a later login
+        }
+        catch (OptimisticLockingFailureException e) {
+            // the user keeps changing, the login doesn't depend on the upgrade
+        }
+    }
+
     @Override
     public boolean supports(Class<?> authentication) {
         return (UsernamePasswordAuthenticationToken.class.isAssignableFrom(authentication));
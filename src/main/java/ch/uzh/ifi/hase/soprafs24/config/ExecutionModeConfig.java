@@ -0,0 +1,57 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import org.apache.coyote.ProtocolHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Execution Mode Configuration
+ * Selects the threads the embedded Tomcat handles requests on:
+ * - platform (default): Tomcat's pool of platform threads (server.tomcat.threads.max)
+ * - virtual: one virtual thread per request, a request blocked on JDBC no
+ * longer holds a platform thread. The connection pool becomes the limit instead
+ * of the thread pool.
+ * Virtual threads need Java 21, the build targets Java 17, so the executor is
+ * created through reflection; on an older runtime the platform threads are
+ * kept and a warning is logged.
+ */
+@Configuration
+public class ExecutionModeConfig {
+
+    private final Logger log = LoggerFactory.getLogger(ExecutionModeConfig.class);
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<ProtocolHandler> executionModeCustomizer(
+            @Value("${server.execution-mode:platform}") String executionMode) {
+        return protocolHandler -> {
+            if (!"virtual".equalsIgnoreCase(executionMode)) {
+                return;
+            }
+            ExecutorService executor = newVirtualThreadPerTaskExecutor();
+            if (executor != null) {
+                protocolHandler.setExecutor(executor);
+                log.info("Handling requests on virtual threads");
+            }
+        };
+    }
+
+    private ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            log.warn("Virtual threads are not available on Java {}, requests are handled on platform threads",
+                    System.getProperty("java.specification.version"));
+            return null;
+        }
+    }
+
+}
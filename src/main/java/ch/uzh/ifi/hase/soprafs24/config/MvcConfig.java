@@ -1,11 +1,17 @@
 package ch.uzh.ifi.hase.soprafs24.config;
 
+import ch.uzh.ifi.hase.soprafs24.rest.json.UserGetDTOHttpMessageConverter;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import java.util.List;
+
 @EnableWebMvc
+@Profile("!reactive")
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
 
@@ -15,11 +21,16 @@ public class MvcConfig implements WebMvcConfigurer {
 
     @Override
     public void addResourceHandlers(ResourceHandlerRegistry registry) {
-        System.out.println("addResourceHandlers!!!");
         registry.addResourceHandler("/static/**").addResourceLocations("/react/static/");
         registry.addResourceHandler("/manifest.json").addResourceLocations("/react/manifest.json");
         registry.addResourceHandler("/asset-manifest.json").addResourceLocations("/react/asset-manifest.json");
         registry.addResourceHandler("/favicon.ico").addResourceLocations("/react/favicon.ico");
     }
 
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        // ahead of Jackson, it only takes UserGetDTO and collections of it
+        converters.add(0, new UserGetDTOHttpMessageConverter());
+    }
+
 }
\ No newline at end of file
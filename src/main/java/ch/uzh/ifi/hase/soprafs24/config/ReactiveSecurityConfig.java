@@ -0,0 +1,170 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.service.ReactiveUserService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
+import org.springframework.security.authorization.AuthorizationDecision;
+import org.springframework.security.authorization.ReactiveAuthorizationManager;
+import org.springframework.security.config.annotation.web.reactive.EnableWebFluxSecurity;
+import org.springframework.security.config.web.server.SecurityWebFiltersOrder;
+import org.springframework.security.config.web.server.ServerHttpSecurity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.web.authentication.preauth.PreAuthenticatedAuthenticationToken;
+import org.springframework.security.web.server.SecurityWebFilterChain;
+import org.springframework.security.web.server.authentication.AuthenticationWebFilter;
+import org.springframework.security.web.server.authorization.AuthorizationContext;
+import org.springframework.security.web.server.authentication.RedirectServerAuthenticationFailureHandler;
+import org.springframework.security.web.server.authentication.RedirectServerAuthenticationSuccessHandler;
+import org.springframework.security.web.server.authentication.ServerAuthenticationSuccessHandler;
+import org.springframework.security.web.server.authentication.logout.DelegatingServerLogoutHandler;
+import org.springframework.security.web.server.authentication.logout.RedirectServerLogoutSuccessHandler;
+import org.springframework.security.web.server.authentication.logout.SecurityContextServerLogoutHandler;
+import org.springframework.security.web.server.authentication.logout.ServerLogoutHandler;
+import org.springframework.security.web.server.util.matcher.ServerWebExchangeMatchers;
+import org.springframework.security.web.util.matcher.IpAddressMatcher;
+import org.springframework.web.server.WebSession;
+import reactor.core.publisher.Mono;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The security rules of the SecurityConfig for the reactive profile: form
+ * login at /perform_login with the user id in the session, HTTP Basic, bearer
+ * tokens without a session and the same protected paths.
+ */
+@Configuration
+@Profile("reactive")
+@EnableWebFluxSecurity
+public class ReactiveSecurityConfig {
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private static final String SESSION_USER_ID = "uid";
+
+    @Bean
+    public SecurityWebFilterChain securityWebFilterChain(ServerHttpSecurity http,
+                                                         ReactiveUserAuthenticationManager authenticationManager,
+                                                         ReactiveUserService userService,
+                                                         @Value("${security.internal.allowed-addresses:127.0.0.1/32,::1}") List<String> internalAddresses) {
+        http
+                .authenticationManager(authenticationManager)
+                .addFilterBefore(bearerTokenAuthenticationFilter(userService), SecurityWebFiltersOrder.HTTP_BASIC)
+                .formLogin()
+                .loginPage("/login")
+                .requiresAuthenticationMatcher(ServerWebExchangeMatchers.pathMatchers(HttpMethod.POST, "/perform_login"))
+                .authenticationFailureHandler(new RedirectServerAuthenticationFailureHandler("/login_error"))
+                .authenticationSuccessHandler(authenticationSuccessHandler())
+                .and()
+                .httpBasic()
+                .and()
+                .authorizeExchange()
+                .pathMatchers(HttpMethod.GET, "/users/{id}").authenticated()
+                .pathMatchers(HttpMethod.GET, "/users").authenticated()
+                .pathMatchers(HttpMethod.PUT, "/users").authenticated()
+                .pathMatchers(HttpMethod.POST, "/token").authenticated()
+                .pathMatchers(HttpMethod.GET, "/overview").authenticated()
+                .pathMatchers(HttpMethod.GET, "/profile/**").authenticated()
+                .pathMatchers(HttpMethod.GET, "/internal/ready").permitAll()
+                .pathMatchers("/internal/**").access(internalAccess(internalAddresses))
+                .anyExchange().permitAll()
+                .and()
+                .headers().frameOptions().disable()
+                .and()
+                .csrf().disable()
+                .logout()
+                // like the servlet stack without CSRF protection, any method logs out
+                .requiresLogout(ServerWebExchangeMatchers.pathMatchers("/perform_logout"))
+                .logoutHandler(logoutHandler(userService))
+                .logoutSuccessHandler(logoutSuccessHandler());
+        return http.build();
+    }
+
+    /**
+     * Only the configured addresses may read /internal/**, like in the SecurityConfig.
+     */
+    private ReactiveAuthorizationManager<AuthorizationContext> internalAccess(List<String> addresses) {
+        List<IpAddressMatcher> matchers = addresses.stream()
+                .map(String::trim)
+                .filter(address -> !address.isEmpty())
+                .map(IpAddressMatcher::new)
+                .collect(Collectors.toList());
+        return (authentication, context) -> {
+            InetSocketAddress remoteAddress = context.getExchange().getRequest().getRemoteAddress();
+            String address = remoteAddress == null || remoteAddress.getAddress() == null ? null
+                    : remoteAddress.getAddress().getHostAddress();
+            return Mono.just(new AuthorizationDecision(address != null
+                    && matchers.stream().anyMatch(matcher -> matcher.matches(address))));
+        };
+    }
+
+    /**
+     * Redirects to /login_success like the AppAuthenticationSuccessHandler, after
+     * the user id has been stored in the session.
+     */
+    private ServerAuthenticationSuccessHandler authenticationSuccessHandler() {
+        RedirectServerAuthenticationSuccessHandler redirect = new RedirectServerAuthenticationSuccessHandler("/login_success");
+        return (webFilterExchange, authentication) -> webFilterExchange.getExchange().getSession()
+                .doOnNext(session -> session.getAttributes().put(SESSION_USER_ID, authentication.getDetails()))
+                .then(redirect.onAuthenticationSuccess(webFilterExchange, authentication));
+    }
+
+    /**
+     * Sets the user OFFLINE like the AppLogoutHandler, then clears the security
+     * context and invalidates the session.
+     */
+    private ServerLogoutHandler logoutHandler(ReactiveUserService userService) {
+        ServerLogoutHandler statusHandler = (webFilterExchange, authentication) -> webFilterExchange.getExchange().getSession()
+                .doOnNext(session -> {
+                    Object uid = session.getAttribute(SESSION_USER_ID);
+                    if (uid != null) {
+                        // buffered, the USER table is updated with the next flush
+                        userService.setStatus(Long.parseLong(uid.toString()), UserStatus.OFFLINE);
+                    }
+                })
+                .then();
+        ServerLogoutHandler sessionHandler = (webFilterExchange, authentication) -> webFilterExchange.getExchange().getSession()
+                .flatMap(WebSession::invalidate);
+        return new DelegatingServerLogoutHandler(statusHandler, new SecurityContextServerLogoutHandler(), sessionHandler);
+    }
+
+    private RedirectServerLogoutSuccessHandler logoutSuccessHandler() {
+        RedirectServerLogoutSuccessHandler handler = new RedirectServerLogoutSuccessHandler();
+        handler.setLogoutSuccessUrl(URI.create("/login"));
+        return handler;
+    }
+
+    /**
+     * @see BearerTokenAuthenticationFilter
+     */
+    private AuthenticationWebFilter bearerTokenAuthenticationFilter(ReactiveUserService userService) {
+        ReactiveAuthenticationManager tokenManager = authentication -> userService.findByToken((String) authentication.getCredentials())
+                .<Authentication>map(user -> new BearerTokenAuthentication(user.getId(), user.getUsername()))
+                .switchIfEmpty(Mono.error(() -> new BadCredentialsException("Invalid bearer token")));
+
+        // the filter keeps the default NoOp context repository, a token request never creates a session
+        AuthenticationWebFilter filter = new AuthenticationWebFilter(tokenManager);
+        filter.setServerAuthenticationConverter(exchange -> Mono.justOrEmpty(exchange.getRequest().getHeaders().getFirst(HttpHeaders.AUTHORIZATION))
+                .filter(header -> header.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length()))
+                .<Authentication>map(header -> new PreAuthenticatedAuthenticationToken(BEARER_PREFIX, header.substring(BEARER_PREFIX.length()).trim())));
+        filter.setAuthenticationFailureHandler((webFilterExchange, exception) -> {
+            ServerHttpResponse response = webFilterExchange.getExchange().getResponse();
+            response.setStatusCode(HttpStatus.UNAUTHORIZED);
+            response.getHeaders().set(HttpHeaders.WWW_AUTHENTICATE, "Bearer error=\"invalid_token\"");
+            return response.setComplete();
+        });
+        return filter;
+    }
+
+}
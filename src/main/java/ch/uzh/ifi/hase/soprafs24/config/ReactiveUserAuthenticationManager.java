@@ -0,0 +1,79 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.service.PasswordHasher;
+import ch.uzh.ifi.hase.soprafs24.service.ReactiveUserService;
+import org.springframework.context.annotation.Profile;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * The reactive counterpart of the CustomAuthenticationProvider, used for the
+ * form login and HTTP Basic. The id of the user is kept in the details of the
+ * authentication, the login success handler stores it in the session.
+ */
+@Component
+@Profile("reactive")
+public class ReactiveUserAuthenticationManager implements ReactiveAuthenticationManager {
+
+    private static final List<GrantedAuthority> AUTHORITIES = AuthorityUtils.createAuthorityList("ROLE_USER");
+
+    private final ReactiveUserService userService;
+
+    private final PasswordHasher passwordHasher;
+
+    public ReactiveUserAuthenticationManager(ReactiveUserService userService, PasswordHasher passwordHasher) {
+        this.userService = userService;
+        this.passwordHasher = passwordHasher;
+    }
+
+    @Override
+    public Mono<Authentication> authenticate(Authentication authentication) {
+        final String name = authentication.getName();
+        final String password = authentication.getCredentials().toString();
+
+        return userService.findByUsername(name)
+                // as slow as a wrong password, so the response time doesn't tell whether the username exists
+                .switchIfEmpty(Mono.defer(() -> Mono.fromFuture(passwordHasher.matchesUnknownUserAsync(password)))
+                        .onErrorMap(ResponseStatusException.class, e -> new AuthenticationServiceException(e.getReason(), e))
+                        .then(Mono.empty()))
+                .filterWhen(user -> Mono.fromFuture(passwordHasher.matchesAsync(password, user.getPassword()))
+                        // the hashing threads are saturated, fail this attempt instead of queueing it
+                        .onErrorMap(ResponseStatusException.class, e -> new AuthenticationServiceException(e.getReason(), e)))
+                .flatMap(user -> {
+                    // only write the status when it changes, not on every request
+                    if (userService.getStatus(user) != UserStatus.ONLINE) {
+                        userService.setStatus(user.getId(), UserStatus.ONLINE);
+                    }
+                    Mono<Void> upgrade = passwordHasher.needsUpgrade(user.getPassword())
+                            ? upgradePassword(user.getId(), password) : Mono.empty();
+                    return upgrade.then(Mono.fromSupplier(() -> {
+                        UsernamePasswordAuthenticationToken result = new UsernamePasswordAuthenticationToken(
+                                new User(name, password, AUTHORITIES), password, AUTHORITIES);
+                        result.setDetails(user.getId());
+                        return (Authentication) result;
+                    }));
+                })
+                .switchIfEmpty(Mono.error(() -> new BadCredentialsException("Bad credentials")));
+    }
+
+    private Mono<Void> upgradePassword(Long id, String password) {
+        // clear text passwords and hashes with an outdated cost are replaced transparently,
+        // when the hashing threads are busy the password is upgraded on a later login
+        return Mono.defer(() -> Mono.fromFuture(passwordHasher.hashAsync(password)))
+                .flatMap(passwordHash -> userService.setPasswordHash(id, passwordHash))
+                .onErrorResume(ResponseStatusException.class, e -> Mono.empty());
+    }
+
+}
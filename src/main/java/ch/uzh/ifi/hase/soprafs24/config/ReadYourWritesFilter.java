@@ -0,0 +1,63 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+
+/**
+ * Read-your-writes for sessions: once a request of a session has written to
+ * the primary, the read-only transactions of its requests stay on the primary
+ * for user.datasource.replica.read-your-writes-millis, the longest lag the
+ * replica is expected to have. Within the request itself the reads after a
+ * write always go to the primary.
+ * Runs before the security filters, after the session has been resolved.
+ */
+@Component
+@Profile("!reactive")
+@Order(SecurityProperties.DEFAULT_FILTER_ORDER - 10)
+public class ReadYourWritesFilter extends OncePerRequestFilter {
+
+    static final String LAST_WRITE_ATTRIBUTE = ReadYourWritesFilter.class.getName() + ".LAST_WRITE";
+
+    private final long readYourWritesMillis;
+
+    public ReadYourWritesFilter(@Value("${user.datasource.replica.read-your-writes-millis:5000}") long readYourWritesMillis) {
+        this.readYourWritesMillis = readYourWritesMillis;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        HttpSession session = request.getSession(false);
+        Object lastWrite = session == null ? null : session.getAttribute(LAST_WRITE_ATTRIBUTE);
+        boolean primaryRequired = lastWrite instanceof Long
+                && System.currentTimeMillis() - (Long) lastWrite < readYourWritesMillis;
+
+        ReplicaRouting.beginRequest(primaryRequired);
+        boolean wrote;
+        try {
+            filterChain.doFilter(request, response);
+        }
+        finally {
+            wrote = ReplicaRouting.endRequest();
+        }
+        if (wrote) {
+            // the session may have been created by the request, e.g. by a login
+            HttpSession currentSession = request.getSession(false);
+            if (currentSession != null) {
+                currentSession.setAttribute(LAST_WRITE_ATTRIBUTE, System.currentTimeMillis());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.function.Supplier;
+
+/**
+ * Replica Routing
+ * Decides whether the ReplicaRoutingDataSource connects a transaction to the
+ * primary or to the replica. Read-only transactions read from the replica,
+ * everything else uses the primary, except where a read has to see a recent
+ * write that may not have reached the replica yet (read-your-writes):
+ * - in a request that has written, or whose session has written within the
+ * replica lag (see ReadYourWritesFilter)
+ * - inside onPrimary, e.g. to reload a user that has just been changed
+ * The decision is taken when a transaction gets its connection, which is its
+ * first statement (LazyConnectionDataSourceProxy).
+ */
+public final class ReplicaRouting {
+
+    enum Target {
+        PRIMARY, REPLICA
+    }
+
+    private static final ThreadLocal<RequestState> REQUEST = new ThreadLocal<>();
+
+    private static final ThreadLocal<int[]> PRIMARY_DEPTH = ThreadLocal.withInitial(() -> new int[1]);
+
+    private ReplicaRouting() {
+    }
+
+    /**
+     * Runs the supplier with the read-only transactions it starts on the primary.
+     */
+    public static <T> T onPrimary(Supplier<T> supplier) {
+        int[] depth = PRIMARY_DEPTH.get();
+        depth[0]++;
+        try {
+            return supplier.get();
+        }
+        finally {
+            depth[0]--;
+        }
+    }
+
+    static Target currentTarget() {
+        RequestState request = REQUEST.get();
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            if (request != null && TransactionSynchronizationManager.isActualTransactionActive()) {
+                request.wrote = true;
+            }
+            return Target.PRIMARY;
+        }
+        if (PRIMARY_DEPTH.get()[0] > 0 || (request != null && (request.primaryRequired || request.wrote))) {
+            return Target.PRIMARY;
+        }
+        return Target.REPLICA;
+    }
+
+    /**
+     * @param primaryRequired whether the session has written recently, its reads then stay on the primary
+     */
+    static void beginRequest(boolean primaryRequired) {
+        RequestState request = new RequestState();
+        request.primaryRequired = primaryRequired;
+        REQUEST.set(request);
+    }
+
+    /**
+     * @return whether a read-write transaction of the request has used the primary
+     */
+    static boolean endRequest() {
+        RequestState request = REQUEST.get();
+        REQUEST.remove();
+        return request != null && request.wrote;
+    }
+
+    private static final class RequestState {
+
+        private boolean primaryRequired;
+
+        private boolean wrote;
+    }
+
+}
@@ -0,0 +1,49 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connects every transaction to the primary or to the replica, as decided by
+ * ReplicaRouting. Counts the connections per target for /internal/stats.
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource implements StatsSource {
+
+    private final LongAdder primaryConnections = new LongAdder();
+
+    private final LongAdder replicaConnections = new LongAdder();
+
+    public ReplicaRoutingDataSource(DataSource primary, DataSource replica) {
+        Map<Object, Object> targets = new LinkedHashMap<>();
+        targets.put(ReplicaRouting.Target.PRIMARY, primary);
+        targets.put(ReplicaRouting.Target.REPLICA, replica);
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        ReplicaRouting.Target target = ReplicaRouting.currentTarget();
+        (target == ReplicaRouting.Target.REPLICA ? replicaConnections : primaryConnections).increment();
+        return target;
+    }
+
+    @Override
+    public String getStatsName() {
+        return "dataSourceRouting";
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("primaryConnections", primaryConnections.sum());
+        stats.put("replicaConnections", replicaConnections.sum());
+        return stats;
+    }
+
+}
@@ -0,0 +1,12 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * Enables the @Scheduled background tasks, e.g. the flush of the PresenceBuffer.
+ */
+@EnableScheduling
+@Configuration
+public class SchedulingConfig {
+}
@@ -1,16 +1,43 @@
 package ch.uzh.ifi.hase.soprafs24.config;
 
+import ch.uzh.ifi.hase.soprafs24.service.TokenIndex;
+import ch.uzh.ifi.hase.soprafs24.service.UserCache;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
 import org.springframework.http.HttpMethod;
+import org.springframework.security.authentication.AuthenticationTrustResolverImpl;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.web.authentication.SimpleUrlAuthenticationFailureHandler;
+import org.springframework.security.web.authentication.www.BasicAuthenticationFilter;
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
+import org.springframework.security.web.savedrequest.NullRequestCache;
+
+import java.util.List;
+import java.util.stream.Collectors;
 
 @Configuration
+@Profile("!reactive")
 @EnableWebSecurity
 public class SecurityConfig extends WebSecurityConfigurerAdapter {
 
+    private final TokenIndex tokenIndex;
+
+    private final UserCache userCache;
+
+    private final List<String> internalAddresses;
+
+    public SecurityConfig(TokenIndex tokenIndex, UserCache userCache,
+                          @Value("${security.internal.allowed-addresses:127.0.0.1/32,::1}") List<String> internalAddresses) {
+        this.tokenIndex = tokenIndex;
+        this.userCache = userCache;
+        this.internalAddresses = internalAddresses;
+    }
+
     @Bean
     public AppAuthenticationSuccessHandler authenticationSuccessHandler(){
         return new AppAuthenticationSuccessHandler("/login_success");
@@ -21,23 +48,79 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
         return new AppLogoutHandler();
     }
 
+    /**
+     * Redirects a failed login to /login_error without storing the exception in
+     * a new session, /login_error doesn't read it.
+     */
+    private SimpleUrlAuthenticationFailureHandler authenticationFailureHandler() {
+        SimpleUrlAuthenticationFailureHandler handler = new SimpleUrlAuthenticationFailureHandler("/login_error");
+        handler.setAllowSessionCreation(false);
+        return handler;
+    }
+
+    /**
+     * Stores the security context in the session like the default repository,
+     * except for bearer token authentications: they are treated as anonymous,
+     * so a token request never creates a session.
+     */
+    private HttpSessionSecurityContextRepository securityContextRepository() {
+        HttpSessionSecurityContextRepository repository = new HttpSessionSecurityContextRepository();
+        repository.setTrustResolver(new AuthenticationTrustResolverImpl() {
+            @Override
+            public boolean isAnonymous(Authentication authentication) {
+                return authentication instanceof BearerTokenAuthentication || super.isAnonymous(authentication);
+            }
+        });
+        return repository;
+    }
+
+    /**
+     * The statistics, metrics and startup report on /internal/** are only served
+     * to the configured addresses (e.g. the loopback or a monitoring host), they
+     * aren't part of the public API.
+     */
+    private String internalAccess() {
+        String expression = internalAddresses.stream()
+                .map(String::trim)
+                .filter(address -> !address.isEmpty())
+                .map(address -> "hasIpAddress('" + address + "')")
+                .collect(Collectors.joining(" or "));
+        return expression.isEmpty() ? "denyAll" : expression;
+    }
+
     @Override
     protected void configure(HttpSecurity http) throws Exception {
         http
+                .securityContext()
+                .securityContextRepository(securityContextRepository())
+                .and()
+                // the login always redirects to /login_success, so a request that needed a login isn't
+                // saved, otherwise every anonymous request to a protected URL would store a session
+                .requestCache().requestCache(new NullRequestCache())
+                .and()
+                .addFilterBefore(new BearerTokenAuthenticationFilter(tokenIndex, userCache), BasicAuthenticationFilter.class)
                 .formLogin()
                 .loginPage("/login")
                 .loginProcessingUrl("/perform_login")
-                .failureUrl("/login_error")
+                .failureHandler(authenticationFailureHandler())
                 .successHandler(authenticationSuccessHandler()) // Here we set the session attribute for the user Id
                 .and()
                 .httpBasic()
                 .and()
                 .authorizeRequests()
+                .mvcMatchers(HttpMethod.GET, "/users/export").authenticated()
+                .mvcMatchers(HttpMethod.GET, "/users/search").authenticated()
+                .mvcMatchers(HttpMethod.GET, "/users/stats").authenticated()
                 .mvcMatchers(HttpMethod.GET, "/users/{id}").authenticated()
                 .mvcMatchers(HttpMethod.GET, "/users").authenticated()
                 .mvcMatchers(HttpMethod.PUT, "/users").authenticated()
+                .mvcMatchers(HttpMethod.POST, "/users/batch").authenticated()
+                .mvcMatchers(HttpMethod.POST, "/token").authenticated()
                 .mvcMatchers(HttpMethod.GET, "/overview").authenticated()
                 .mvcMatchers(HttpMethod.GET, "/profile/**").authenticated()
+                // readiness checks of a load balancer come from outside
+                .mvcMatchers(HttpMethod.GET, "/internal/ready").permitAll()
+                .antMatchers("/internal/**").access(internalAccess())
                 .anyRequest().permitAll()
                 .and()
                 .headers().frameOptions().disable() // for the H2 console
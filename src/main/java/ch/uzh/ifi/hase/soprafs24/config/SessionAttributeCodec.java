@@ -0,0 +1,249 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.core.userdetails.User;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Session Attribute Codec
+ * Encodes the attribute values of a session into a compact binary form. The
+ * values this application stores (the user id, timestamps, the security
+ * context of a form login) are written as a type tag followed by variable
+ * length numbers or UTF-8 strings, e.g. a security context takes the username
+ * and the authority names instead of a few kilobytes of Java serialization.
+ * Every other Serializable value falls back to Java serialization.
+ */
+final class SessionAttributeCodec {
+
+    private static final byte STRING = 1;
+
+    private static final byte LONG = 2;
+
+    private static final byte INTEGER = 3;
+
+    private static final byte TRUE = 4;
+
+    private static final byte FALSE = 5;
+
+    private static final byte SECURITY_CONTEXT = 6;
+
+    private static final byte SERIALIZED = 127;
+
+    private SessionAttributeCodec() {
+    }
+
+    static byte[] encode(Object value) {
+        Output output = new Output();
+        if (value instanceof String) {
+            output.write(STRING);
+            output.writeString((String) value);
+        }
+        else if (value instanceof Long) {
+            output.write(LONG);
+            output.writeVarLong(zigZag((Long) value));
+        }
+        else if (value instanceof Integer) {
+            output.write(INTEGER);
+            output.writeVarLong(zigZag((Integer) value));
+        }
+        else if (value instanceof Boolean) {
+            output.write((Boolean) value ? TRUE : FALSE);
+        }
+        else if (isCompactSecurityContext(value)) {
+            Authentication authentication = ((SecurityContext) value).getAuthentication();
+            output.write(SECURITY_CONTEXT);
+            output.writeString(authentication.getName());
+            output.writeVarLong(authentication.getAuthorities().size());
+            for (GrantedAuthority authority : authentication.getAuthorities()) {
+                output.writeString(authority.getAuthority());
+            }
+        }
+        else if (value instanceof Serializable) {
+            output.write(SERIALIZED);
+            try (ObjectOutputStream objectOutput = new ObjectOutputStream(output)) {
+                objectOutput.writeObject(value);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        else {
+            throw new IllegalArgumentException("Session attributes must be serializable: " + value.getClass().getName());
+        }
+        return output.toByteArray();
+    }
+
+    static Object decode(byte[] bytes, int offset, int length) {
+        Input input = new Input(bytes, offset, length);
+        byte tag = input.read();
+        switch (tag) {
+            case STRING:
+                return input.readString();
+            case LONG:
+                return unZigZag(input.readVarLong());
+            case INTEGER:
+                return (int) unZigZag(input.readVarLong());
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case SECURITY_CONTEXT:
+                String username = input.readString();
+                // every authority takes at least one byte, so the count is bounded like a length
+                int count = input.readLength();
+                List<GrantedAuthority> authorities = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    authorities.add(new SimpleGrantedAuthority(input.readString()));
+                }
+                // the credentials have been erased after the authentication, see isCompactSecurityContext
+                User principal = new User(username, "", authorities);
+                return new SecurityContextImpl(new UsernamePasswordAuthenticationToken(principal, null, authorities));
+            case SERIALIZED:
+                try (ObjectInputStream objectInput = new ObjectInputStream(
+                        new ByteArrayInputStream(bytes, input.position(), offset + length - input.position()))) {
+                    return objectInput.readObject();
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                catch (ClassNotFoundException e) {
+                    throw new IllegalStateException("Session attribute of an unknown class", e);
+                }
+            default:
+                throw new IllegalStateException("Unknown session attribute type " + tag);
+        }
+    }
+
+    /**
+     * Only an authenticated username/password token without credentials, whose
+     * principal is a plain enabled User, can be restored from its name and
+     * authorities alone, e.g. the one of the form login. The details (remote
+     * address) are not kept.
+     */
+    private static boolean isCompactSecurityContext(Object value) {
+        if (value == null || value.getClass() != SecurityContextImpl.class) {
+            return false;
+        }
+        Authentication authentication = ((SecurityContext) value).getAuthentication();
+        if (authentication == null || authentication.getClass() != UsernamePasswordAuthenticationToken.class
+                || !authentication.isAuthenticated() || authentication.getCredentials() != null) {
+            return false;
+        }
+        Object principal = authentication.getPrincipal();
+        if (principal == null || principal.getClass() != User.class) {
+            return false;
+        }
+        User user = (User) principal;
+        return user.isEnabled() && user.isAccountNonExpired() && user.isAccountNonLocked()
+                && user.isCredentialsNonExpired() && user.getUsername().equals(authentication.getName());
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Growing byte buffer with variable length numbers (7 bits per byte) and
+     * length-prefixed UTF-8 strings.
+     */
+    static final class Output extends ByteArrayOutputStream {
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    static final class Input {
+
+        private final byte[] bytes;
+
+        private final int limit;
+
+        private int position;
+
+        Input(byte[] bytes, int offset, int length) {
+            if (offset < 0 || length < 0 || offset + length > bytes.length) {
+                throw new IllegalStateException("Truncated session attributes");
+            }
+            this.bytes = bytes;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+
+        int position() {
+            return position;
+        }
+
+        boolean hasRemaining() {
+            return position < limit;
+        }
+
+        byte read() {
+            if (position >= limit) {
+                throw new IllegalStateException("Truncated session attributes");
+            }
+            return bytes[position++];
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Malformed session attributes");
+        }
+
+        int readLength() {
+            long length = readVarLong();
+            if (length < 0 || length > limit - position) {
+                throw new IllegalStateException("Truncated session attributes");
+            }
+            return (int) length;
+        }
+
+        String readString() {
+            int length = readLength();
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        void skip(int length) {
+            position += length;
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.session.MapSessionRepository;
+import org.springframework.session.config.annotation.web.http.EnableSpringHttpSession;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Session Configuration
+ * Replaces the HttpSession of the servlet container with Spring Session, the
+ * sessions are kept in the repository selected by user.session.store:
+ * - jdbc (default): the HTTP_SESSION table, shared by all instances on the
+ * same database, see CompactJdbcSessionRepository
+ * - memory: a map on the heap of this instance, like the container's sessions
+ */
+@Configuration
+@Profile("!reactive")
+@EnableSpringHttpSession
+public class SessionConfig {
+
+    @Bean
+    @ConditionalOnProperty(name = "user.session.store", havingValue = "jdbc", matchIfMissing = true)
+    public CompactJdbcSessionRepository sessionRepository(JdbcTemplate jdbcTemplate,
+                                                          @Value("${server.servlet.session.timeout:30m}") Duration timeout,
+                                                          @Value("${user.session.batch-size:500}") int batchSize) {
+        return new CompactJdbcSessionRepository(jdbcTemplate, timeout, batchSize);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "user.session.store", havingValue = "memory")
+    public MapSessionRepository memorySessionRepository(@Value("${server.servlet.session.timeout:30m}") Duration timeout) {
+        MapSessionRepository repository = new MapSessionRepository(new ConcurrentHashMap<>());
+        repository.setDefaultMaxInactiveInterval((int) timeout.getSeconds());
+        return repository;
+    }
+
+}
@@ -0,0 +1,33 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import ch.uzh.ifi.hase.soprafs24.service.PresenceBuffer;
+import ch.uzh.ifi.hase.soprafs24.service.UserEventStream;
+import ch.uzh.ifi.hase.soprafs24.service.UserStatistics;
+import ch.uzh.ifi.hase.soprafs24.service.UsernameIndex;
+import ch.uzh.ifi.hase.soprafs24.service.UsernameSearchIndex;
+import org.springframework.boot.LazyInitializationExcludeFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Startup Configuration
+ * The fast-start profile creates beans lazily (spring.main.lazy-initialization),
+ * on the first request that needs them instead of before the server accepts
+ * connections. A few beans must not wait for that:
+ * - PresenceBuffer, UserEventStream: their @Scheduled tasks are only started
+ * for beans that have been created, a lazy buffer would never be flushed
+ * - UserStatistics: counts the status changes of the PresenceBuffer from its creation
+ * - UsernameIndex, UsernameSearchIndex: are built when the application is ready,
+ * not while a request waits for them
+ */
+@Configuration
+public class StartupConfig {
+
+    // static, the filter is needed before the other beans are defined
+    @Bean
+    public static LazyInitializationExcludeFilter eagerBeans() {
+        return LazyInitializationExcludeFilter.forBeanTypes(PresenceBuffer.class, UserEventStream.class,
+                UserStatistics.class, UsernameIndex.class, UsernameSearchIndex.class);
+    }
+
+}
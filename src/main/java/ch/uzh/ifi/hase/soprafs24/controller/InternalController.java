@@ -0,0 +1,78 @@
+package ch.uzh.ifi.hase.soprafs24.controller;
+
+import ch.uzh.ifi.hase.soprafs24.metrics.StartupTimelineReport;
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Internal Controller
+ * This class exposes operational information about the running instance
+ * (e.g., cache statistics and the metrics for Prometheus), it is not part of
+ * the public API: except for the readiness, it only answers requests from
+ * security.internal.allowed-addresses (see SecurityConfig).
+ */
+@RestController
+public class InternalController {
+
+    // the content type of the Prometheus text format
+    private static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final List<StatsSource> statsSources;
+
+    private final PrometheusMeterRegistry meterRegistry;
+
+    private final StartupTimelineReport startupTimelineReport;
+
+    private final ApplicationAvailability applicationAvailability;
+
+    InternalController(List<StatsSource> statsSources, PrometheusMeterRegistry meterRegistry,
+                       StartupTimelineReport startupTimelineReport, ApplicationAvailability applicationAvailability) {
+        this.statsSources = statsSources;
+        this.meterRegistry = meterRegistry;
+        this.startupTimelineReport = startupTimelineReport;
+        this.applicationAvailability = applicationAvailability;
+    }
+
+    @GetMapping(value = "/internal/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseStatus(HttpStatus.OK)
+    public Map<String, Map<String, Number>> getStats() {
+        Map<String, Map<String, Number>> stats = new LinkedHashMap<>();
+        for (StatsSource statsSource : statsSources) {
+            stats.put(statsSource.getStatsName(), statsSource.getStats());
+        }
+        return stats;
+    }
+
+    @GetMapping(value = "/internal/metrics", produces = PROMETHEUS_TEXT)
+    @ResponseStatus(HttpStatus.OK)
+    public String getMetrics() {
+        return meterRegistry.scrape();
+    }
+
+    @GetMapping(value = "/internal/startup", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseStatus(HttpStatus.OK)
+    public Map<String, Object> getStartup() {
+        return startupTimelineReport.getReport();
+    }
+
+    // 503 while the application starts or warms up, for readiness checks of a load balancer
+    @GetMapping(value = "/internal/ready", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, String>> getReadiness() {
+        ReadinessState readinessState = applicationAvailability.getReadinessState();
+        return ResponseEntity.status(readinessState == ReadinessState.ACCEPTING_TRAFFIC ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE)
+                .body(Map.of("readiness", readinessState.name()));
+    }
+
+}
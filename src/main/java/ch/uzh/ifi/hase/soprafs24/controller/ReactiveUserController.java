@@ -0,0 +1,157 @@
+package ch.uzh.ifi.hase.soprafs24.controller;
+
+import ch.uzh.ifi.hase.soprafs24.config.BearerTokenAuthentication;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.json.JsonResponseWriter;
+import ch.uzh.ifi.hase.soprafs24.rest.mapper.DTOMapper;
+import ch.uzh.ifi.hase.soprafs24.service.ReactiveUserService;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.ReactiveSecurityContextHolder;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reactive User Controller
+ * Serves the user endpoints of the UserController on the reactive profile,
+ * with the same paths, status codes and bodies. No request thread waits for
+ * the database or for a password hash.
+ */
+@RestController
+@Profile("reactive")
+public class ReactiveUserController {
+
+    private static final byte[] LOGIN_ERROR_JSON = "{ \"error\":\"The credentials are incorrect\" }".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] LOGIN_SUCCESS_JSON = "{ \"message\":\"Login successful\" }".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] CURRENT_USER_ID = "{\"id\":".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] CURRENT_USER_NAME = ", \"name\":".getBytes(StandardCharsets.UTF_8);
+
+    private static final int CURRENT_USER_BUFFER_SIZE = 128;
+
+    private final ReactiveUserService userService;
+
+    ReactiveUserController(ReactiveUserService userService) {
+        this.userService = userService;
+    }
+
+    @GetMapping(value = "/users", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<Flux<UserGetDTO>>> getAllUsers() {
+        // the users are only read if the client's copy isn't current, otherwise the body isn't subscribed to
+        return userService.getUsersETag().map(eTag -> ResponseEntity.ok()
+                .eTag(eTag)
+                .cacheControl(CacheControl.noCache())
+                .body(userService.getUsers().map(this::convertEntityToUserGetDTO)));
+    }
+
+    @RequestMapping(value = "/login_error", produces = MediaType.APPLICATION_JSON_VALUE)
+    public byte[] loginError() {
+        return LOGIN_ERROR_JSON;
+    }
+
+    @RequestMapping(value = "/login_success", produces = MediaType.APPLICATION_JSON_VALUE)
+    public byte[] loginSuccess() {
+        return LOGIN_SUCCESS_JSON;
+    }
+
+    @GetMapping("/users/{id}")
+    public Mono<ResponseEntity<UserGetDTO>> getUser(@PathVariable Long id) {
+        // a matching If-None-Match is answered with 304 by the result handler
+        return userService.getUser(id).map(user -> ResponseEntity.ok()
+                .eTag(userService.getUserETag(user))
+                .cacheControl(CacheControl.noCache())
+                .body(convertEntityToUserGetDTO(user)));
+    }
+
+    @PostMapping("/users")
+    @ResponseStatus(HttpStatus.CREATED) // 201
+    public Mono<UserGetDTO> createUser(@RequestBody UserPostDTO userPostDTO) {
+        User userInput = DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO);
+        return userService.createUser(userInput).map(this::convertEntityToUserGetDTO);
+    }
+
+    @PutMapping("/users/{id}")
+    @ResponseStatus(HttpStatus.NO_CONTENT) // 204
+    public Mono<Void> updateUser(@RequestBody UserPostDTO userPostDTO, @PathVariable Long id, ServerWebExchange exchange) {
+        User userInput = DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO);
+        return getAuthenticatedUserId(exchange)
+                .flatMap(uid -> userService.getUser(id).flatMap(user -> {
+                    if (!id.equals(uid)) {
+                        return Mono.error(new ResponseStatusException(HttpStatus.CONFLICT, "We can only update our own profile"));
+                    }
+                    return userService.updateUser(user, userInput);
+                }));
+    }
+
+    @GetMapping(value = "/current_user", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseStatus(HttpStatus.OK)
+    public Mono<byte[]> getCurrentUser(ServerWebExchange exchange) {
+        return getAuthenticatedUserId(exchange)
+                .flatMap(userService::getUser)
+                .map(this::writeCurrentUser);
+    }
+
+    /**
+     * @return {"id":1, "name":"username"} with the username escaped, like the UserController
+     */
+    private byte[] writeCurrentUser(User user) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(CURRENT_USER_BUFFER_SIZE);
+        JsonResponseWriter writer = new JsonResponseWriter(body, CURRENT_USER_BUFFER_SIZE);
+        try {
+            writer.writeRaw(CURRENT_USER_ID);
+            writer.writeNumber(user.getId());
+            writer.writeRaw(CURRENT_USER_NAME);
+            writer.writeString(user.getUsername());
+            writer.writeByte('}');
+            writer.flushBuffer();
+        }
+        catch (IOException e) {
+            // not thrown by a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+        return body.toByteArray();
+    }
+
+    private UserGetDTO convertEntityToUserGetDTO(User user) {
+        UserGetDTO userGetDTO = DTOMapper.INSTANCE.convertEntityToUserGetDTO(user);
+        userGetDTO.setStatus(userService.getStatus(user));
+        return userGetDTO;
+    }
+
+    /**
+     * @see UserController
+     */
+    private Mono<Long> getAuthenticatedUserId(ServerWebExchange exchange) {
+        return ReactiveSecurityContextHolder.getContext()
+                .map(SecurityContext::getAuthentication)
+                .filter(Authentication::isAuthenticated)
+                .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Unauthorized")))
+                .flatMap(auth -> {
+                    if (auth instanceof BearerTokenAuthentication) {
+                        return Mono.just(((BearerTokenAuthentication) auth).getUserId());
+                    }
+                    return exchange.getSession()
+                            .flatMap(session -> Mono.justOrEmpty(session.<Object>getAttribute("uid")))
+                            .map(uid -> Long.parseLong(uid.toString()))
+                            .switchIfEmpty(Mono.defer(() -> userService.getUser(auth.getName()).map(User::getId)));
+                });
+    }
+
+}
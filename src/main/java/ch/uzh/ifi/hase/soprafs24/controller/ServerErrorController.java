@@ -1,6 +1,8 @@
 package ch.uzh.ifi.hase.soprafs24.controller;
 
+import ch.uzh.ifi.hase.soprafs24.rest.json.JsonResponseWriter;
 import org.springframework.boot.web.servlet.error.ErrorController;
+import org.springframework.context.annotation.Profile;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -8,16 +10,34 @@ import org.springframework.web.bind.annotation.RestController;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 @RestController
+@Profile("!reactive")
 public class ServerErrorController implements ErrorController {
     private static final String PATH = "/error";
 
+    private static final byte[] STATUS = "{\"status\":".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] ERROR = ", \"error\":".getBytes(StandardCharsets.UTF_8);
+
+    private static final int BUFFER_SIZE = 256;
+
     @RequestMapping(value = PATH, produces = MediaType.APPLICATION_JSON_VALUE)
-    public String handleError(HttpServletRequest request) {
-        String statusCode = request.getAttribute(RequestDispatcher.ERROR_STATUS_CODE).toString();
-        String statusMessage = request.getAttribute(RequestDispatcher.ERROR_MESSAGE).toString();
-        return String.format("{\"status\":%s, \"error\":\"%s\"}", statusCode, statusMessage);
+    public void handleError(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Object statusCode = request.getAttribute(RequestDispatcher.ERROR_STATUS_CODE);
+        Object statusMessage = request.getAttribute(RequestDispatcher.ERROR_MESSAGE);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        // {"status":403, "error":"Forbidden"} with the message escaped
+        JsonResponseWriter writer = new JsonResponseWriter(response.getOutputStream(), BUFFER_SIZE);
+        writer.writeRaw(STATUS);
+        writer.writeNumber(statusCode instanceof Integer ? (Integer) statusCode : response.getStatus());
+        writer.writeRaw(ERROR);
+        writer.writeString(statusMessage == null ? "" : statusMessage.toString());
+        writer.writeByte('}');
+        writer.flushBuffer();
         //{"timestamp":"2024-03-05T04:30:11.658+00:00","status":403,"error":"Forbidden","message":"Access Denied","path":"/users/1"}
     }
 
@@ -1,20 +1,56 @@
 package ch.uzh.ifi.hase.soprafs24.controller;
 
+import ch.uzh.ifi.hase.soprafs24.config.BearerTokenAuthentication;
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.TokenGetDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserImportGetDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserImportItemGetDTO;
 import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserPageGetDTO;
 import ch.uzh.ifi.hase.soprafs24.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserSearchGetDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserStatsGetDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.json.JsonResponseWriter;
 import ch.uzh.ifi.hase.soprafs24.rest.mapper.DTOMapper;
+import ch.uzh.ifi.hase.soprafs24.service.OptimisticRetry;
+import ch.uzh.ifi.hase.soprafs24.service.UserEventStream;
+import ch.uzh.ifi.hase.soprafs24.service.UserExportService;
+import ch.uzh.ifi.hase.soprafs24.service.UserImportService;
 import ch.uzh.ifi.hase.soprafs24.service.UserService;
+import ch.uzh.ifi.hase.soprafs24.service.UserStatistics;
+import ch.uzh.ifi.hase.soprafs24.service.UsernameSearchIndex;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * User Controller
@@ -24,48 +60,214 @@ import java.util.List;
  * UserService and finally return the result.
  */
 @RestController
+@Profile("!reactive")
 public class UserController {
 
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    private static final int MAX_SEARCH_LIMIT = 100;
+
+    // same configuration as the default Jackson message converter, so batches are
+    // read like single request bodies
+    private static final ObjectMapper OBJECT_MAPPER = Jackson2ObjectMapperBuilder.json().build();
+
+    // the fixed responses are encoded once
+    private static final byte[] LOGIN_ERROR_JSON = "{ \"error\":\"The credentials are incorrect\" }".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] LOGIN_SUCCESS_JSON = "{ \"message\":\"Login successful\" }".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] CURRENT_USER_ID = "{\"id\":".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] CURRENT_USER_NAME = ", \"name\":".getBytes(StandardCharsets.UTF_8);
+
+    private static final int CURRENT_USER_BUFFER_SIZE = 128;
+
     private final UserService userService;
+
+    private final UserEventStream userEventStream;
+
+    private final UserImportService userImportService;
+
+    private final UserExportService userExportService;
+
+    private final UserStatistics userStatistics;
+
+    private final OptimisticRetry optimisticRetry;
 //    private UserInfo uInfo;
 
-    UserController(UserService userService) {
+    UserController(UserService userService, UserEventStream userEventStream, UserImportService userImportService,
+                   UserExportService userExportService, UserStatistics userStatistics, OptimisticRetry optimisticRetry) {
         this.userService = userService;
+        this.userEventStream = userEventStream;
+        this.userImportService = userImportService;
+        this.userExportService = userExportService;
+        this.userStatistics = userStatistics;
+        this.optimisticRetry = optimisticRetry;
     }
 
-    @GetMapping("/users")
+    @GetMapping(value = "/users", params = "limit")
     @ResponseStatus(HttpStatus.OK)
     @ResponseBody
-    public List<UserGetDTO> getAllUsers() {
-        // fetch all users in the internal representation
-        List<User> users = userService.getUsers();
-        List<UserGetDTO> userGetDTOs = new ArrayList<>();
+    public UserPageGetDTO getUsersPage(@RequestParam(required = false) Long after, @RequestParam int limit) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    String.format("The limit must be between 1 and %d", MAX_PAGE_SIZE));
+        }
+        // fetch one page of users in the internal representation
+        List<User> users = userService.getUsers(after, limit);
+        List<UserGetDTO> userGetDTOs = new ArrayList<>(users.size());
 
         // convert each user to the API representation
         for (User user : users) {
-            userGetDTOs.add(DTOMapper.INSTANCE.convertEntityToUserGetDTO(user));
+            userGetDTOs.add(convertEntityToUserGetDTO(user));
+        }
+
+        UserPageGetDTO page = new UserPageGetDTO();
+        page.setUsers(userGetDTOs);
+        // a full page means there may be more users after the last one
+        if (users.size() == limit) {
+            page.setNextCursor(users.get(users.size() - 1).getId());
+        }
+        return page;
+    }
+
+    @GetMapping("/users")
+    public void getAllUsers(WebRequest request, HttpServletResponse response) throws IOException {
+        // a client whose copy is still current gets 304 without a single user being read
+        if (request.checkNotModified(userService.getUsersETag())) {
+            return;
+        }
+        response.setStatus(HttpStatus.OK.value());
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().getHeaderValue());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+
+        // the users are written to the response while they are read from the database,
+        // so neither the entities nor the DTOs of the whole table are held in memory
+        JsonResponseWriter writer = new JsonResponseWriter(response.getOutputStream());
+        boolean[] first = {true};
+        writer.writeByte('[');
+        userService.streamUsers(user -> {
+            try {
+                if (!first[0]) {
+                    writer.writeByte(',');
+                }
+                writer.writeUser(convertEntityToUserGetDTO(user));
+                first[0] = false;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        writer.writeByte(']');
+        writer.flushBuffer();
+    }
+
+    @GetMapping("/users/stats")
+    @ResponseStatus(HttpStatus.OK)
+    @ResponseBody
+    public UserStatsGetDTO getUserStats() {
+        // read from counters, the same work for ten users as for ten million
+        long total = 0;
+        Map<String, Long> usersByStatus = new LinkedHashMap<>();
+        for (Map.Entry<UserStatus, Long> entry : userStatistics.getStatusCounts().entrySet()) {
+            usersByStatus.put(entry.getKey().name(), entry.getValue());
+            total += entry.getValue();
+        }
+        Map<String, Long> signupsPerDay = new LinkedHashMap<>();
+        for (Map.Entry<LocalDate, Long> entry : userStatistics.getSignupsPerDay().entrySet()) {
+            signupsPerDay.put(entry.getKey().toString(), entry.getValue());
+        }
+
+        UserStatsGetDTO userStatsGetDTO = new UserStatsGetDTO();
+        userStatsGetDTO.setTotal(total);
+        userStatsGetDTO.setUsersByStatus(usersByStatus);
+        userStatsGetDTO.setSignupsPerDay(signupsPerDay);
+        return userStatsGetDTO;
+    }
+
+    @GetMapping("/users/search")
+    @ResponseStatus(HttpStatus.OK)
+    @ResponseBody
+    public List<UserSearchGetDTO> searchUsers(@RequestParam String prefix, @RequestParam(defaultValue = "10") int limit) {
+        if (limit < 1 || limit > MAX_SEARCH_LIMIT) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    String.format("The limit must be between 1 and %d", MAX_SEARCH_LIMIT));
+        }
+        // answered from the in-memory index, the database isn't queried
+        List<UsernameSearchIndex.Match> matches = userService.searchUsernames(prefix, limit);
+        List<UserSearchGetDTO> userSearchGetDTOs = new ArrayList<>(matches.size());
+        for (UsernameSearchIndex.Match match : matches) {
+            UserSearchGetDTO userSearchGetDTO = new UserSearchGetDTO();
+            userSearchGetDTO.setId(match.getId());
+            userSearchGetDTO.setUsername(match.getUsername());
+            userSearchGetDTOs.add(userSearchGetDTO);
+        }
+        return userSearchGetDTOs;
+    }
+
+    @GetMapping("/users/export")
+    public void exportUsers(@RequestParam(defaultValue = "ndjson") String format,
+                            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                            HttpServletResponse response) throws IOException {
+        UserExportFormat exportFormat = UserExportFormat.forName(format);
+        if (exportFormat == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The format must be ndjson or csv");
+        }
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(exportFormat.getContentType());
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"users." + exportFormat.getExtension() + "\"");
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+        OutputStream outputStream = response.getOutputStream();
+        if (acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip")) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+            outputStream = new GZIPOutputStream(outputStream, 8192);
+        }
+
+        // every row is written as soon as the cursor returns it, the export needs the
+        // same memory for ten users as for ten million
+        try (UserExportFormat.UserWriter writer = exportFormat.open(outputStream)) {
+            userExportService.exportUsers(user -> {
+                try {
+                    writer.write(convertEntityToUserGetDTO(user));
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
         }
-        return userGetDTOs;
+    }
+
+    @GetMapping(value = "/users/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamUserEvents(@RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+        // created, updated and status events of all users, instead of polling GET /users
+        return userEventStream.subscribe(lastEventId);
     }
 
     @RequestMapping(value = "/login_error", produces = MediaType.APPLICATION_JSON_VALUE)
-    public String loginError() {
-        return "{ \"error\":\"The credentials are incorrect\" }";
+    public byte[] loginError() {
+        return LOGIN_ERROR_JSON;
     }
 
     @RequestMapping(value = "/login_success", produces = MediaType.APPLICATION_JSON_VALUE)
-    public String loginSuccess() {
-        return "{ \"message\":\"Login successful\" }";
+    public byte[] loginSuccess() {
+        return LOGIN_SUCCESS_JSON;
     }
 
     @GetMapping("/users/{id}")
-    @ResponseStatus(HttpStatus.OK)
     @ResponseBody
-    public UserGetDTO getUser(@PathVariable Long id) {
-        // fetch user from the id in the internal representation
-        User user = userService.getUser(id);
+    public ResponseEntity<UserGetDTO> getUser(@PathVariable Long id, WebRequest request) {
+        // compare the version before the user is loaded, a missing user gets its 404 below
+        Long version = userService.getVersion(id);
+        if (version != null && request.checkNotModified(userService.getUserETag(id, version))) {
+            return null;
+        }
+        // fetch user from the id in the internal representation, at least in the version of the ETag
+        User user = version == null ? userService.getUser(id) : userService.getUser(id, version);
         // convert user to the API representation and return
-        return DTOMapper.INSTANCE.convertEntityToUserGetDTO(user);
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noCache())
+                .body(convertEntityToUserGetDTO(user));
     }
 
     @PostMapping("/users")
@@ -78,18 +280,56 @@ public class UserController {
         // create user
         User createdUser = userService.createUser(userInput);
         // convert internal representation of user back to API
-        return DTOMapper.INSTANCE.convertEntityToUserGetDTO(createdUser);
+        return convertEntityToUserGetDTO(createdUser);
+    }
+
+    @PostMapping(value = "/users/batch", consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    @ResponseStatus(HttpStatus.OK)
+    @ResponseBody
+    public UserImportGetDTO importUsers(HttpServletRequest request) throws IOException {
+        // a JSON array and newline delimited JSON are both read as a sequence of users
+        int maxBatchSize = userImportService.getMaxBatchSize();
+        List<User> users = new ArrayList<>();
+        try (MappingIterator<UserPostDTO> userPostDTOs = OBJECT_MAPPER.readerFor(UserPostDTO.class)
+                .readValues(request.getInputStream())) {
+            // one user more than allowed is enough for the 413, the rest isn't read
+            while (users.size() <= maxBatchSize && userPostDTOs.hasNextValue()) {
+                users.add(DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTOs.nextValue()));
+            }
+        }
+        catch (JsonProcessingException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The users could not be read: " + e.getOriginalMessage());
+        }
+
+        List<UserImportService.ImportResult> results = userImportService.importUsers(users);
+        List<UserImportItemGetDTO> items = new ArrayList<>(results.size());
+        int created = 0;
+        for (UserImportService.ImportResult result : results) {
+            UserImportItemGetDTO item = new UserImportItemGetDTO();
+            item.setIndex(result.getIndex());
+            item.setUsername(result.getUsername());
+            item.setStatus(result.getStatus().value());
+            item.setId(result.getId());
+            item.setError(result.getError());
+            items.add(item);
+            if (result.getStatus() == HttpStatus.CREATED) {
+                created++;
+            }
+        }
+        UserImportGetDTO userImportGetDTO = new UserImportGetDTO();
+        userImportGetDTO.setCreated(created);
+        userImportGetDTO.setRejected(results.size() - created);
+        userImportGetDTO.setResults(items);
+        return userImportGetDTO;
     }
 
     @PutMapping("/users/{id}")
     @ResponseStatus(HttpStatus.NO_CONTENT) // 204
     @ResponseBody
-    public void updateUser(@RequestBody UserPostDTO userPostDTO, @PathVariable Long id, HttpSession session) {
-        // convert API user to internal representation
-        Object uid = session.getAttribute("uid");
-        if(uid == null) {
-            throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Unauthorized");
-        }
+    public void updateUser(@RequestBody UserPostDTO userPostDTO, @PathVariable Long id,
+                           @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+                           HttpServletRequest request, HttpServletResponse response) {
+        Long uid = getAuthenticatedUserId(request);
 
         User userById = userService.getUser(id);
         String baseErrorMessage = "User with userId %d was not found";
@@ -99,30 +339,119 @@ public class UserController {
         }
 
         User userInput = DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO);
-        if(id != Long.parseLong(uid.toString())) {
+        if(!id.equals(uid)) {
             throw new ResponseStatusException(HttpStatus.CONFLICT, "We can only update our own profile");
         }
-        // update user
-        userService.updateUser(id, userInput);
+        // update user, with If-Match only if it still is in the version the client has seen,
+        // otherwise repeated if it has been changed concurrently (e.g. by a status change)
+        Long expectedVersion = expectedVersion(ifMatch, id);
+        User updatedUser;
+        try {
+            updatedUser = expectedVersion != null ? userService.updateUser(id, userInput, expectedVersion)
+                    : optimisticRetry.run(() -> userService.updateUser(id, userInput));
+        }
+        catch (OptimisticLockingFailureException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "The user has been changed concurrently, please try again");
+        }
+        response.setHeader(HttpHeaders.ETAG, "\"" + userService.getUserETag(id, updatedUser.getVersion()) + "\"");
     }
+
+    /**
+     * Returns the version of the user in the If-Match header, the ETags are
+     * those of GET /users/{id} ("id-version" with an optional pending status).
+     *
+     * @return null without a header or for "*"
+     * @throws org.springframework.web.server.ResponseStatusException 412 if no ETag is one of this user
+     */
+    private static Long expectedVersion(String ifMatch, Long id) {
+        if (ifMatch == null || ifMatch.trim().equals("*")) {
+            return null;
+        }
+        for (String etag : ifMatch.split(",")) {
+            etag = etag.trim();
+            // weak ETags never match (strong comparison)
+            if (etag.length() < 2 || etag.charAt(0) != '"' || etag.charAt(etag.length() - 1) != '"') {
+                continue;
+            }
+            String[] parts = etag.substring(1, etag.length() - 1).split("-");
+            if (parts.length >= 2 && parts[0].equals(id.toString())) {
+                try {
+                    return Long.parseLong(parts[1]);
+                }
+                catch (NumberFormatException e) {
+                    // not one of our ETags
+                }
+            }
+        }
+        throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "The If-Match header doesn't match the user");
+    }
+
+    @PostMapping("/token")
+    @ResponseStatus(HttpStatus.CREATED) // 201
+    @ResponseBody
+    public TokenGetDTO createToken(HttpServletRequest request) {
+        // a new token replaces the previous one of the authenticated user
+        Long id = getAuthenticatedUserId(request);
+        User user;
+        try {
+            user = optimisticRetry.run(() -> userService.issueToken(id));
+        }
+        catch (OptimisticLockingFailureException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "The user has been changed concurrently, please try again");
+        }
+        TokenGetDTO tokenGetDTO = new TokenGetDTO();
+        tokenGetDTO.setToken(user.getToken());
+        tokenGetDTO.setExpiresAt(user.getTokenExpiry());
+        return tokenGetDTO;
+    }
+
     @GetMapping(value = "/current_user", produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseStatus(HttpStatus.OK)
-    public String getCurrentUser(HttpSession session) {
-        // convert API user to internal representation
+    public void getCurrentUser(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Long id = getAuthenticatedUserId(request);
+        User user = userService.getUser(id);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        // {"id":1, "name":"username"} with the username escaped
+        JsonResponseWriter writer = new JsonResponseWriter(response.getOutputStream(), CURRENT_USER_BUFFER_SIZE);
+        writer.writeRaw(CURRENT_USER_ID);
+        writer.writeNumber(id);
+        writer.writeRaw(CURRENT_USER_NAME);
+        writer.writeString(user.getUsername());
+        writer.writeByte('}');
+        writer.flushBuffer();
+    }
+
+    /**
+     * Converts the user to the API representation with its current presence
+     * status, which may not have been written to the database yet.
+     */
+    private UserGetDTO convertEntityToUserGetDTO(User user) {
+        UserGetDTO userGetDTO = DTOMapper.INSTANCE.convertEntityToUserGetDTO(user);
+        userGetDTO.setStatus(userService.getStatus(user));
+        return userGetDTO;
+    }
+
+    /**
+     * Returns the id of the authenticated user. It comes from the bearer token,
+     * from the session (form login) or, for HTTP Basic, from the username.
+     *
+     * @throws org.springframework.web.server.ResponseStatusException 401 if the request isn't authenticated
+     */
+    private Long getAuthenticatedUserId(HttpServletRequest request) {
         Authentication auth = SecurityContextHolder.getContext().getAuthentication();
 
         if(auth == null || auth.getName().equals("anonymousUser")) {
             throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Unauthorized");
         }
+        if (auth instanceof BearerTokenAuthentication) {
+            return ((BearerTokenAuthentication) auth).getUserId();
+        }
 
-        System.out.println("auth.getName():" + auth.getName());
-        // convert internal representation of user back to API
-        if (session.getAttribute("uid") == null) {
-            User user = userService.getUser(auth.getName());
-            session.setAttribute("uid", user.getId());
+        HttpSession session = request.getSession(false);
+        Object uid = session == null ? null : session.getAttribute("uid");
+        if (uid != null) {
+            return Long.parseLong(uid.toString());
         }
-        Long id = Long.parseLong(session.getAttribute("uid").toString());
-        User user = userService.getUser(id);
-        return String.format("{\"id\":%s, \"name\":\"%s\"}", id, user.getUsername());
+        return userService.getUser(auth.getName()).getId();
     }
 }
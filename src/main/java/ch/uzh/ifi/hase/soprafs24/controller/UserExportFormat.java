@@ -0,0 +1,134 @@
+package ch.uzh.ifi.hase.soprafs24.controller;
+
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.json.JsonResponseWriter;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+
+/**
+ * The formats of GET /users/export. Each one writes the users to the output
+ * stream as they come, nothing is collected.
+ */
+enum UserExportFormat {
+
+    /**
+     * One UserGetDTO per line, in the same JSON as GET /users.
+     */
+    NDJSON("ndjson", "application/x-ndjson") {
+        @Override
+        UserWriter open(OutputStream outputStream) {
+            JsonResponseWriter writer = new JsonResponseWriter(outputStream);
+            return new UserWriter() {
+                @Override
+                public void write(UserGetDTO userGetDTO) throws IOException {
+                    writer.writeUser(userGetDTO);
+                    writer.writeByte('\n');
+                }
+
+                @Override
+                public void close() throws IOException {
+                    writer.flushBuffer();
+                    outputStream.close();
+                }
+            };
+        }
+    },
+
+    /**
+     * RFC 4180 with a header line, dates in ISO 8601 (UTC).
+     */
+    CSV("csv", "text/csv;charset=UTF-8") {
+        @Override
+        UserWriter open(OutputStream outputStream) throws IOException {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            writer.write("id,username,birthday,creationDate,status\r\n");
+            return new UserWriter() {
+                @Override
+                public void write(UserGetDTO userGetDTO) throws IOException {
+                    writer.write(String.valueOf(userGetDTO.getId()));
+                    writer.write(',');
+                    writeEscaped(writer, userGetDTO.getUsername());
+                    writer.write(',');
+                    writeDate(writer, userGetDTO.getBirthday());
+                    writer.write(',');
+                    writeDate(writer, userGetDTO.getCreationDate());
+                    writer.write(',');
+                    writer.write(userGetDTO.getStatus() == null ? "" : userGetDTO.getStatus().name());
+                    writer.write("\r\n");
+                }
+
+                @Override
+                public void close() throws IOException {
+                    writer.close();
+                }
+            };
+        }
+    };
+
+    private final String extension;
+
+    private final String contentType;
+
+    UserExportFormat(String extension, String contentType) {
+        this.extension = extension;
+        this.contentType = contentType;
+    }
+
+    String getExtension() {
+        return extension;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return a writer for the users, closing it closes the output stream
+     */
+    abstract UserWriter open(OutputStream outputStream) throws IOException;
+
+    /**
+     * @return the format with the given query parameter value, null if there is none
+     */
+    static UserExportFormat forName(String name) {
+        for (UserExportFormat format : values()) {
+            if (format.extension.equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    private static void writeEscaped(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    private static void writeDate(Writer writer, Date date) throws IOException {
+        if (date != null) {
+            writer.write(DateTimeFormatter.ISO_INSTANT.format(date.toInstant()));
+        }
+    }
+
+    interface UserWriter extends Closeable {
+
+        void write(UserGetDTO userGetDTO) throws IOException;
+    }
+
+}
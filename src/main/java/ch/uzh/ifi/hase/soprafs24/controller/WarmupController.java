@@ -0,0 +1,37 @@
+package ch.uzh.ifi.hase.soprafs24.controller;
+
+import ch.uzh.ifi.hase.soprafs24.service.WarmupService;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * Warmup Controller
+ * Handles the warmup requests App Engine sends to a new instance before it
+ * routes traffic to it (inbound_services: warmup in app.yaml). The response is
+ * sent once the WarmupService has finished, always with 200: an instance that
+ * missed the latency target still serves, the result is in the body.
+ */
+@RestController
+@Profile("!reactive")
+public class WarmupController {
+
+    private final WarmupService warmupService;
+
+    WarmupController(WarmupService warmupService) {
+        this.warmupService = warmupService;
+    }
+
+    @GetMapping(value = "/_ah/warmup", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseStatus(HttpStatus.OK)
+    public Map<String, Number> warmup() {
+        warmupService.warmUp();
+        return warmupService.getStats();
+    }
+
+}
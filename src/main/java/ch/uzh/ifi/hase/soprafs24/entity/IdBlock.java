@@ -0,0 +1,44 @@
+package ch.uzh.ifi.hase.soprafs24.entity;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+/**
+ * Internal IdBlock Representation
+ * This class stores the high-water mark of an id sequence (e.g., the one of
+ * the USER table). An application instance reserves a block of ids by moving
+ * the mark forward while holding a row lock, and then hands out the ids inside
+ * that block from memory.
+ * - name -> the name of the sequence, composes the primary key
+ * - nextValue -> the first id that has not been reserved by any instance yet
+ */
+@Entity
+@Table(name = "ID_BLOCK")
+public class IdBlock implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    @Id
+    @Column(nullable = false, unique = true)
+    private String name;
+
+    @Column(nullable = false)
+    private Long nextValue;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Long getNextValue() {
+        return nextValue;
+    }
+
+    public void setNextValue(Long nextValue) {
+        this.nextValue = nextValue;
+    }
+
+}
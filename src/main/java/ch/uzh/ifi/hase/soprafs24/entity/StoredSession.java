@@ -0,0 +1,90 @@
+package ch.uzh.ifi.hase.soprafs24.entity;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+/**
+ * Internal StoredSession Representation
+ * This class defines the table of the HTTP sessions, so that it is created
+ * with the rest of the schema. The rows are only read and written by the
+ * CompactJdbcSessionRepository.
+ * - id -> the session id, composes the primary key
+ * - lastAccessedTime, expiryTime -> epoch millis, the expiry is indexed for the cleanup
+ * - maxInactiveSeconds -> negative if the session never expires
+ * - attributes -> all attributes in the compact binary form of the repository
+ */
+@Entity
+@Table(name = "HTTP_SESSION", indexes = @Index(name = "HTTP_SESSION_EXPIRY", columnList = "expiryTime"))
+public class StoredSession implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    @Id
+    @Column(nullable = false, unique = true, length = 36)
+    private String id;
+
+    @Column(nullable = false)
+    private Long creationTime;
+
+    @Column(nullable = false)
+    private Long lastAccessedTime;
+
+    @Column(nullable = false)
+    private Long maxInactiveSeconds;
+
+    @Column(nullable = false)
+    private Long expiryTime;
+
+    @Lob
+    @Column(nullable = false)
+    private byte[] attributes;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Long getCreationTime() {
+        return creationTime;
+    }
+
+    public void setCreationTime(Long creationTime) {
+        this.creationTime = creationTime;
+    }
+
+    public Long getLastAccessedTime() {
+        return lastAccessedTime;
+    }
+
+    public void setLastAccessedTime(Long lastAccessedTime) {
+        this.lastAccessedTime = lastAccessedTime;
+    }
+
+    public Long getMaxInactiveSeconds() {
+        return maxInactiveSeconds;
+    }
+
+    public void setMaxInactiveSeconds(Long maxInactiveSeconds) {
+        this.maxInactiveSeconds = maxInactiveSeconds;
+    }
+
+    public Long getExpiryTime() {
+        return expiryTime;
+    }
+
+    public void setExpiryTime(Long expiryTime) {
+        this.expiryTime = expiryTime;
+    }
+
+    public byte[] getAttributes() {
+        return attributes;
+    }
+
+    public void setAttributes(byte[] attributes) {
+        this.attributes = attributes;
+    }
+
+}
@@ -0,0 +1,43 @@
+package ch.uzh.ifi.hase.soprafs24.entity;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+/**
+ * Internal TableVersion Representation
+ * This class defines the table of the change counters, so that it is created
+ * with the rest of the schema. The rows are only read and written by the
+ * UserTableVersion.
+ * - name -> the name of the counted table (e.g., USER), composes the primary key
+ * - version -> incremented in the transaction of every change of the table
+ */
+@Entity
+@Table(name = "TABLE_VERSION")
+public class TableVersion implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    @Id
+    @Column(nullable = false, unique = true)
+    private String name;
+
+    @Column(nullable = false)
+    private Long version;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+}
@@ -19,6 +19,7 @@ import java.util.Date;
  */
 @Entity
 @Table(name = "USER")
+@EntityListeners(UserEntityListener.class)
 public class User implements Serializable {
 
     private static final long serialVersionUID = 1L;
@@ -43,7 +44,15 @@ public class User implements Serializable {
     @Column(nullable = false, unique = true)
     private String token;
 
-    @Column(nullable = false)
+    @Column()
+    private Date tokenExpiry;
+
+    // incremented on every change, also by the PresenceBuffer; it is the ETag of the user
+    @Version
+    private Long version;
+
+    // only written by the PresenceBuffer, so an entity update can't overwrite a newer status
+    @Column(nullable = false, updatable = false)
     private UserStatus status;
 
     public Long getId() {
@@ -86,6 +95,22 @@ public class User implements Serializable {
         this.token = token;
     }
 
+    public Date getTokenExpiry() {
+        return tokenExpiry;
+    }
+
+    public void setTokenExpiry(Date tokenExpiry) {
+        this.tokenExpiry = tokenExpiry;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
     public UserStatus getStatus() {
         return status;
     }
@@ -0,0 +1,52 @@
+package ch.uzh.ifi.hase.soprafs24.entity;
+
+import ch.uzh.ifi.hase.soprafs24.service.UserCache;
+import ch.uzh.ifi.hase.soprafs24.service.UserTableVersion;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+/**
+ * User Entity Listener
+ * Hibernate calls this listener whenever a User has been written to the
+ * database, this is where the in-memory copies of the user and the version of
+ * the USER table are kept up to date.
+ * The listener is created by Hibernate through Spring, the beans are looked up
+ * lazily since the listener is created together with the EntityManagerFactory.
+ */
+public class UserEntityListener {
+
+    @Autowired
+    private ObjectProvider<UserCache> userCache;
+
+    @Autowired
+    private ObjectProvider<UserTableVersion> userTableVersion;
+
+    @PostUpdate
+    @PostRemove
+    public void userChanged(User user) {
+        // the provider is missing when Hibernate had to create the listener itself
+        UserCache cache = userCache == null ? null : userCache.getIfAvailable();
+        if (cache != null) {
+            cache.evict(user.getId());
+        }
+        tableChanged();
+    }
+
+    @PostPersist
+    public void userCreated(User user) {
+        tableChanged();
+    }
+
+    // counted once the transaction that has written the user has committed
+    private void tableChanged() {
+        UserTableVersion tableVersion = userTableVersion == null ? null : userTableVersion.getIfAvailable();
+        if (tableVersion != null) {
+            tableVersion.increment();
+        }
+    }
+
+}
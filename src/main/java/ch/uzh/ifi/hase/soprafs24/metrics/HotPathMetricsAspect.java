@@ -0,0 +1,133 @@
+package ch.uzh.ifi.hase.soprafs24.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hot Path Metrics
+ * Times every call of the UserController endpoints, the UserService and the
+ * UserRepository methods and of CustomAuthenticationProvider.authenticate.
+ * Per method there is a timer with a percentile histogram (hotpath_calls), a
+ * counter of the calls that threw (hotpath_errors, by exception) and a gauge
+ * of the calls in progress (hotpath_in_flight).
+ * The meters are looked up once per method and kept by the join point, so a
+ * call costs a map lookup and the lock-free updates of the meters. Overloads
+ * (e.g. UserService.getUser) share the meters of their name, like their tags.
+ */
+@Aspect
+@Component
+public class HotPathMetricsAspect {
+
+    private final MeterRegistry registry;
+
+    private final ConcurrentMap<JoinPoint.StaticPart, MethodMeters> meters = new ConcurrentHashMap<>();
+
+    // by layer, class and method name, the identity of the meters in the registry
+    private final ConcurrentMap<String, MethodMeters> metersByName = new ConcurrentHashMap<>();
+
+    public HotPathMetricsAspect(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Around("execution(public * ch.uzh.ifi.hase.soprafs24.controller.UserController.*(..))")
+    public Object timeController(ProceedingJoinPoint joinPoint) throws Throwable {
+        return time("controller", joinPoint);
+    }
+
+    @Around("execution(public * ch.uzh.ifi.hase.soprafs24.service.UserService.*(..))")
+    public Object timeService(ProceedingJoinPoint joinPoint) throws Throwable {
+        return time("service", joinPoint);
+    }
+
+    // all methods of the repository proxy, including the inherited ones like findById and save
+    @Around("execution(* *(..)) && this(ch.uzh.ifi.hase.soprafs24.repository.UserRepository)")
+    public Object timeRepository(ProceedingJoinPoint joinPoint) throws Throwable {
+        return time("repository", joinPoint);
+    }
+
+    @Around("execution(* ch.uzh.ifi.hase.soprafs24.config.CustomAuthenticationProvider.authenticate(..))")
+    public Object timeAuthentication(ProceedingJoinPoint joinPoint) throws Throwable {
+        return time("auth", joinPoint);
+    }
+
+    private Object time(String layer, ProceedingJoinPoint joinPoint) throws Throwable {
+        MethodMeters methodMeters = meters.computeIfAbsent(joinPoint.getStaticPart(), staticPart -> methodMeters(layer, staticPart));
+        methodMeters.inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            return joinPoint.proceed();
+        }
+        catch (Throwable e) {
+            methodMeters.error(e);
+            throw e;
+        }
+        finally {
+            methodMeters.calls.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            methodMeters.inFlight.decrementAndGet();
+        }
+    }
+
+    private MethodMeters methodMeters(String layer, JoinPoint.StaticPart staticPart) {
+        String className = staticPart.getSignature().getDeclaringType().getSimpleName();
+        String methodName = staticPart.getSignature().getName();
+        return metersByName.computeIfAbsent(layer + "." + className + "." + methodName,
+                name -> new MethodMeters(layer, className, methodName));
+    }
+
+    private final class MethodMeters {
+
+        private final String layer;
+
+        private final String className;
+
+        private final String methodName;
+
+        private final Timer calls;
+
+        private final AtomicLong inFlight = new AtomicLong();
+
+        private final ConcurrentMap<Class<?>, Counter> errors = new ConcurrentHashMap<>();
+
+        private MethodMeters(String layer, String className, String methodName) {
+            this.layer = layer;
+            this.className = className;
+            this.methodName = methodName;
+            this.calls = Timer.builder("hotpath.calls")
+                    .tag("layer", layer)
+                    .tag("class", className)
+                    .tag("method", methodName)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofNanos(100_000))
+                    .maximumExpectedValue(Duration.ofSeconds(10))
+                    .register(registry);
+            Gauge.builder("hotpath.in.flight", inFlight, AtomicLong::get)
+                    .tag("layer", layer)
+                    .tag("class", className)
+                    .tag("method", methodName)
+                    .register(registry);
+        }
+
+        private void error(Throwable e) {
+            errors.computeIfAbsent(e.getClass(), exceptionClass -> Counter.builder("hotpath.errors")
+                    .tag("layer", layer)
+                    .tag("class", className)
+                    .tag("method", methodName)
+                    .tag("exception", exceptionClass.getSimpleName())
+                    .register(registry)).increment();
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+package ch.uzh.ifi.hase.soprafs24.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.context.metrics.buffering.BufferingApplicationStartup;
+import org.springframework.boot.context.metrics.buffering.StartupTimeline;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.core.metrics.ApplicationStartup;
+import org.springframework.core.metrics.StartupStep;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Startup Timeline Report
+ * Summarizes the steps Spring recorded while the application started: the
+ * time per phase (e.g. the context refresh) and the beans that took longest
+ * to create, without the time of the beans they depend on. The summary is
+ * logged once the application is ready and served on /internal/startup. It
+ * needs the BufferingApplicationStartup of Application.main, other starts
+ * (e.g. tests) only report the time since the JVM has been started.
+ * With startup.exit-after-ready the application exits right after it, this
+ * is the training run of the class data sharing archive.
+ */
+@Component
+public class StartupTimelineReport implements StatsSource {
+
+    private static final String BEAN_INSTANTIATION = "spring.beans.instantiate";
+
+    private static final int SLOWEST_BEANS = 20;
+
+    private final Logger log = LoggerFactory.getLogger(StartupTimelineReport.class);
+
+    private final ApplicationStartup applicationStartup;
+
+    private final ConfigurableApplicationContext context;
+
+    private final boolean lazyInitialization;
+
+    private final boolean exitAfterReady;
+
+    private volatile Map<String, Object> report = Collections.emptyMap();
+
+    private volatile long jvmToReadyMillis;
+
+    private volatile long timelineSteps;
+
+    private volatile long instantiatedBeans;
+
+    @Autowired
+    public StartupTimelineReport(ApplicationStartup applicationStartup, ConfigurableApplicationContext context,
+                                 @Value("${spring.main.lazy-initialization:false}") boolean lazyInitialization,
+                                 @Value("${startup.exit-after-ready:false}") boolean exitAfterReady) {
+        this.applicationStartup = applicationStartup;
+        this.context = context;
+        this.lazyInitialization = lazyInitialization;
+        this.exitAfterReady = exitAfterReady;
+    }
+
+    // after the other listeners, their work is part of the startup
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.LOWEST_PRECEDENCE)
+    public void ready() {
+        jvmToReadyMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("jvmToReadyMillis", jvmToReadyMillis);
+        summary.put("lazyInitialization", lazyInitialization);
+        if (applicationStartup instanceof BufferingApplicationStartup) {
+            // drained, the steps aren't needed once they are summarized
+            summarize(((BufferingApplicationStartup) applicationStartup).drainBufferedTimeline(), summary);
+        }
+        report = Collections.unmodifiableMap(summary);
+        log.info("Ready {} ms after the JVM start, startup timeline: {}", jvmToReadyMillis, summary);
+
+        if (exitAfterReady) {
+            log.info("Exiting after the startup (startup.exit-after-ready)");
+            System.exit(SpringApplication.exit(context));
+        }
+    }
+
+    /**
+     * @return the summary of the startup, empty until the application is ready
+     */
+    public Map<String, Object> getReport() {
+        return report;
+    }
+
+    private void summarize(StartupTimeline timeline, Map<String, Object> summary) {
+        List<StartupTimeline.TimelineEvent> events = timeline.getEvents();
+        // the time of a step without its nested steps
+        Map<Long, Long> nestedNanos = new HashMap<>();
+        for (StartupTimeline.TimelineEvent event : events) {
+            Long parentId = event.getStartupStep().getParentId();
+            if (parentId != null) {
+                nestedNanos.merge(parentId, event.getDuration().toNanos(), Long::sum);
+            }
+        }
+
+        Map<String, Long> phaseNanos = new LinkedHashMap<>();
+        Map<String, Long> beanNanos = new HashMap<>();
+        for (StartupTimeline.TimelineEvent event : events) {
+            StartupStep step = event.getStartupStep();
+            long nanos = event.getDuration().toNanos();
+            if (BEAN_INSTANTIATION.equals(step.getName())) {
+                long ownNanos = Math.max(0, nanos - nestedNanos.getOrDefault(step.getId(), 0L));
+                beanNanos.merge(beanName(step), ownNanos, Long::sum);
+            }
+            else {
+                phaseNanos.merge(step.getName(), nanos, Long::sum);
+            }
+        }
+        timelineSteps = events.size();
+        instantiatedBeans = beanNanos.size();
+
+        summary.put("timelineSteps", timelineSteps);
+        summary.put("instantiatedBeans", instantiatedBeans);
+        summary.put("phasesMillis", toMillis(phaseNanos.entrySet().stream()
+                .collect(Collectors.toList())));
+        summary.put("slowestBeansMillis", toMillis(beanNanos.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(SLOWEST_BEANS)
+                .collect(Collectors.toList())));
+    }
+
+    private static String beanName(StartupStep step) {
+        for (StartupStep.Tag tag : step.getTags()) {
+            if ("beanName".equals(tag.getKey())) {
+                return tag.getValue();
+            }
+        }
+        return "unknown";
+    }
+
+    private static Map<String, Double> toMillis(List<Map.Entry<String, Long>> entries) {
+        Map<String, Double> millis = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : entries) {
+            // to a tenth of a millisecond
+            millis.put(entry.getKey(), entry.getValue() / 100_000 / 10.0);
+        }
+        return millis;
+    }
+
+    @Override
+    public String getStatsName() {
+        return "startup";
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("jvmToReadyMillis", jvmToReadyMillis);
+        stats.put("timelineSteps", timelineSteps);
+        stats.put("instantiatedBeans", instantiatedBeans);
+        stats.put("lazyInitialization", lazyInitialization ? 1 : 0);
+        return stats;
+    }
+
+}
@@ -0,0 +1,23 @@
+package ch.uzh.ifi.hase.soprafs24.metrics;
+
+import java.util.Map;
+
+/**
+ * Stats Source
+ * Implemented by components that keep internal counters (e.g., cache hits) we
+ * want to look at in production. All sources are reported together on
+ * /internal/stats.
+ */
+public interface StatsSource {
+
+    /**
+     * @return the name the statistics are reported under, e.g. "userCache"
+     */
+    String getStatsName();
+
+    /**
+     * @return a snapshot of the current counter values
+     */
+    Map<String, Number> getStats();
+
+}
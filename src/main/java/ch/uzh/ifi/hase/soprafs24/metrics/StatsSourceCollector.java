@@ -0,0 +1,45 @@
+package ch.uzh.ifi.hase.soprafs24.metrics;
+
+import io.prometheus.client.Collector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stats Source Collector
+ * Exports the values of all StatsSources as the gauge app_stats, labelled
+ * with the source and the stat. Every source builds its map once per scrape,
+ * and values that a source only reports later (e.g. a new pool) are exported
+ * as soon as they appear.
+ */
+public class StatsSourceCollector extends Collector {
+
+    private static final String NAME = "app_stats";
+
+    private static final List<String> LABEL_NAMES = List.of("source", "stat");
+
+    private final Iterable<StatsSource> statsSources;
+
+    /**
+     * @param statsSources looked up on every scrape, e.g. an ObjectProvider
+     */
+    public StatsSourceCollector(Iterable<StatsSource> statsSources) {
+        this.statsSources = statsSources;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+        for (StatsSource statsSource : statsSources) {
+            String source = statsSource.getStatsName();
+            for (Map.Entry<String, Number> stat : statsSource.getStats().entrySet()) {
+                Number value = stat.getValue();
+                samples.add(new MetricFamilySamples.Sample(NAME, LABEL_NAMES, List.of(source, stat.getKey()),
+                        value == null ? Double.NaN : value.doubleValue()));
+            }
+        }
+        return List.of(new MetricFamilySamples(NAME, Type.GAUGE, "The values reported on /internal/stats", samples));
+    }
+
+}
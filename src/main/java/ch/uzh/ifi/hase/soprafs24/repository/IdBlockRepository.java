@@ -0,0 +1,25 @@
+package ch.uzh.ifi.hase.soprafs24.repository;
+
+import ch.uzh.ifi.hase.soprafs24.entity.IdBlock;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import javax.persistence.LockModeType;
+import java.util.Optional;
+
+@Repository("idBlockRepository")
+public interface IdBlockRepository extends JpaRepository<IdBlock, String> {
+
+    /**
+     * Loads the sequence row with a write lock (SELECT ... FOR UPDATE), so that
+     * concurrent reservations from other threads or instances wait for the
+     * current transaction to commit.
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select b from IdBlock b where b.name = :name")
+    Optional<IdBlock> findForUpdate(@Param("name") String name);
+
+}
@@ -0,0 +1,175 @@
+package ch.uzh.ifi.hase.soprafs24.repository;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import io.r2dbc.spi.Row;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Profile;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+
+/**
+ * Reactive User Repository
+ * Non-blocking access to the same USER table as the UserRepository, through
+ * R2DBC. Only used by the reactive profile, the table is still created and
+ * migrated by Hibernate. Writes keep the conventions of the JPA entity: the
+ * version is incremented on every update and the status is stored as ordinal.
+ * Every write is a single statement that commits on its own, the change of
+ * the table is counted after it in a statement of its own (see tableChanged).
+ */
+@Repository
+@Profile("reactive")
+public class ReactiveUserRepository {
+
+    private static final String COLUMNS = "id, username, password, creation_date, birthday, token, token_expiry, version, status";
+
+    private final Logger log = LoggerFactory.getLogger(ReactiveUserRepository.class);
+
+    private final DatabaseClient databaseClient;
+
+    public ReactiveUserRepository(DatabaseClient databaseClient) {
+        this.databaseClient = databaseClient;
+    }
+
+    public Flux<User> findAll() {
+        return databaseClient.sql("select " + COLUMNS + " from \"USER\" order by id")
+                .map((row, metadata) -> toUser(row))
+                .all();
+    }
+
+    public Mono<User> findById(Long id) {
+        return databaseClient.sql("select " + COLUMNS + " from \"USER\" where id = :id")
+                .bind("id", id)
+                .map((row, metadata) -> toUser(row))
+                .one();
+    }
+
+    public Mono<User> findByUsername(String username) {
+        return databaseClient.sql("select " + COLUMNS + " from \"USER\" where username = :username")
+                .bind("username", username)
+                .map((row, metadata) -> toUser(row))
+                .one();
+    }
+
+    public Mono<User> findByToken(String token) {
+        return databaseClient.sql("select " + COLUMNS + " from \"USER\" where token = :token")
+                .bind("token", token)
+                .map((row, metadata) -> toUser(row))
+                .one();
+    }
+
+    public Mono<Boolean> existsByUsername(String username) {
+        return databaseClient.sql("select 1 from \"USER\" where username = :username")
+                .bind("username", username)
+                .map((row, metadata) -> 1)
+                .first()
+                .hasElement();
+    }
+
+    /**
+     * @return the number of changes of the USER table
+     * @see ch.uzh.ifi.hase.soprafs24.service.UserTableVersion
+     */
+    public Mono<Long> findTableVersion() {
+        return databaseClient.sql("select version from TABLE_VERSION where name = 'USER'")
+                .map((row, metadata) -> toLong(row.get("version")))
+                .one()
+                .defaultIfEmpty(0L);
+    }
+
+    /**
+     * Counts a change of the USER table once the change has committed, in a
+     * statement of its own like the UserTableVersion does, so the counter row
+     * is never locked while a write is open. The write has succeeded either
+     * way, a failed count only delays the new tag of the list until the next
+     * change. The counter row is created on startup by the UserTableVersion.
+     */
+    private <T> Mono<T> tableChanged(T result) {
+        return databaseClient.sql("update TABLE_VERSION set version = version + 1 where name = 'USER'")
+                .fetch()
+                .rowsUpdated()
+                .doOnError(e -> log.warn("Could not increment the version of the USER table", e))
+                .onErrorResume(e -> Mono.empty())
+                .thenReturn(result);
+    }
+
+    /**
+     * Inserts a new user in version 0, the id must have been allocated.
+     */
+    public Mono<User> insert(User user) {
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql("insert into \"USER\" (" + COLUMNS + ")"
+                        + " values (:id, :username, :password, :creationDate, :birthday, :token, :tokenExpiry, 0, :status)")
+                .bind("id", user.getId())
+                .bind("username", user.getUsername())
+                .bind("password", user.getPassword())
+                .bind("creationDate", toLocalDateTime(user.getCreationDate()))
+                .bind("token", user.getToken())
+                .bind("status", user.getStatus().ordinal());
+        spec = bindDate(spec, "birthday", user.getBirthday());
+        spec = bindDate(spec, "tokenExpiry", user.getTokenExpiry());
+        return spec.fetch().rowsUpdated().then(Mono.fromSupplier(() -> {
+            user.setVersion(0L);
+            return user;
+        })).flatMap(this::tableChanged);
+    }
+
+    /**
+     * @return the number of updated rows, 0 if the user doesn't exist
+     */
+    public Mono<Integer> updateProfile(Long id, String username, Date birthday) {
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql("update \"USER\" set username = :username, birthday = :birthday,"
+                        + " version = version + 1 where id = :id")
+                .bind("id", id)
+                .bind("username", username);
+        return bindDate(spec, "birthday", birthday).fetch().rowsUpdated()
+                .flatMap(updated -> updated > 0 ? tableChanged(updated) : Mono.just(updated));
+    }
+
+    public Mono<Integer> updatePassword(Long id, String passwordHash) {
+        return databaseClient.sql("update \"USER\" set password = :password, version = version + 1 where id = :id")
+                .bind("id", id)
+                .bind("password", passwordHash)
+                .fetch()
+                .rowsUpdated()
+                .flatMap(updated -> updated > 0 ? tableChanged(updated) : Mono.just(updated));
+    }
+
+    private static DatabaseClient.GenericExecuteSpec bindDate(DatabaseClient.GenericExecuteSpec spec, String name, Date date) {
+        return date == null ? spec.bindNull(name, LocalDateTime.class) : spec.bind(name, toLocalDateTime(date));
+    }
+
+    private static User toUser(Row row) {
+        User user = new User();
+        user.setId(row.get("id", Long.class));
+        user.setUsername(row.get("username", String.class));
+        user.setPassword(row.get("password", String.class));
+        user.setCreationDate(toDate(row.get("creation_date", LocalDateTime.class)));
+        user.setBirthday(toDate(row.get("birthday", LocalDateTime.class)));
+        user.setToken(row.get("token", String.class));
+        user.setTokenExpiry(toDate(row.get("token_expiry", LocalDateTime.class)));
+        user.setVersion(row.get("version", Long.class));
+        user.setStatus(UserStatus.values()[row.get("status", Integer.class)]);
+        return user;
+    }
+
+    // the TIMESTAMP columns hold the local time, like Hibernate writes java.util.Date
+    private static LocalDateTime toLocalDateTime(Date date) {
+        return LocalDateTime.ofInstant(date.toInstant(), ZoneId.systemDefault());
+    }
+
+    private static Date toDate(LocalDateTime localDateTime) {
+        return localDateTime == null ? null : Date.from(localDateTime.atZone(ZoneId.systemDefault()).toInstant());
+    }
+
+    private static Long toLong(Object value) {
+        return value == null ? null : ((Number) value).longValue();
+    }
+
+}
@@ -0,0 +1,26 @@
+package ch.uzh.ifi.hase.soprafs24.rest.dto;
+
+import java.util.Date;
+
+public class TokenGetDTO {
+
+    private String token;
+    private Date expiresAt;
+
+    public String getToken() {
+        return token;
+    }
+
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    public Date getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(Date expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+}
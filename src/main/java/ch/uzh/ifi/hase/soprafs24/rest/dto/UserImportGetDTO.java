@@ -0,0 +1,35 @@
+package ch.uzh.ifi.hase.soprafs24.rest.dto;
+
+import java.util.List;
+
+public class UserImportGetDTO {
+
+    private int created;
+    private int rejected;
+    private List<UserImportItemGetDTO> results;
+
+    public int getCreated() {
+        return created;
+    }
+
+    public void setCreated(int created) {
+        this.created = created;
+    }
+
+    public int getRejected() {
+        return rejected;
+    }
+
+    public void setRejected(int rejected) {
+        this.rejected = rejected;
+    }
+
+    public List<UserImportItemGetDTO> getResults() {
+        return results;
+    }
+
+    public void setResults(List<UserImportItemGetDTO> results) {
+        this.results = results;
+    }
+
+}
@@ -0,0 +1,55 @@
+package ch.uzh.ifi.hase.soprafs24.rest.dto;
+
+/**
+ * The result of one user of a bulk import, in the order of the request. The
+ * status is the one POST /users would have answered with.
+ */
+public class UserImportItemGetDTO {
+
+    private int index;
+    private String username;
+    private int status;
+    private Long id;
+    private String error;
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+}
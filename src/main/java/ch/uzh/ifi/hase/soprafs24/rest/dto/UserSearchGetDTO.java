@@ -0,0 +1,27 @@
+package ch.uzh.ifi.hase.soprafs24.rest.dto;
+
+/**
+ * One match of a username search, only what the search index holds.
+ */
+public class UserSearchGetDTO {
+
+    private Long id;
+    private String username;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+}
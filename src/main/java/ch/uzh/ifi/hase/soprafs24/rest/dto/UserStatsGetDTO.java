@@ -0,0 +1,39 @@
+package ch.uzh.ifi.hase.soprafs24.rest.dto;
+
+import java.util.Map;
+
+/**
+ * The user counts of GET /users/stats. The signups are keyed by ISO date,
+ * the oldest day first.
+ */
+public class UserStatsGetDTO {
+
+    private long total;
+    private Map<String, Long> usersByStatus;
+    private Map<String, Long> signupsPerDay;
+
+    public long getTotal() {
+        return total;
+    }
+
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    public Map<String, Long> getUsersByStatus() {
+        return usersByStatus;
+    }
+
+    public void setUsersByStatus(Map<String, Long> usersByStatus) {
+        this.usersByStatus = usersByStatus;
+    }
+
+    public Map<String, Long> getSignupsPerDay() {
+        return signupsPerDay;
+    }
+
+    public void setSignupsPerDay(Map<String, Long> signupsPerDay) {
+        this.signupsPerDay = signupsPerDay;
+    }
+
+}
@@ -0,0 +1,259 @@
+package ch.uzh.ifi.hase.soprafs24.rest.json;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Date;
+
+/**
+ * Json Response Writer
+ * Writes UserGetDTOs and the small fixed JSON responses as UTF-8 straight into
+ * a byte buffer that is passed to the output stream whenever it is full. The
+ * field names and the status literals are encoded once, numbers and strings
+ * are encoded in place, so a response allocates the writer and its buffer and
+ * nothing per user.
+ * UserGetDTOs look the same as with the default Jackson message converter:
+ * fields in declaration order, nulls included and dates as epoch millis.
+ */
+public final class JsonResponseWriter {
+
+    private static final byte[] ID = ascii("{\"id\":");
+    private static final byte[] USERNAME = ascii(",\"username\":");
+    private static final byte[] BIRTHDAY = ascii(",\"birthday\":");
+    private static final byte[] CREATION_DATE = ascii(",\"creationDate\":");
+    private static final byte[] STATUS = ascii(",\"status\":");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] LONG_MIN_VALUE = ascii(Long.toString(Long.MIN_VALUE));
+
+    private static final byte[][] STATUS_LITERALS = new byte[UserStatus.values().length][];
+
+    private static final byte[] HEX = ascii("0123456789ABCDEF");
+
+    static {
+        for (UserStatus status : UserStatus.values()) {
+            STATUS_LITERALS[status.ordinal()] = ascii("\"" + status.name() + "\"");
+        }
+    }
+
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    // the longest encoding of a single char, a unicode escape with four hex digits
+    private static final int MAX_CHAR_BYTES = 6;
+
+    // 19 digits and the sign
+    private static final int MAX_LONG_BYTES = 20;
+
+    private static final int MIN_BUFFER_SIZE = 64;
+
+    private final OutputStream outputStream;
+
+    private final byte[] buffer;
+
+    private int position;
+
+    public JsonResponseWriter(OutputStream outputStream) {
+        this(outputStream, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize small for single objects, the buffer is the largest allocation of a response
+     */
+    public JsonResponseWriter(OutputStream outputStream, int bufferSize) {
+        this.outputStream = outputStream;
+        this.buffer = new byte[Math.max(bufferSize, MIN_BUFFER_SIZE)];
+    }
+
+    public void writeUser(UserGetDTO userGetDTO) throws IOException {
+        writeRaw(ID);
+        writeNumber(userGetDTO.getId());
+        writeRaw(USERNAME);
+        writeString(userGetDTO.getUsername());
+        writeRaw(BIRTHDAY);
+        writeDate(userGetDTO.getBirthday());
+        writeRaw(CREATION_DATE);
+        writeDate(userGetDTO.getCreationDate());
+        writeRaw(STATUS);
+        UserStatus status = userGetDTO.getStatus();
+        writeRaw(status == null ? NULL : STATUS_LITERALS[status.ordinal()]);
+        writeByte('}');
+    }
+
+    public void writeUsers(Collection<UserGetDTO> userGetDTOs) throws IOException {
+        writeByte('[');
+        boolean first = true;
+        for (UserGetDTO userGetDTO : userGetDTOs) {
+            if (!first) {
+                writeByte(',');
+            }
+            writeUser(userGetDTO);
+            first = false;
+        }
+        writeByte(']');
+    }
+
+    /**
+     * Writes bytes that are already valid JSON, e.g. pre-encoded field names.
+     */
+    public void writeRaw(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length - position) {
+            flushBuffer();
+            if (bytes.length > buffer.length) {
+                outputStream.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    public void writeByte(char c) throws IOException {
+        ensureCapacity(1);
+        buffer[position++] = (byte) c;
+    }
+
+    public void writeNumber(Long value) throws IOException {
+        if (value == null) {
+            writeRaw(NULL);
+        }
+        else {
+            writeNumber(value.longValue());
+        }
+    }
+
+    public void writeNumber(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writeRaw(LONG_MIN_VALUE);
+            return;
+        }
+        ensureCapacity(MAX_LONG_BYTES);
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int end = position + digits(value);
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position = end;
+    }
+
+    /**
+     * Writes the string quoted and escaped like Jackson does: quotes, backslashes
+     * and control characters are escaped, everything else is written as UTF-8.
+     */
+    public void writeString(String value) throws IOException {
+        if (value == null) {
+            writeRaw(NULL);
+            return;
+        }
+        writeByte('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            ensureCapacity(MAX_CHAR_BYTES);
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    buffer[position++] = (byte) c;
+                }
+                else {
+                    writeEscaped(c);
+                }
+            }
+            else if (c < 0x800) {
+                buffer[position++] = (byte) (0xc0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            }
+            else {
+                // a lone surrogate can't be encoded, it is replaced like String.getBytes does
+                if (Character.isSurrogate(c)) {
+                    c = '\uFFFD';
+                }
+                buffer[position++] = (byte) (0xe0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        writeByte('"');
+    }
+
+    /**
+     * Passes the buffered bytes to the output stream, without flushing the stream.
+     */
+    public void flushBuffer() throws IOException {
+        if (position > 0) {
+            outputStream.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    private void writeDate(Date date) throws IOException {
+        if (date == null) {
+            writeRaw(NULL);
+        }
+        else {
+            writeNumber(date.getTime());
+        }
+    }
+
+    private void writeEscaped(char c) {
+        buffer[position++] = '\\';
+        switch (c) {
+            case '"':
+            case '\\':
+                buffer[position++] = (byte) c;
+                break;
+            case '\b':
+                buffer[position++] = 'b';
+                break;
+            case '\t':
+                buffer[position++] = 't';
+                break;
+            case '\n':
+                buffer[position++] = 'n';
+                break;
+            case '\f':
+                buffer[position++] = 'f';
+                break;
+            case '\r':
+                buffer[position++] = 'r';
+                break;
+            default:
+                buffer[position++] = 'u';
+                buffer[position++] = '0';
+                buffer[position++] = '0';
+                buffer[position++] = HEX[c >> 4];
+                buffer[position++] = HEX[c & 0xf];
+        }
+    }
+
+    private void ensureCapacity(int bytes) throws IOException {
+        if (buffer.length - position < bytes) {
+            flushBuffer();
+        }
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        for (long limit = 10; digits < 19 && value >= limit; limit *= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
@@ -0,0 +1,87 @@
+package ch.uzh.ifi.hase.soprafs24.rest.json;
+
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+
+/**
+ * Writes UserGetDTO and collections of it with the JsonResponseWriter instead of
+ * the reflective Jackson serialization. It only writes, request bodies are
+ * still read by Jackson.
+ */
+public class UserGetDTOHttpMessageConverter extends AbstractGenericHttpMessageConverter<Object> {
+
+    // enough for a user with a username of a hundred characters
+    private static final int SINGLE_USER_BUFFER_SIZE = 256;
+
+    public UserGetDTOHttpMessageConverter() {
+        super(MediaType.APPLICATION_JSON);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return UserGetDTO.class == clazz;
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    public boolean canWrite(Type type, Class<?> clazz, MediaType mediaType) {
+        if (!canWrite(mediaType)) {
+            return false;
+        }
+        return supports(clazz) || isUserGetDTOCollection(type);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void writeInternal(Object object, Type type, HttpOutputMessage outputMessage) throws IOException {
+        if (object instanceof UserGetDTO) {
+            JsonResponseWriter writer = new JsonResponseWriter(outputMessage.getBody(), SINGLE_USER_BUFFER_SIZE);
+            writer.writeUser((UserGetDTO) object);
+            writer.flushBuffer();
+        }
+        else {
+            JsonResponseWriter writer = new JsonResponseWriter(outputMessage.getBody());
+            writer.writeUsers((Collection<UserGetDTO>) object);
+            writer.flushBuffer();
+        }
+    }
+
+    @Override
+    protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("UserGetDTOs are not read", inputMessage);
+    }
+
+    @Override
+    public Object read(Type type, Class<?> contextClass, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("UserGetDTOs are not read", inputMessage);
+    }
+
+    private static boolean isUserGetDTOCollection(Type type) {
+        if (!(type instanceof ParameterizedType)) {
+            return false;
+        }
+        ParameterizedType parameterizedType = (ParameterizedType) type;
+        return parameterizedType.getRawType() instanceof Class
+                && Collection.class.isAssignableFrom((Class<?>) parameterizedType.getRawType())
+                && parameterizedType.getActualTypeArguments()[0] == UserGetDTO.class;
+    }
+
+}
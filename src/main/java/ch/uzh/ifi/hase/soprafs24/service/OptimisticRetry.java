@@ -0,0 +1,113 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Optimistic Retry
+ * Repeats a write that failed because the user has been changed since it was
+ * read (its @Version no longer matches). Every attempt must start its own
+ * transaction and read the user again, so it is called outside of one; inside
+ * a transaction the write is only tried once, the transaction can't continue
+ * after the failure anyway.
+ * The attempts are bounded (user.optimistic-retry.max-attempts) and wait a
+ * random time up to an exponentially growing limit (full jitter), so writers
+ * that conflicted don't meet again on the next attempt. No row is ever locked
+ * while a user is read.
+ */
+@Component
+public class OptimisticRetry implements StatsSource {
+
+    private final int maxAttempts;
+
+    private final long backoffMicros;
+
+    private final long maxBackoffMicros;
+
+    private final LongAdder conflicts = new LongAdder();
+
+    private final LongAdder retried = new LongAdder();
+
+    private final LongAdder exhausted = new LongAdder();
+
+    @Autowired
+    public OptimisticRetry(@Value("${user.optimistic-retry.max-attempts:4}") int maxAttempts,
+                           @Value("${user.optimistic-retry.backoff-millis:5}") long backoffMillis,
+                           @Value("${user.optimistic-retry.max-backoff-millis:100}") long maxBackoffMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffMicros = Math.max(1, backoffMillis * 1000);
+        this.maxBackoffMicros = Math.max(this.backoffMicros, maxBackoffMillis * 1000);
+    }
+
+    /**
+     * @return the result of the first attempt that didn't conflict
+     * @throws OptimisticLockingFailureException if the last attempt conflicted as well
+     */
+    public <T> T run(Supplier<T> write) {
+        int attempts = TransactionSynchronizationManager.isActualTransactionActive() ? 1 : maxAttempts;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return write.get();
+            }
+            catch (OptimisticLockingFailureException e) {
+                conflicts.increment();
+                if (attempt >= attempts) {
+                    exhausted.increment();
+                    throw e;
+                }
+                retried.increment();
+                if (!backoff(attempt)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    public void run(Runnable write) {
+        run(() -> {
+            write.run();
+            return null;
+        });
+    }
+
+    /**
+     * @return false if the thread has been interrupted while waiting
+     */
+    private boolean backoff(int attempt) {
+        long limit = Math.min(maxBackoffMicros, backoffMicros << Math.min(attempt - 1, 20));
+        try {
+            TimeUnit.MICROSECONDS.sleep(ThreadLocalRandom.current().nextLong(limit + 1));
+            return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public String getStatsName() {
+        return "optimisticRetry";
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("conflicts", conflicts.sum());
+        stats.put("retried", retried.sum());
+        stats.put("exhausted", exhausted.sum());
+        return stats;
+    }
+
+}
@@ -0,0 +1,277 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import ch.uzh.ifi.hase.soprafs24.util.LatencyHistogram;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Password Hasher
+ * This class hashes and verifies passwords with BCrypt (salted, adaptive cost).
+ * BCrypt is deliberately CPU heavy, so the work runs on a dedicated, bounded
+ * thread pool: a login storm can use at most these threads. The request
+ * threads block while they wait for the result and give up with 503 when the
+ * queue is full or the result takes too long. Callers hash before they open a
+ * transaction, so no connection is held meanwhile. The async variants return
+ * as soon as the task has been queued, for callers that mustn't block (the
+ * reactive stack).
+ * Passwords stored before hashing was introduced are still accepted in clear
+ * text, needsUpgrade tells the caller to replace them after a successful login.
+ */
+@Component
+public class PasswordHasher implements StatsSource {
+
+    private static final Pattern BCRYPT_PATTERN = Pattern.compile("\\A\\$2(a|y|b)?\\$(\\d\\d)\\$[./0-9A-Za-z]{53}");
+
+    private final BCryptPasswordEncoder encoder;
+
+    private final ThreadPoolExecutor executor;
+
+    private final long timeoutMillis;
+
+    private final LatencyHistogram hashLatency = new LatencyHistogram();
+
+    private final LatencyHistogram verifyLatency = new LatencyHistogram();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder timeouts = new LongAdder();
+
+    // hash of a password nobody has, with the configured cost, created on the first miss
+    private volatile String unknownUserHash;
+
+    @Autowired
+    public PasswordHasher(@Value("${security.password.bcrypt-strength:10}") int strength,
+                          @Value("${security.password.threads:0}") int threads,
+                          @Value("${security.password.queue-capacity:64}") int queueCapacity,
+                          @Value("${security.password.timeout-millis:5000}") long timeoutMillis) {
+        this.encoder = new BCryptPasswordEncoder(strength);
+        this.timeoutMillis = timeoutMillis;
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "password-hasher-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public String hash(String rawPassword) {
+        return execute(() -> encode(rawPassword));
+    }
+
+    /**
+     * Like {@link #hash(String)}, the future fails with a ResponseStatusException
+     * 503 when the queue is full or the hash takes too long.
+     */
+    public CompletableFuture<String> hashAsync(String rawPassword) {
+        return executeAsync(() -> encode(rawPassword));
+    }
+
+    public boolean matches(String rawPassword, String storedPassword) {
+        if (rawPassword == null || storedPassword == null) {
+            return false;
+        }
+        if (!isHash(storedPassword)) {
+            return matchesClearText(rawPassword, storedPassword);
+        }
+        return execute(() -> verify(rawPassword, storedPassword));
+    }
+
+    /**
+     * Like {@link #matches(String, String)}, the future fails with a
+     * ResponseStatusException 503 when the queue is full or the check takes too
+     * long.
+     */
+    public CompletableFuture<Boolean> matchesAsync(String rawPassword, String storedPassword) {
+        if (rawPassword == null || storedPassword == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        if (!isHash(storedPassword)) {
+            return CompletableFuture.completedFuture(matchesClearText(rawPassword, storedPassword));
+        }
+        return executeAsync(() -> verify(rawPassword, storedPassword));
+    }
+
+    /**
+     * Costs as much as matching the password of an existing user, for a
+     * username that doesn't exist, so the response time doesn't tell which
+     * usernames exist. Fails like {@link #matches(String, String)} when the
+     * hashing threads are saturated.
+     *
+     * @return always false
+     */
+    public boolean matchesUnknownUser(String rawPassword) {
+        if (rawPassword == null) {
+            return false;
+        }
+        return execute(() -> {
+            verify(rawPassword, unknownUserHash());
+            return false;
+        });
+    }
+
+    /**
+     * @see #matchesUnknownUser(String)
+     */
+    public CompletableFuture<Boolean> matchesUnknownUserAsync(String rawPassword) {
+        if (rawPassword == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return executeAsync(() -> {
+            verify(rawPassword, unknownUserHash());
+            return false;
+        });
+    }
+
+    private String unknownUserHash() {
+        String hash = unknownUserHash;
+        if (hash == null) {
+            // two concurrent first misses may both create one, either will do
+            hash = encoder.encode(UUID.randomUUID().toString());
+            unknownUserHash = hash;
+        }
+        return hash;
+    }
+
+    private String encode(String rawPassword) {
+        long start = System.nanoTime();
+        String hash = encoder.encode(rawPassword);
+        hashLatency.recordNanos(System.nanoTime() - start);
+        return hash;
+    }
+
+    private boolean verify(String rawPassword, String storedPassword) {
+        long start = System.nanoTime();
+        boolean matches = encoder.matches(rawPassword, storedPassword);
+        verifyLatency.recordNanos(System.nanoTime() - start);
+        return matches;
+    }
+
+    private static boolean matchesClearText(String rawPassword, String storedPassword) {
+        // legacy clear text password, compared in constant time
+        return MessageDigest.isEqual(rawPassword.getBytes(StandardCharsets.UTF_8),
+                storedPassword.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return true if the stored password is in clear text or has been hashed
+     * with a lower cost than the configured one
+     */
+    public boolean needsUpgrade(String storedPassword) {
+        return !isHash(storedPassword) || encoder.upgradeEncoding(storedPassword);
+    }
+
+    private static boolean isHash(String storedPassword) {
+        return storedPassword != null && BCRYPT_PATTERN.matcher(storedPassword).matches();
+    }
+
+    private <T> T execute(Callable<T> task) {
+        Future<T> future;
+        try {
+            future = executor.submit(task);
+        }
+        catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many password checks in progress");
+        }
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            future.cancel(true);
+            timeouts.increment();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "The password check took too long");
+        }
+        catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "The password check was interrupted");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new CompletionException(e.getCause());
+        }
+    }
+
+    private <T> CompletableFuture<T> executeAsync(Supplier<T> task) {
+        CompletableFuture<T> future;
+        try {
+            future = CompletableFuture.supplyAsync(task, executor);
+        }
+        catch (RejectedExecutionException e) {
+            rejected.increment();
+            return CompletableFuture.failedFuture(
+                    new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many password checks in progress"));
+        }
+        return future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).handle((result, error) -> {
+            if (error == null) {
+                return result;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof TimeoutException) {
+                // the hash can't be interrupted, it completes on its thread and is dropped
+                timeouts.increment();
+                throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "The password check took too long");
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new CompletionException(cause);
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String getStatsName() {
+        return "passwordHasher";
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("threads", executor.getMaximumPoolSize());
+        stats.put("active", executor.getActiveCount());
+        stats.put("queueDepth", executor.getQueue().size());
+        stats.put("queueRemainingCapacity", executor.getQueue().remainingCapacity());
+        stats.put("rejected", rejected.sum());
+        stats.put("timeouts", timeouts.sum());
+        putLatency(stats, "hash", hashLatency);
+        putLatency(stats, "verify", verifyLatency);
+        return stats;
+    }
+
+    private static void putLatency(Map<String, Number> stats, String prefix, LatencyHistogram histogram) {
+        stats.put(prefix + ".count", histogram.count());
+        stats.put(prefix + ".meanMicros", histogram.meanMicros());
+        stats.put(prefix + ".p50Micros", histogram.percentileMicros(0.5));
+        stats.put(prefix + ".p99Micros", histogram.percentileMicros(0.99));
+        stats.put(prefix + ".maxMicros", histogram.maxMicros());
+    }
+
+}
@@ -0,0 +1,233 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import ch.uzh.ifi.hase.soprafs24.util.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Presence Buffer
+ * This class collects the presence status changes (login, logout) in memory
+ * instead of updating the USER table on the request path. Changes are
+ * coalesced per user, only the latest status is written, and flushed in JDBC
+ * batches on a short interval.
+ * Until a change has been flushed, statusOf returns the buffered status, so
+ * reads on this instance see it immediately. A failed flush keeps the changes
+ * and retries them with the next one.
+ */
+@Component
+public class PresenceBuffer implements StatsSource {
+
+    // the version makes the change visible to ETags and optimistic locking, unchanged rows are skipped
+    private static final String UPDATE_STATUS = "update \"USER\" set status = ?, version = version + 1 where id = ? and status <> ?";
+
+    private final Logger log = LoggerFactory.getLogger(PresenceBuffer.class);
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final UserCache userCache;
+
+    private final UserTableVersion userTableVersion;
+
+    private final int batchSize;
+
+    private final ConcurrentHashMap<Long, PendingStatus> pending = new ConcurrentHashMap<>();
+
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+    private final LongAdder updates = new LongAdder();
+
+    private final LongAdder flushedRows = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    private final AtomicLong lastFlushSize = new AtomicLong();
+
+    private final AtomicLong maxFlushSize = new AtomicLong();
+
+    private final List<Consumer<UserStatus>> statusListeners = new CopyOnWriteArrayList<>();
+
+    @Autowired
+    public PresenceBuffer(JdbcTemplate jdbcTemplate, UserCache userCache, UserTableVersion userTableVersion,
+                          @Value("${user.presence.batch-size:500}") int batchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.userCache = userCache;
+        this.userTableVersion = userTableVersion;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Registers a listener that is called with the new status of every user
+     * whose stored status has been changed by a flush.
+     */
+    public void addStatusListener(Consumer<UserStatus> listener) {
+        statusListeners.add(listener);
+    }
+
+    public void setStatus(Long id, UserStatus status) {
+        if (id != null && status != null) {
+            // last write wins, the time of the first unflushed change is kept to measure the lag
+            // counted first, so the pending generation never misses a change that is already visible
+            updates.increment();
+            pending.merge(id, new PendingStatus(status, System.nanoTime()),
+                    (previous, next) -> new PendingStatus(next.status, previous.since));
+        }
+    }
+
+    /**
+     * @return the buffered status of the user if there is one, the stored status otherwise
+     */
+    public UserStatus statusOf(User user) {
+        PendingStatus pendingStatus = pending.get(user.getId());
+        return pendingStatus == null ? user.getStatus() : pendingStatus.status;
+    }
+
+    /**
+     * @return the buffered status of the user, null if there is none
+     */
+    public UserStatus pendingStatus(Long id) {
+        PendingStatus pendingStatus = pending.get(id);
+        return pendingStatus == null ? null : pendingStatus.status;
+    }
+
+    /**
+     * @return 0 if all changes have been written, otherwise a number that changes
+     * with every buffered change
+     */
+    public long pendingGeneration() {
+        return pending.isEmpty() ? 0 : updates.sum();
+    }
+
+    @Scheduled(fixedDelayString = "${user.presence.flush-interval-millis:200}")
+    public synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<Long, PendingStatus>> batch = new ArrayList<>(Math.min(pending.size(), batchSize));
+        for (Map.Entry<Long, PendingStatus> entry : pending.entrySet()) {
+            batch.add(Map.entry(entry.getKey(), entry.getValue()));
+            if (batch.size() == batchSize) {
+                write(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(batch);
+        }
+    }
+
+    private void write(List<Map.Entry<Long, PendingStatus>> batch) {
+        long start = System.nanoTime();
+        int[][] updateCounts;
+        try {
+            updateCounts = jdbcTemplate.batchUpdate(UPDATE_STATUS, batch, batch.size(), (statement, entry) -> {
+                statement.setInt(1, entry.getValue().status.ordinal());
+                statement.setLong(2, entry.getKey());
+                statement.setInt(3, entry.getValue().status.ordinal());
+            });
+        }
+        catch (DataAccessException e) {
+            // the changes stay in the buffer and are written with the next flush
+            failures.increment();
+            log.warn("Could not flush {} presence changes", batch.size(), e);
+            return;
+        }
+        if (anyUpdated(updateCounts)) {
+            userTableVersion.increment();
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Map.Entry<Long, PendingStatus> entry = batch.get(i);
+            // a row is only updated if its status has changed, drivers without counts report none
+            if (updateCounts.length > 0 && updateCounts[0].length > i && updateCounts[0][i] > 0) {
+                for (Consumer<UserStatus> listener : statusListeners) {
+                    listener.accept(entry.getValue().status);
+                }
+            }
+            userCache.evict(entry.getKey());
+            // a change made during the flush is newer and stays in the buffer
+            pending.remove(entry.getKey(), entry.getValue());
+        }
+        flushLatency.recordNanos(System.nanoTime() - start);
+        flushedRows.add(batch.size());
+        lastFlushSize.set(batch.size());
+        maxFlushSize.accumulateAndGet(batch.size(), Math::max);
+    }
+
+    private static boolean anyUpdated(int[][] updateCounts) {
+        if (updateCounts == null || updateCounts.length == 0) {
+            return true;
+        }
+        for (int count : updateCounts[0]) {
+            // drivers without counts report SUCCESS_NO_INFO (-2)
+            if (count != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    @Override
+    public String getStatsName() {
+        return "presenceBuffer";
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        long now = System.nanoTime();
+        long oldest = now;
+        for (PendingStatus pendingStatus : pending.values()) {
+            oldest = Math.min(oldest, pendingStatus.since);
+        }
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("pending", pending.size());
+        stats.put("lagMillis", TimeUnit.NANOSECONDS.toMillis(now - oldest));
+        stats.put("updates", updates.sum());
+        stats.put("flushes", flushLatency.count());
+        stats.put("flushedRows", flushedRows.sum());
+        stats.put("lastFlushSize", lastFlushSize.get());
+        stats.put("maxFlushSize", maxFlushSize.get());
+        stats.put("failures", failures.sum());
+        stats.put("flush.meanMicros", flushLatency.meanMicros());
+        stats.put("flush.p99Micros", flushLatency.percentileMicros(0.99));
+        return stats;
+    }
+
+    private static final class PendingStatus {
+
+        private final UserStatus status;
+
+        // when the first unflushed change of the user was made
+        private final long since;
+
+        private PendingStatus(UserStatus status, long since) {
+            this.status = status;
+            this.since = since;
+        }
+    }
+
+}
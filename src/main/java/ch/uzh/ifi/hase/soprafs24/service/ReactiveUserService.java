@@ -0,0 +1,211 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.ReactiveUserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Reactive User Service
+ * The non-blocking counterpart of the UserService for the reactive profile.
+ * The users are read and written through the ReactiveUserRepository and
+ * passwords are hashed on the PasswordHasher's threads without waiting for
+ * them. The in-memory parts are shared with the servlet stack: the username
+ * index, the username search index, the presence buffer and the id allocator,
+ * which only blocks when it reserves a new block of ids.
+ * Changes aren't published as UserChangedEvents, GET /users/events is only
+ * served by the servlet stack.
+ */
+@Service
+@Profile("reactive")
+public class ReactiveUserService {
+
+    private static final String NOT_UNIQUE_ERROR_MESSAGE = "The %s provided %s not unique. Therefore, the user could not be created!";
+
+    private final Logger log = LoggerFactory.getLogger(ReactiveUserService.class);
+
+    private final ReactiveUserRepository userRepository;
+
+    private final UserIdAllocator userIdAllocator;
+
+    private final UsernameIndex usernameIndex;
+
+    private final UsernameSearchIndex usernameSearchIndex;
+
+    private final PasswordHasher passwordHasher;
+
+    private final TokenIndex tokenIndex;
+
+    private final PresenceBuffer presenceBuffer;
+
+    @Autowired
+    public ReactiveUserService(ReactiveUserRepository userRepository, UserIdAllocator userIdAllocator,
+                               UsernameIndex usernameIndex, UsernameSearchIndex usernameSearchIndex,
+                               PasswordHasher passwordHasher, TokenIndex tokenIndex, PresenceBuffer presenceBuffer) {
+        this.userRepository = userRepository;
+        this.userIdAllocator = userIdAllocator;
+        this.usernameIndex = usernameIndex;
+        this.usernameSearchIndex = usernameSearchIndex;
+        this.passwordHasher = passwordHasher;
+        this.tokenIndex = tokenIndex;
+        this.presenceBuffer = presenceBuffer;
+    }
+
+    public Flux<User> getUsers() {
+        return userRepository.findAll();
+    }
+
+    public Mono<User> getUser(Long id) {
+        return userRepository.findById(id).switchIfEmpty(Mono.error(() ->
+                new ResponseStatusException(HttpStatus.NOT_FOUND, String.format("User with userId %d was not found", id))));
+    }
+
+    public Mono<User> getUser(String username) {
+        return userRepository.findByUsername(username).switchIfEmpty(Mono.error(() ->
+                new ResponseStatusException(HttpStatus.NOT_FOUND, String.format("username %s was not found", username))));
+    }
+
+    /**
+     * @return the user with the given username, empty if there is none
+     */
+    public Mono<User> findByUsername(String username) {
+        return userRepository.findByUsername(username);
+    }
+
+    /**
+     * @return the user the token belongs to, empty if the token is unknown or
+     * has expired
+     */
+    public Mono<User> findByToken(String token) {
+        if (token == null || token.isEmpty()) {
+            return Mono.empty();
+        }
+        // tokens without an expiry date were issued before tokens were used and aren't accepted
+        return userRepository.findByToken(token)
+                .filter(user -> user.getTokenExpiry() != null && user.getTokenExpiry().after(new Date()));
+    }
+
+    /**
+     * @see UserService#getUsersETag()
+     */
+    public Mono<String> getUsersETag() {
+        return userRepository.findTableVersion()
+                .map(tableVersion -> UserService.formatUsersETag(tableVersion, presenceBuffer.pendingGeneration()));
+    }
+
+    /**
+     * @see UserService#getUserETag(Long, long)
+     */
+    public String getUserETag(User user) {
+        return UserService.formatUserETag(user.getId(), user.getVersion(), presenceBuffer.pendingStatus(user.getId()));
+    }
+
+    public Mono<User> createUser(User newUser) {
+        if (newUser.getUsername() == null || newUser.getUsername().trim().isEmpty()) {
+            return Mono.error(new ResponseStatusException(HttpStatus.CONFLICT, "The username can't be empty"));
+        }
+        if (newUser.getPassword() == null || newUser.getPassword().trim().isEmpty()) {
+            return Mono.error(new ResponseStatusException(HttpStatus.CONFLICT, "The password can't be empty"));
+        }
+
+        return checkIfUserExists(newUser.getUsername())
+                .then(Mono.defer(() -> Mono.fromFuture(passwordHasher.hashAsync(newUser.getPassword()))))
+                // the id is only allocated once the input is valid, so rejected requests don't use up ids
+                .flatMap(passwordHash -> Mono.fromCallable(userIdAllocator::nextId)
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .flatMap(id -> {
+                            newUser.setPassword(passwordHash);
+                            newUser.setId(id);
+                            newUser.setToken(UUID.randomUUID().toString());
+                            newUser.setTokenExpiry(tokenIndex.newExpiry());
+                            newUser.setStatus(UserStatus.OFFLINE);
+                            newUser.setCreationDate(new Date());
+                            return userRepository.insert(newUser);
+                        }))
+                .onErrorMap(DataIntegrityViolationException.class, this::notUnique)
+                .doOnNext(user -> {
+                    usernameIndex.add(user.getUsername());
+                    usernameSearchIndex.add(user.getId(), user.getUsername());
+                    log.debug("Created Information for User: {}", user);
+                });
+    }
+
+    /**
+     * @param user the user as read before the update, for its old username
+     */
+    public Mono<Void> updateUser(User user, User newUser) {
+        if (newUser.getUsername() == null || newUser.getUsername().trim().isEmpty()) {
+            return Mono.error(new ResponseStatusException(HttpStatus.CONFLICT, "The username can't be empty"));
+        }
+        Long id = user.getId();
+        // one statement: the unique constraint rejects a username that is taken
+        return userRepository.updateProfile(id, newUser.getUsername(), newUser.getBirthday())
+                .onErrorMap(DataIntegrityViolationException.class, this::notUnique)
+                .flatMap(updated -> {
+                    if (updated == 0) {
+                        return Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND,
+                                String.format("User with userId %d was not found", id)));
+                    }
+                    usernameIndex.add(newUser.getUsername());
+                    usernameSearchIndex.rename(id, user.getUsername(), newUser.getUsername());
+                    log.debug("Updated Information for User: {}", id);
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * @see UserService#setStatus(Long, UserStatus)
+     */
+    public void setStatus(Long id, UserStatus status) {
+        presenceBuffer.setStatus(id, status);
+    }
+
+    /**
+     * @see UserService#getStatus(User)
+     */
+    public UserStatus getStatus(User user) {
+        return presenceBuffer.statusOf(user);
+    }
+
+    /**
+     * @see UserService#setPasswordHash(Long, String)
+     */
+    public Mono<Void> setPasswordHash(Long id, String passwordHash) {
+        return userRepository.updatePassword(id, passwordHash).then();
+    }
+
+    /**
+     * @see UserService#createUser(User)
+     */
+    private Mono<Void> checkIfUserExists(String username) {
+        // most usernames are free, the index proves that without a query
+        if (!usernameIndex.mightExist(username)) {
+            return Mono.empty();
+        }
+        return userRepository.existsByUsername(username).flatMap(exists -> {
+            if (exists) {
+                return Mono.error(new ResponseStatusException(HttpStatus.CONFLICT, String.format(NOT_UNIQUE_ERROR_MESSAGE, "username", "is")));
+            }
+            usernameIndex.falsePositive();
+            return Mono.empty();
+        });
+    }
+
+    private ResponseStatusException notUnique(DataIntegrityViolationException e) {
+        return new ResponseStatusException(HttpStatus.CONFLICT, String.format(NOT_UNIQUE_ERROR_MESSAGE, "username", "is"), e);
+    }
+
+}
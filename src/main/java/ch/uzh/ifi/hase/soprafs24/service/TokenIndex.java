@@ -0,0 +1,171 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.config.ReplicaRouting;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token Index
+ * This class resolves bearer tokens to user ids in memory, so that an
+ * authenticated request costs neither a session nor a database query. A token
+ * that isn't in the index is looked up once in the USER table, which is how
+ * tokens issued by another instance become known.
+ * Unknown tokens are remembered as invalid as well: tokens are random UUIDs, so
+ * a token that has been looked up before it was issued can't exist. A token is
+ * only taken as unknown once the primary doesn't have it, the replica may not
+ * have a new token yet. Tokens issued by this instance are added right away.
+ * A rotated token is removed from the index of the instance that rotated it,
+ * other instances accept it until their entry expires (index ttl).
+ */
+@Component
+public class TokenIndex implements StatsSource {
+
+    private static final TokenEntry INVALID = new TokenEntry(null, 0L);
+
+    private final UserRepository userRepository;
+
+    private final Cache<String, TokenEntry> tokens;
+
+    private final long tokenTtlSeconds;
+
+    private final LongAdder expired = new LongAdder();
+
+    private final LongAdder invalid = new LongAdder();
+
+    @Autowired
+    public TokenIndex(@Qualifier("userRepository") UserRepository userRepository,
+                      @Value("${security.token.ttl-seconds:86400}") long tokenTtlSeconds,
+                      @Value("${security.token.index.maximum-size:100000}") long maximumSize,
+                      @Value("${security.token.index.ttl-seconds:300}") long indexTtlSeconds) {
+        this.userRepository = userRepository;
+        this.tokenTtlSeconds = tokenTtlSeconds;
+        this.tokens = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(indexTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return the expiry of a token issued now
+     */
+    public Date newExpiry() {
+        return new Date(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(tokenTtlSeconds));
+    }
+
+    /**
+     * @return the id of the user the token belongs to, empty if the token is
+     * unknown or has expired
+     */
+    public Optional<Long> resolve(String token) {
+        if (token == null || token.isEmpty()) {
+            return Optional.empty();
+        }
+        TokenEntry entry = tokens.get(token, this::load);
+        if (entry == INVALID) {
+            invalid.increment();
+            return Optional.empty();
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            tokens.invalidate(token);
+            expired.increment();
+            return Optional.empty();
+        }
+        return Optional.of(entry.userId);
+    }
+
+    /**
+     * Removes a token that has been replaced, it is rejected from now on.
+     */
+    public void invalidate(String token) {
+        if (token != null) {
+            tokens.put(token, INVALID);
+        }
+    }
+
+    public void clear() {
+        tokens.invalidateAll();
+    }
+
+    /**
+     * Adds a token that has just been issued, so that it is accepted without a
+     * lookup. Within a transaction the token is only added once it has been
+     * committed.
+     */
+    public void put(String token, Long userId, Date expiry) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    tokens.put(token, new TokenEntry(userId, expiry.getTime()));
+                }
+            });
+        }
+        else {
+            tokens.put(token, new TokenEntry(userId, expiry.getTime()));
+        }
+    }
+
+    private TokenEntry load(String token) {
+        User user = userRepository.findByToken(token);
+        if (user == null) {
+            // a token issued within the replica lag may not have reached the replica yet, a miss is only
+            // remembered once the primary doesn't know the token either
+            user = ReplicaRouting.onPrimary(() -> userRepository.findByToken(token));
+        }
+        // tokens without an expiry date were issued before tokens were used and aren't accepted
+        if (user == null || user.getTokenExpiry() == null) {
+            return INVALID;
+        }
+        return new TokenEntry(user.getId(), user.getTokenExpiry().getTime());
+    }
+
+    @Override
+    public String getStatsName() {
+        return "tokenIndex";
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        CacheStats cacheStats = tokens.stats();
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("size", tokens.estimatedSize());
+        stats.put("hits", cacheStats.hitCount());
+        stats.put("misses", cacheStats.missCount());
+        stats.put("hitRate", cacheStats.hitRate());
+        stats.put("evictions", cacheStats.evictionCount());
+        stats.put("expired", expired.sum());
+        stats.put("invalid", invalid.sum());
+        return stats;
+    }
+
+    private static final class TokenEntry {
+
+        private final Long userId;
+
+        private final long expiresAt;
+
+        private TokenEntry(Long userId, long expiresAt) {
+            this.userId = userId;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
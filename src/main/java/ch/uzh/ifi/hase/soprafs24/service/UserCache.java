@@ -0,0 +1,190 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.config.ReplicaRouting;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User Cache
+ * This class keeps recently used users in memory, so that the lookups on every
+ * authenticated request (by username and by id) don't have to go to the
+ * database. Both caches are bounded (W-TinyLFU eviction) and entries expire
+ * after a configurable time.
+ * The cached users are detached copies that are shared between callers, they
+ * must not be modified. Changes have to be made on an entity loaded from the
+ * UserRepository, the UserEntityListener evicts the cached copy afterwards.
+ * A user evicted within the replica lag is loaded from the primary, so that a
+ * replica that hasn't seen the change yet doesn't put the old copy back, and a
+ * username the replica doesn't know is looked up on the primary as well.
+ */
+@Component
+public class UserCache implements StatsSource {
+
+    private final UserRepository userRepository;
+
+    private final Cache<Long, User> usersById;
+
+    // only maps to the id, so a renamed user is never returned under its old name
+    private final Cache<String, Long> idsByUsername;
+
+    // ids of the users changed within the replica lag
+    private final Cache<Long, Boolean> recentlyChanged;
+
+    @Autowired
+    public UserCache(@Qualifier("userRepository") UserRepository userRepository,
+                     @Value("${user.cache.maximum-size:10000}") long maximumSize,
+                     @Value("${user.cache.ttl-seconds:600}") long ttlSeconds,
+                     @Value("${user.datasource.replica.read-your-writes-millis:5000}") long replicaLagMillis) {
+        this.userRepository = userRepository;
+        this.usersById = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.idsByUsername = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.recentlyChanged = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(replicaLagMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    public Optional<User> findById(Long id) {
+        if (id == null) {
+            return Optional.empty();
+        }
+        // a missing user is not cached (the mapping function returns null)
+        return Optional.ofNullable(usersById.get(id, this::load));
+    }
+
+    private User load(Long id) {
+        if (recentlyChanged.getIfPresent(id) != null) {
+            return ReplicaRouting.onPrimary(() -> userRepository.findById(id).map(UserCache::copyOf).orElse(null));
+        }
+        return userRepository.findById(id).map(UserCache::copyOf).orElse(null);
+    }
+
+    /**
+     * Returns the user, reloaded from the database if the cached copy is older
+     * than the given version (changed by another instance).
+     */
+    public Optional<User> findById(Long id, long minVersion) {
+        Optional<User> user = findById(id);
+        if (user.isPresent() && user.get().getVersion() != null && user.get().getVersion() < minVersion) {
+            usersById.invalidate(id);
+            return findById(id);
+        }
+        return user;
+    }
+
+    public User findByUsername(String username) {
+        if (username == null) {
+            return null;
+        }
+        Long id = idsByUsername.getIfPresent(username);
+        if (id != null) {
+            User user = findById(id).orElse(null);
+            if (user != null && username.equals(user.getUsername())) {
+                return user;
+            }
+            // the user has been renamed or deleted since the name was cached
+            idsByUsername.invalidate(username);
+        }
+
+        User user = userRepository.findByUsername(username);
+        if (user == null || recentlyChanged.getIfPresent(user.getId()) != null) {
+            // the replica may not have the user yet (e.g. a login right after the signup) or still have its old username
+            user = ReplicaRouting.onPrimary(() -> userRepository.findByUsername(username));
+        }
+        if (user == null) {
+            return null;
+        }
+        User copy = copyOf(user);
+        usersById.put(copy.getId(), copy);
+        idsByUsername.put(username, copy.getId());
+        return copy;
+    }
+
+    /**
+     * Removes the user from the cache. When called inside a transaction, the user
+     * is evicted again once the transaction has completed, so that a copy read by
+     * another thread before the commit doesn't stay in the cache.
+     *
+     * @param id
+     */
+    public void evict(Long id) {
+        if (id == null) {
+            return;
+        }
+        usersById.invalidate(id);
+        recentlyChanged.put(id, Boolean.TRUE);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    recentlyChanged.put(id, Boolean.TRUE);
+                    usersById.invalidate(id);
+                }
+            });
+        }
+    }
+
+    public void clear() {
+        usersById.invalidateAll();
+        idsByUsername.invalidateAll();
+    }
+
+    @Override
+    public String getStatsName() {
+        return "userCache";
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        putStats(stats, "byId", usersById.stats(), usersById.estimatedSize());
+        putStats(stats, "byUsername", idsByUsername.stats(), idsByUsername.estimatedSize());
+        return stats;
+    }
+
+    private static void putStats(Map<String, Number> stats, String prefix, CacheStats cacheStats, long size) {
+        stats.put(prefix + ".size", size);
+        stats.put(prefix + ".hits", cacheStats.hitCount());
+        stats.put(prefix + ".misses", cacheStats.missCount());
+        stats.put(prefix + ".hitRate", cacheStats.hitRate());
+        stats.put(prefix + ".evictions", cacheStats.evictionCount());
+    }
+
+    private static User copyOf(User user) {
+        User copy = new User();
+        copy.setId(user.getId());
+        copy.setUsername(user.getUsername());
+        copy.setPassword(user.getPassword());
+        copy.setCreationDate(user.getCreationDate());
+        copy.setBirthday(user.getBirthday());
+        copy.setToken(user.getToken());
+        copy.setTokenExpiry(user.getTokenExpiry());
+        copy.setStatus(user.getStatus());
+        copy.setVersion(user.getVersion());
+        return copy;
+    }
+
+}
@@ -0,0 +1,31 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+/**
+ * Published by the UserService whenever a user has been created, updated or
+ * has changed its presence status. It only carries the id, listeners read the
+ * current state of the user themselves.
+ */
+public class UserChangedEvent {
+
+    public enum Type {
+        CREATED, UPDATED, STATUS
+    }
+
+    private final Type type;
+
+    private final Long userId;
+
+    public UserChangedEvent(Type type, Long userId) {
+        this.type = type;
+        this.userId = userId;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+}
@@ -0,0 +1,311 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.mapper.DTOMapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * User Event Stream
+ * This class pushes the UserChangedEvents to the clients subscribed to
+ * GET /users/events (Server-Sent Events), so they don't have to poll the user
+ * list. Every event is serialized once and fanned out to all subscribers.
+ * Each subscriber has its own bounded queue that is drained on a shared thread
+ * pool; a subscriber that falls behind by a whole queue is disconnected instead
+ * of holding back the others, it resumes with the Last-Event-ID header.
+ * The last user.events.replay-size events are kept for that and sent to the
+ * emitter directly on reconnect, so a gap may be larger than the queue. A client
+ * that has missed more than those receives a "reset" event and has to reload
+ * the user list.
+ * Event ids start at the current time in microseconds, so they keep increasing
+ * across restarts of the instance. They are counted per instance though: a
+ * Last-Event-ID from another instance (e.g. after a reconnect through the load
+ * balancer) doesn't match this instance's events and is answered with a reset.
+ */
+@Component
+public class UserEventStream implements StatsSource {
+
+    private static final ObjectMapper OBJECT_MAPPER = Jackson2ObjectMapperBuilder.json().build();
+
+    private final Logger log = LoggerFactory.getLogger(UserEventStream.class);
+
+    private final UserCache userCache;
+
+    private final PresenceBuffer presenceBuffer;
+
+    private final long timeoutMillis;
+
+    private final int queueCapacity;
+
+    private final int replaySize;
+
+    private final int maxSubscribers;
+
+    private final ExecutorService executor;
+
+    // guarded by this, together with the sequence, so that replay and live events don't overlap
+    private final ArrayDeque<Event> replay = new ArrayDeque<>();
+
+    private long sequence = System.currentTimeMillis() * 1000;
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder published = new LongAdder();
+
+    private final LongAdder delivered = new LongAdder();
+
+    private final LongAdder replayed = new LongAdder();
+
+    private final LongAdder disconnectedSlow = new LongAdder();
+
+    @Autowired
+    public UserEventStream(UserCache userCache, PresenceBuffer presenceBuffer,
+                           @Value("${user.events.timeout-millis:1800000}") long timeoutMillis,
+                           @Value("${user.events.queue-capacity:256}") int queueCapacity,
+                           @Value("${user.events.replay-size:1024}") int replaySize,
+                           @Value("${user.events.max-subscribers:1000}") int maxSubscribers,
+                           @Value("${user.events.threads:4}") int threads) {
+        this.userCache = userCache;
+        this.presenceBuffer = presenceBuffer;
+        this.timeoutMillis = timeoutMillis;
+        this.queueCapacity = queueCapacity;
+        this.replaySize = replaySize;
+        this.maxSubscribers = maxSubscribers;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "user-events-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens a stream of user events.
+     *
+     * @param lastEventId the id of the last event the client has received, null for a new client
+     */
+    public SseEmitter subscribe(Long lastEventId) {
+        if (subscribers.size() >= maxSubscribers) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many event stream subscribers");
+        }
+        Subscriber subscriber = new Subscriber(new SseEmitter(timeoutMillis));
+        subscriber.emitter.onCompletion(() -> subscribers.remove(subscriber));
+        subscriber.emitter.onTimeout(() -> subscribers.remove(subscriber));
+        subscriber.emitter.onError(e -> subscribers.remove(subscriber));
+
+        synchronized (this) {
+            if (lastEventId != null && !replayTo(subscriber, lastEventId)) {
+                return subscriber.emitter;
+            }
+            subscribers.add(subscriber);
+        }
+        schedule(subscriber);
+        return subscriber.emitter;
+    }
+
+    /**
+     * Sends the missed events to the emitter, which holds them until the
+     * response has started, ahead of the live events in the queue.
+     *
+     * @return false if the emitter has failed
+     */
+    private boolean replayTo(Subscriber subscriber, long lastEventId) {
+        Event oldest = replay.peekFirst();
+        long missed = sequence - lastEventId;
+        try {
+            // events older than the replay buffer are gone, or the id comes from somewhere else
+            if (missed < 0 || missed > replaySize || (missed > 0 && (oldest == null || oldest.id > lastEventId + 1))) {
+                subscriber.emitter.send(new Event(sequence, "reset", "{}").toSse());
+                return true;
+            }
+            for (Event event : replay) {
+                if (event.id > lastEventId) {
+                    subscriber.emitter.send(event.toSse());
+                    replayed.increment();
+                }
+            }
+            return true;
+        }
+        catch (IOException | IllegalStateException e) {
+            subscriber.emitter.completeWithError(e);
+            return false;
+        }
+    }
+
+    synchronized long lastEventId() {
+        return sequence;
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onUserChanged(UserChangedEvent userChangedEvent) {
+        Optional<User> user = userCache.findById(userChangedEvent.getUserId());
+        if (user.isEmpty()) {
+            return;
+        }
+        UserGetDTO userGetDTO = DTOMapper.INSTANCE.convertEntityToUserGetDTO(user.get());
+        userGetDTO.setStatus(presenceBuffer.statusOf(user.get()));
+        String data;
+        try {
+            data = OBJECT_MAPPER.writeValueAsString(userGetDTO);
+        }
+        catch (JsonProcessingException e) {
+            log.warn("Could not serialize the event of user {}", userChangedEvent.getUserId(), e);
+            return;
+        }
+        publish(userChangedEvent.getType().name().toLowerCase(), data);
+    }
+
+    private void publish(String name, String data) {
+        synchronized (this) {
+            Event event = new Event(++sequence, name, data);
+            replay.addLast(event);
+            if (replay.size() > replaySize) {
+                replay.removeFirst();
+            }
+            for (Subscriber subscriber : subscribers) {
+                if (!subscriber.queue.offer(event)) {
+                    // the client doesn't keep up, it reconnects and resumes from its last event
+                    subscribers.remove(subscriber);
+                    disconnectedSlow.increment();
+                    subscriber.emitter.complete();
+                }
+            }
+        }
+        published.increment();
+        for (Subscriber subscriber : subscribers) {
+            schedule(subscriber);
+        }
+    }
+
+    /**
+     * Keeps idle connections open and detects clients that have gone away.
+     */
+    @Scheduled(fixedDelayString = "${user.events.heartbeat-millis:15000}")
+    public void heartbeat() {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.queue.offer(Event.HEARTBEAT)) {
+                schedule(subscriber);
+            }
+        }
+    }
+
+    private void schedule(Subscriber subscriber) {
+        if (!subscriber.queue.isEmpty() && subscriber.draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> drain(subscriber));
+            }
+            catch (RejectedExecutionException e) {
+                subscriber.draining.set(false);
+            }
+        }
+    }
+
+    private void drain(Subscriber subscriber) {
+        do {
+            Event event;
+            while ((event = subscriber.queue.poll()) != null) {
+                try {
+                    subscriber.emitter.send(event.toSse());
+                    if (event != Event.HEARTBEAT) {
+                        delivered.increment();
+                    }
+                }
+                catch (IOException | IllegalStateException e) {
+                    // the client has gone away or the emitter has been completed
+                    subscribers.remove(subscriber);
+                    subscriber.queue.clear();
+                    return;
+                }
+            }
+            subscriber.draining.set(false);
+        } while (!subscriber.queue.isEmpty() && subscriber.draining.compareAndSet(false, true));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.emitter.complete();
+        }
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String getStatsName() {
+        return "userEvents";
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("subscribers", subscribers.size());
+        stats.put("published", published.sum());
+        stats.put("delivered", delivered.sum());
+        stats.put("replayed", replayed.sum());
+        stats.put("disconnectedSlow", disconnectedSlow.sum());
+        return stats;
+    }
+
+    private final class Subscriber {
+
+        private final SseEmitter emitter;
+
+        private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        // true while a drain of this subscriber is scheduled or running
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        private Subscriber(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+    }
+
+    private static final class Event {
+
+        private static final Event HEARTBEAT = new Event(0, null, null);
+
+        private final long id;
+
+        private final String name;
+
+        private final String data;
+
+        private Event(long id, String name, String data) {
+            this.id = id;
+            this.name = name;
+            this.data = data;
+        }
+
+        private SseEmitter.SseEventBuilder toSse() {
+            if (this == HEARTBEAT) {
+                return SseEmitter.event().comment("heartbeat");
+            }
+            return SseEmitter.event().id(Long.toString(id)).name(name).data(data);
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * User Export Service
+ * Reads the whole USER table for GET /users/export through a forward-only,
+ * read-only JDBC cursor with a fixed fetch size. Each row is handed to the
+ * consumer as a detached User without going through Hibernate, so neither
+ * the persistence context nor the heap grows with the size of the table.
+ * Only the columns of the API representation are read, never the password
+ * or the token.
+ */
+@Service
+public class UserExportService implements StatsSource {
+
+    private static final String SELECT_SQL = "select id, username, creation_date, birthday, version, status from \"USER\" order by id";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final LongAdder exports = new LongAdder();
+
+    private final LongAdder exportedUsers = new LongAdder();
+
+    private final AtomicLong lastExportMillis = new AtomicLong();
+
+    @Autowired
+    public UserExportService(DataSource dataSource, @Value("${user.export.fetch-size:500}") int fetchSize) {
+        // a template of its own, the fetch size applies to every query of a template
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.jdbcTemplate.setFetchSize(fetchSize);
+    }
+
+    /**
+     * Passes all users ordered by id to the consumer, one at a time. The
+     * transaction keeps the connection (and on most databases the cursor) open
+     * while the consumer writes the response.
+     *
+     * @param consumer
+     * @return the number of exported users
+     */
+    @Transactional(readOnly = true)
+    public long exportUsers(Consumer<User> consumer) {
+        long start = System.nanoTime();
+        long[] count = new long[1];
+        jdbcTemplate.query(connection -> connection.prepareStatement(SELECT_SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY),
+                resultSet -> {
+                    consumer.accept(toUser(resultSet));
+                    count[0]++;
+                });
+        exports.increment();
+        exportedUsers.add(count[0]);
+        lastExportMillis.set((System.nanoTime() - start) / 1_000_000);
+        return count[0];
+    }
+
+    private static User toUser(ResultSet resultSet) throws SQLException {
+        User user = new User();
+        user.setId(resultSet.getLong("id"));
+        user.setUsername(resultSet.getString("username"));
+        user.setCreationDate(toDate(resultSet.getTimestamp("creation_date")));
+        user.setBirthday(toDate(resultSet.getTimestamp("birthday")));
+        user.setVersion(resultSet.getLong("version"));
+        user.setStatus(UserStatus.values()[resultSet.getInt("status")]);
+        return user;
+    }
+
+    private static Date toDate(Timestamp timestamp) {
+        return timestamp == null ? null : new Date(timestamp.getTime());
+    }
+
+    @Override
+    public String getStatsName() {
+        return "userExport";
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("exports", exports.sum());
+        stats.put("exportedUsers", exportedUsers.sum());
+        stats.put("lastExportMillis", lastExportMillis.get());
+        return stats;
+    }
+
+}
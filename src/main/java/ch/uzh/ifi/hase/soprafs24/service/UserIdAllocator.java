@@ -0,0 +1,164 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.entity.IdBlock;
+import ch.uzh.ifi.hase.soprafs24.repository.IdBlockRepository;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User Id Allocator
+ * This class hands out the ids of new users (hi/lo style). A block of ids is
+ * reserved in the ID_BLOCK table within its own short transaction, holding a
+ * row lock so that other threads and other application instances on the same
+ * database never get an overlapping block. The ids inside the current block are
+ * handed out with an atomic counter, so the database is only touched once per
+ * block.
+ */
+@Component
+public class UserIdAllocator {
+
+    static final String SEQUENCE_NAME = "USER";
+
+    private final Logger log = LoggerFactory.getLogger(UserIdAllocator.class);
+
+    private final IdBlockRepository idBlockRepository;
+
+    private final UserRepository userRepository;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final int blockSize;
+
+    private volatile Block current = Block.EMPTY;
+
+    @Autowired
+    public UserIdAllocator(@Qualifier("idBlockRepository") IdBlockRepository idBlockRepository,
+                           @Qualifier("userRepository") UserRepository userRepository,
+                           PlatformTransactionManager transactionManager,
+                           @Value("${user.id.block-size:50}") int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("user.id.block-size must be positive");
+        }
+        this.idBlockRepository = idBlockRepository;
+        this.userRepository = userRepository;
+        this.blockSize = blockSize;
+        // the reservation must commit independently of the caller's transaction,
+        // otherwise the row lock would be held until the user has been created
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * Returns the next free user id. Ids are unique across threads and instances,
+     * but not necessarily contiguous: the unused rest of a block is lost when the
+     * application stops.
+     *
+     * @return a user id that has not been handed out before
+     */
+    public long nextId() {
+        while (true) {
+            Block block = current;
+            long id = block.next.getAndIncrement();
+            if (id < block.limit) {
+                return id;
+            }
+            refill(block);
+        }
+    }
+
+    /**
+     * Reserves a range of consecutive ids for a bulk insert with a single
+     * reservation, independently of the current block.
+     *
+     * @param count the number of ids
+     * @return the first id of the range [first, first + count)
+     */
+    public long allocate(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("The number of ids must be positive");
+        }
+        long first = reserve(count);
+        log.debug("Reserved user ids [{}, {})", first, first + count);
+        return first;
+    }
+
+    private synchronized void refill(Block exhausted) {
+        if (current != exhausted) {
+            // another thread has already reserved a new block
+            return;
+        }
+        long first = reserve(blockSize);
+        current = new Block(first, first + blockSize);
+        log.debug("Reserved user ids [{}, {})", first, first + blockSize);
+    }
+
+    /**
+     * Moves the high-water mark of the sequence forward by the given amount and
+     * returns the first id of the reserved range.
+     */
+    private long reserve(int size) {
+        try {
+            return reserveInNewTransaction(size);
+        }
+        catch (DataIntegrityViolationException e) {
+            // two instances tried to create the sequence row at the same time,
+            // the row exists now so we can lock it
+            return reserveInNewTransaction(size);
+        }
+    }
+
+    private long reserveInNewTransaction(int size) {
+        Long first = transactionTemplate.execute(status -> {
+            IdBlock block = idBlockRepository.findForUpdate(SEQUENCE_NAME).orElseGet(this::createSequence);
+            long next = block.getNextValue();
+            block.setNextValue(next + size);
+            return next;
+        });
+        if (first == null) {
+            throw new IllegalStateException("Could not reserve a block of user ids");
+        }
+        return first;
+    }
+
+    /**
+     * Creates the sequence row on the first reservation. The sequence starts
+     * after the highest id that is already in use, this is the only time the
+     * USER table is looked at.
+     */
+    private IdBlock createSequence() {
+        Long maxId = userRepository.findMaxId();
+        IdBlock block = new IdBlock();
+        block.setName(SEQUENCE_NAME);
+        block.setNextValue(maxId == null ? 1L : maxId + 1);
+        return idBlockRepository.saveAndFlush(block);
+    }
+
+    /**
+     * Range of reserved ids, [next, limit)
+     */
+    private static final class Block {
+
+        static final Block EMPTY = new Block(0, 0);
+
+        final AtomicLong next;
+
+        final long limit;
+
+        Block(long first, long limit) {
+            this.next = new AtomicLong(first);
+            this.limit = limit;
+        }
+    }
+
+}
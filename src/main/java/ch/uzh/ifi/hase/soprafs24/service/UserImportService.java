@@ -0,0 +1,376 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * User Import Service
+ * Creates many users at once (POST /users/batch). Instead of the per-user work
+ * of UserService.createUser, all usernames are checked against the table with
+ * one set-based query, the ids are reserved with a single allocation and the
+ * users are inserted with JDBC batch statements, one transaction per chunk.
+ * Every user gets its own result: a rejected user doesn't fail the others.
+ */
+@Service
+public class UserImportService implements StatsSource {
+
+    private static final String NOT_UNIQUE_ERROR_MESSAGE = "The username provided is not unique. Therefore, the user could not be created!";
+
+    private static final String INSERT_SQL = "insert into \"USER\" (id, username, password, creation_date, birthday, token, token_expiry, status, version)"
+            + " values (?, ?, ?, ?, ?, ?, ?, ?, 0)";
+
+    // usernames per IN list, keeps the statement within the parameter limits of the database
+    private static final int QUERY_CHUNK_SIZE = 1000;
+
+    private final Logger log = LoggerFactory.getLogger(UserImportService.class);
+
+    private final UserRepository userRepository;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final UserIdAllocator userIdAllocator;
+
+    private final UsernameIndex usernameIndex;
+
+    private final UsernameSearchIndex usernameSearchIndex;
+
+    private final PasswordHasher passwordHasher;
+
+    private final UserTableVersion userTableVersion;
+
+    private final TokenIndex tokenIndex;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final int chunkSize;
+
+    private final int maxBatchSize;
+
+    private final int hashConcurrency;
+
+    private final LongAdder batches = new LongAdder();
+
+    private final LongAdder created = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder chunkFallbacks = new LongAdder();
+
+    @Autowired
+    public UserImportService(@Qualifier("userRepository") UserRepository userRepository, JdbcTemplate jdbcTemplate,
+                             PlatformTransactionManager transactionManager, UserIdAllocator userIdAllocator,
+                             UsernameIndex usernameIndex, UsernameSearchIndex usernameSearchIndex,
+                             PasswordHasher passwordHasher, TokenIndex tokenIndex, UserTableVersion userTableVersion,
+                             ApplicationEventPublisher eventPublisher,
+                             @Value("${user.import.chunk-size:500}") int chunkSize,
+                             @Value("${user.import.max-batch-size:10000}") int maxBatchSize,
+                             @Value("${user.import.hash-concurrency:8}") int hashConcurrency) {
+        this.userRepository = userRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.userIdAllocator = userIdAllocator;
+        this.usernameIndex = usernameIndex;
+        this.usernameSearchIndex = usernameSearchIndex;
+        this.passwordHasher = passwordHasher;
+        this.userTableVersion = userTableVersion;
+        this.tokenIndex = tokenIndex;
+        this.eventPublisher = eventPublisher;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.maxBatchSize = maxBatchSize;
+        this.hashConcurrency = Math.max(1, hashConcurrency);
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Creates the given users, with the same rules as UserService.createUser.
+     *
+     * @param users the users in the internal representation, with username, password and birthday
+     * @return one result per user, in the same order
+     * @throws org.springframework.web.server.ResponseStatusException 413 if there are more than user.import.max-batch-size users
+     */
+    public List<ImportResult> importUsers(List<User> users) {
+        if (users.size() > maxBatchSize) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                    String.format("At most %d users can be imported at once", maxBatchSize));
+        }
+        long start = System.nanoTime();
+        ImportResult[] results = new ImportResult[users.size()];
+        List<Integer> accepted = rejectTakenUsernames(users, validate(users, results), results);
+
+        if (!accepted.isEmpty()) {
+            // one reservation for all ids, the ids of rejected rows are lost like those of failed creations
+            long firstId = userIdAllocator.allocate(accepted.size());
+            for (int from = 0; from < accepted.size(); from += chunkSize) {
+                List<Integer> chunk = accepted.subList(from, Math.min(from + chunkSize, accepted.size()));
+                insertChunk(users, chunk, firstId + from, results);
+            }
+        }
+
+        int createdCount = 0;
+        for (ImportResult result : results) {
+            if (result.getStatus() == HttpStatus.CREATED) {
+                createdCount++;
+            }
+        }
+        batches.increment();
+        created.add(createdCount);
+        rejected.add(results.length - createdCount);
+        log.debug("Imported {} of {} users in {} ms", createdCount, results.length, (System.nanoTime() - start) / 1_000_000);
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Rejects empty usernames and passwords and the repetitions of a username
+     * within the batch.
+     *
+     * @return the indexes of the valid users
+     */
+    private List<Integer> validate(List<User> users, ImportResult[] results) {
+        List<Integer> valid = new ArrayList<>(users.size());
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < users.size(); i++) {
+            User user = users.get(i);
+            if (user.getUsername() == null || user.getUsername().trim().isEmpty()) {
+                results[i] = ImportResult.rejected(i, user.getUsername(), HttpStatus.CONFLICT, "The username can't be empty");
+            }
+            else if (user.getPassword() == null || user.getPassword().trim().isEmpty()) {
+                results[i] = ImportResult.rejected(i, user.getUsername(), HttpStatus.CONFLICT, "The password can't be empty");
+            }
+            else if (!seen.add(user.getUsername())) {
+                results[i] = ImportResult.rejected(i, user.getUsername(), HttpStatus.CONFLICT, NOT_UNIQUE_ERROR_MESSAGE);
+            }
+            else {
+                valid.add(i);
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Rejects the users whose username is already taken. Only the usernames the
+     * index doesn't rule out are looked up, with one IN query per
+     * {@value #QUERY_CHUNK_SIZE} names.
+     *
+     * @return the indexes of the users that can be inserted
+     */
+    private List<Integer> rejectTakenUsernames(List<User> users, List<Integer> candidates, ImportResult[] results) {
+        List<String> toCheck = new ArrayList<>();
+        for (Integer index : candidates) {
+            String username = users.get(index).getUsername();
+            if (usernameIndex.mightExist(username)) {
+                toCheck.add(username);
+            }
+        }
+        Set<String> taken = new HashSet<>();
+        for (int from = 0; from < toCheck.size(); from += QUERY_CHUNK_SIZE) {
+            taken.addAll(userRepository.findExistingUsernames(toCheck.subList(from, Math.min(from + QUERY_CHUNK_SIZE, toCheck.size()))));
+        }
+        for (int i = taken.size(); i < toCheck.size(); i++) {
+            usernameIndex.falsePositive();
+        }
+
+        List<Integer> accepted = new ArrayList<>(candidates.size());
+        for (Integer index : candidates) {
+            String username = users.get(index).getUsername();
+            if (taken.contains(username)) {
+                results[index] = ImportResult.rejected(index, username, HttpStatus.CONFLICT, NOT_UNIQUE_ERROR_MESSAGE);
+            }
+            else {
+                accepted.add(index);
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Hashes the passwords of the chunk and inserts its users in one
+     * transaction. If another instance has taken one of the usernames in the
+     * meantime, the users of the chunk are inserted one by one to find it.
+     */
+    private void insertChunk(List<User> users, List<Integer> chunk, long firstId, ImportResult[] results) {
+        String[] passwordHashes = hashPasswords(users, chunk, results);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        Timestamp tokenExpiry = new Timestamp(tokenIndex.newExpiry().getTime());
+
+        List<Integer> indexes = new ArrayList<>(chunk.size());
+        List<Object[]> rows = new ArrayList<>(chunk.size());
+        for (int i = 0; i < chunk.size(); i++) {
+            if (passwordHashes[i] == null) {
+                continue;
+            }
+            User user = users.get(chunk.get(i));
+            indexes.add(chunk.get(i));
+            rows.add(new Object[]{firstId + i, user.getUsername(), passwordHashes[i], now,
+                    user.getBirthday() == null ? null : new Timestamp(user.getBirthday().getTime()),
+                    UUID.randomUUID().toString(), tokenExpiry, UserStatus.OFFLINE.ordinal()});
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.batchUpdate(INSERT_SQL, rows);
+                userTableVersion.increment();
+                rows.forEach(this::publishCreated);
+            });
+            for (int i = 0; i < rows.size(); i++) {
+                created(indexes.get(i), rows.get(i), results);
+            }
+        }
+        catch (DataIntegrityViolationException e) {
+            chunkFallbacks.increment();
+            for (int i = 0; i < rows.size(); i++) {
+                Object[] row = rows.get(i);
+                try {
+                    transactionTemplate.executeWithoutResult(status -> {
+                        jdbcTemplate.update(INSERT_SQL, row);
+                        userTableVersion.increment();
+                        publishCreated(row);
+                    });
+                    created(indexes.get(i), row, results);
+                }
+                catch (DataIntegrityViolationException rowException) {
+                    results[indexes.get(i)] = ImportResult.rejected(indexes.get(i), (String) row[1], HttpStatus.CONFLICT,
+                            NOT_UNIQUE_ERROR_MESSAGE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes the passwords on the PasswordHasher's threads with at most
+     * user.import.hash-concurrency hashes in flight, so an import doesn't take
+     * the whole queue from the logins.
+     *
+     * @return the hashes, null where the user has been rejected
+     */
+    private String[] hashPasswords(List<User> users, List<Integer> chunk, ImportResult[] results) {
+        List<CompletableFuture<String>> futures = new ArrayList<>(chunk.size());
+        String[] passwordHashes = new String[chunk.size()];
+        for (int i = 0; i < chunk.size(); i++) {
+            if (i >= hashConcurrency) {
+                passwordHashes[i - hashConcurrency] = awaitHash(futures.get(i - hashConcurrency), users, chunk.get(i - hashConcurrency), results);
+            }
+            futures.add(passwordHasher.hashAsync(users.get(chunk.get(i)).getPassword()));
+        }
+        for (int i = Math.max(0, chunk.size() - hashConcurrency); i < chunk.size(); i++) {
+            passwordHashes[i] = awaitHash(futures.get(i), users, chunk.get(i), results);
+        }
+        return passwordHashes;
+    }
+
+    private static String awaitHash(CompletableFuture<String> future, List<User> users, int index, ImportResult[] results) {
+        try {
+            return future.join();
+        }
+        catch (CompletionException e) {
+            String reason = e.getCause() instanceof ResponseStatusException ? ((ResponseStatusException) e.getCause()).getReason()
+                    : "The password could not be hashed";
+            results[index] = ImportResult.rejected(index, users.get(index).getUsername(), HttpStatus.SERVICE_UNAVAILABLE, reason);
+            return null;
+        }
+    }
+
+    private void created(int index, Object[] row, ImportResult[] results) {
+        String username = (String) row[1];
+        usernameIndex.add(username);
+        usernameSearchIndex.add((Long) row[0], username);
+        results[index] = new ImportResult(index, username, HttpStatus.CREATED, (Long) row[0], null);
+    }
+
+    private void publishCreated(Object[] row) {
+        // delivered once the chunk has been committed
+        eventPublisher.publishEvent(new UserChangedEvent(UserChangedEvent.Type.CREATED, (Long) row[0]));
+    }
+
+    @Override
+    public String getStatsName() {
+        return "userImport";
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("batches", batches.sum());
+        stats.put("created", created.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("chunkFallbacks", chunkFallbacks.sum());
+        return stats;
+    }
+
+    /**
+     * The outcome for one user of an import.
+     */
+    public static final class ImportResult {
+
+        private final int index;
+
+        private final String username;
+
+        private final HttpStatus status;
+
+        private final Long id;
+
+        private final String error;
+
+        private ImportResult(int index, String username, HttpStatus status, Long id, String error) {
+            this.index = index;
+            this.username = username;
+            this.status = status;
+            this.id = id;
+            this.error = error;
+        }
+
+        private static ImportResult rejected(int index, String username, HttpStatus status, String error) {
+            return new ImportResult(index, username, status, null, error);
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public HttpStatus getStatus() {
+            return status;
+        }
+
+        public Long getId() {
+            return id;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+}
@@ -7,15 +7,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.server.ResponseStatusException;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * User Service
@@ -23,26 +34,105 @@ import java.util.UUID;
  * the user
  * (e.g., it creates, modifies, deletes, finds). The result will be passed back
  * to the caller.
+ * The methods that only read run in read-only transactions: they are routed to
+ * the replica, Hibernate doesn't flush them and keeps no snapshots of the
+ * loaded entities for dirty checking.
  */
 @Service
 @Transactional
 public class UserService {
 
+    private static final String NOT_UNIQUE_ERROR_MESSAGE = "The %s provided %s not unique. Therefore, the user could not be created!";
+
+    private static final String VERSION_CHANGED_ERROR_MESSAGE = "The user has been changed since it was read";
+
     private final Logger log = LoggerFactory.getLogger(UserService.class);
 
     private final UserRepository userRepository;
 
+    private final UserIdAllocator userIdAllocator;
+
+    private final UserCache userCache;
+
+    private final UsernameIndex usernameIndex;
+
+    private final UsernameSearchIndex usernameSearchIndex;
+
+    private final PasswordHasher passwordHasher;
+
+    private final TokenIndex tokenIndex;
+
+    private final PresenceBuffer presenceBuffer;
+
+    private final UserTableVersion userTableVersion;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final TransactionTemplate transactionTemplate;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
     @Autowired
-    public UserService(@Qualifier("userRepository") UserRepository userRepository) {
+    public UserService(@Qualifier("userRepository") UserRepository userRepository, UserIdAllocator userIdAllocator,
+                       UserCache userCache, UsernameIndex usernameIndex, UsernameSearchIndex usernameSearchIndex,
+                       PasswordHasher passwordHasher, TokenIndex tokenIndex, PresenceBuffer presenceBuffer,
+                       UserTableVersion userTableVersion, ApplicationEventPublisher eventPublisher,
+                       PlatformTransactionManager transactionManager) {
         this.userRepository = userRepository;
+        this.userIdAllocator = userIdAllocator;
+        this.userCache = userCache;
+        this.usernameIndex = usernameIndex;
+        this.usernameSearchIndex = usernameSearchIndex;
+        this.passwordHasher = passwordHasher;
+        this.tokenIndex = tokenIndex;
+        this.presenceBuffer = presenceBuffer;
+        this.userTableVersion = userTableVersion;
+        this.eventPublisher = eventPublisher;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
     }
 
+    @Transactional(readOnly = true)
     public List<User> getUsers() {
         return this.userRepository.findAll();
     }
 
+    /**
+     * Returns at most limit users with an id greater than the given cursor,
+     * ordered by id.
+     *
+     * @param after the id of the last user of the previous page, null for the first page
+     * @param limit the maximum number of users returned
+     */
+    @Transactional(readOnly = true)
+    public List<User> getUsers(Long after, int limit) {
+        return this.userRepository.findByIdGreaterThanOrderByIdAsc(after == null ? 0L : after, PageRequest.of(0, limit));
+    }
+
+    /**
+     * Passes all users ordered by id to the consumer, one at a time. Every user
+     * is detached after it has been consumed, so the persistence context (and
+     * the heap) doesn't grow with the size of the table.
+     *
+     * @param consumer
+     */
+    @Transactional(readOnly = true)
+    public void streamUsers(Consumer<User> consumer) {
+        try (Stream<User> users = this.userRepository.streamAll()) {
+            users.forEach(user -> {
+                consumer.accept(user);
+                entityManager.detach(user);
+            });
+        }
+    }
+
+    /**
+     * Returns the user with the given id. The user may come from the UserCache
+     * and must not be modified.
+     */
+    @Transactional(readOnly = true)
     public User getUser(Long id) {
-        Optional<User> userById = userRepository.findById(id);
+        Optional<User> userById = userCache.findById(id);
         String baseErrorMessage = "User with userId %d was not found";
 
         if (userById.isEmpty()) {
@@ -51,8 +141,23 @@ public class UserService {
         return userById.get();
     }
 
+    /**
+     * Returns the user with the given id in at least the given version. The
+     * user may come from the UserCache and must not be modified.
+     */
+    @Transactional(readOnly = true)
+    public User getUser(Long id, long minVersion) {
+        return userCache.findById(id, minVersion).orElseThrow(() ->
+                new ResponseStatusException(HttpStatus.NOT_FOUND, String.format("User with userId %d was not found", id)));
+    }
+
+    /**
+     * Returns the user with the given username. The user may come from the
+     * UserCache and must not be modified.
+     */
+    @Transactional(readOnly = true)
     public User getUser(String username) {
-        User user = userRepository.findByUsername(username);
+        User user = userCache.findByUsername(username);
         String baseErrorMessage = "username %s was not found";
 
         if (user == null) {
@@ -61,19 +166,68 @@ public class UserService {
         return user;
     }
 
-    public User createUser(User newUser) {
+    /**
+     * Returns the version of the user without loading it.
+     *
+     * @return null if the user doesn't exist
+     */
+    @Transactional(readOnly = true)
+    public Long getVersion(Long id) {
+        return userRepository.findVersionById(id);
+    }
 
-        Long max = 0L;
-        List<User> users = getUsers();
-        for(int x = 0; x < users.size(); x++) {
-            User user = users.get(x);
-            if(user.getId() > max) {
-                max = user.getId();
-            }
+    /**
+     * Returns the entity tag of the user in the given version, including a
+     * status change that hasn't been written yet.
+     */
+    public String getUserETag(Long id, long version) {
+        return formatUserETag(id, version, presenceBuffer.pendingStatus(id));
+    }
+
+    static String formatUserETag(Long id, long version, UserStatus pendingStatus) {
+        return pendingStatus == null ? String.format("%d-%d", id, version)
+                : String.format("%d-%d-%s", id, version, pendingStatus);
+    }
+
+    /**
+     * Returns the entity tag of the user list, it changes whenever a user is
+     * created, updated or deleted, or has a status change that hasn't been
+     * written yet.
+     */
+    @Transactional(readOnly = true)
+    public String getUsersETag() {
+        return formatUsersETag(userTableVersion.getVersion(), presenceBuffer.pendingGeneration());
+    }
+
+    static String formatUsersETag(long tableVersion, long pendingGeneration) {
+        return String.format("%d-%d", tableVersion, pendingGeneration);
+    }
+
+    /**
+     * Finds usernames by prefix for autocompletion, from memory only.
+     *
+     * @param prefix
+     * @param limit
+     * @return up to limit matches ordered by username
+     * @throws org.springframework.web.server.ResponseStatusException 503 while the index is built on startup
+     */
+    public List<UsernameSearchIndex.Match> searchUsernames(String prefix, int limit) {
+        if (!usernameSearchIndex.isReady()) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "The username search index is being built");
         }
-        users.forEach(user -> {
+        return usernameSearchIndex.search(prefix, limit);
+    }
 
-        });
+    /**
+     * Creates the user with a hashed password. The password is hashed before the
+     * transaction that inserts the user begins, so no transaction (and no
+     * connection) is held while the request waits for the PasswordHasher.
+     *
+     * @param newUser
+     * @return the created user with its id and token
+     */
+    @Transactional(propagation = Propagation.SUPPORTS)
+    public User createUser(User newUser) {
 
         if (newUser.getUsername() == null || newUser.getUsername().trim().isEmpty()) {
             throw new ResponseStatusException(HttpStatus.CONFLICT, "The username can't be empty");
@@ -83,31 +237,138 @@ public class UserService {
             throw new ResponseStatusException(HttpStatus.CONFLICT, "The password can't be empty");
         }
 
-        newUser.setId(max + 1);
+        checkIfUserExists(newUser);
+        String passwordHash = passwordHasher.hash(newUser.getPassword());
+        return transactionTemplate.execute(status -> insertUser(newUser, passwordHash));
+    }
+
+    private User insertUser(User newUser, String passwordHash) {
+        newUser.setPassword(passwordHash);
+        // the id is only allocated once the input is valid, so rejected requests don't use up ids
+        newUser.setId(userIdAllocator.nextId());
         newUser.setToken(UUID.randomUUID().toString());
+        newUser.setTokenExpiry(tokenIndex.newExpiry());
         newUser.setStatus(UserStatus.OFFLINE);
         newUser.setCreationDate(new Date());
-        checkIfUserExists(newUser);
         // saves the given entity but data is only persisted in the database once
         // flush() is called
         newUser = userRepository.save(newUser);
-        userRepository.flush();
+        flushUniqueUsername();
+        usernameIndex.add(newUser.getUsername());
+        usernameSearchIndex.add(newUser.getId(), newUser.getUsername());
+        tokenIndex.put(newUser.getToken(), newUser.getId(), newUser.getTokenExpiry());
+        // delivered once the transaction has been committed
+        eventPublisher.publishEvent(new UserChangedEvent(UserChangedEvent.Type.CREATED, newUser.getId()));
 
         log.debug("Created Information for User: {}", newUser);
         return newUser;
     }
 
     public User updateUser(Long id, User newUser) {
-        User user = getUser(id);
+        return updateUser(id, newUser, null);
+    }
+
+    /**
+     * Updates the username and the birthday of the user. The row is only
+     * written if it still has the version that has been read (@Version), a
+     * concurrent change makes the update fail instead of being overwritten.
+     *
+     * @param id
+     * @param newUser
+     * @param expectedVersion the version the client has seen (If-Match), null for any
+     * @throws org.springframework.web.server.ResponseStatusException 412 if the user is no longer in the expected version
+     * @throws org.springframework.dao.OptimisticLockingFailureException if the user has been changed concurrently
+     * without an expected version, the update can be retried (OptimisticRetry)
+     */
+    public User updateUser(Long id, User newUser, Long expectedVersion) {
+        // the entity is loaded from the repository since it is modified
+        Optional<User> userById = userRepository.findById(id);
+        if (userById.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, String.format("User with userId %d was not found", id));
+        }
+        User user = userById.get();
+        if (expectedVersion != null && !expectedVersion.equals(user.getVersion())) {
+            throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, VERSION_CHANGED_ERROR_MESSAGE);
+        }
         if(!newUser.getUsername().equals(user.getUsername())) {
             checkIfUserExists(newUser);
         }
+        String oldUsername = user.getUsername();
         user.setBirthday(newUser.getBirthday());
         user.setUsername(newUser.getUsername());
+        try {
+            flushUniqueUsername();
+        }
+        catch (OptimisticLockingFailureException e) {
+            // changed between the read and the write, e.g. by a status change
+            if (expectedVersion != null) {
+                throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, VERSION_CHANGED_ERROR_MESSAGE);
+            }
+            throw e;
+        }
+        usernameIndex.add(user.getUsername());
+        usernameSearchIndex.rename(user.getId(), oldUsername, user.getUsername());
+        eventPublisher.publishEvent(new UserChangedEvent(UserChangedEvent.Type.UPDATED, user.getId()));
         log.debug("Updated Information for User: {}", user);
         return user;
     }
 
+    /**
+     * Replaces the token of the user with a new one, the old token is rejected
+     * from now on.
+     *
+     * @param id
+     * @return the user with the new token and its expiry
+     */
+    public User issueToken(Long id) {
+        Optional<User> userById = userRepository.findById(id);
+        if (userById.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, String.format("User with userId %d was not found", id));
+        }
+        User user = userById.get();
+        String oldToken = user.getToken();
+        user.setToken(UUID.randomUUID().toString());
+        user.setTokenExpiry(tokenIndex.newExpiry());
+        userRepository.flush();
+        tokenIndex.invalidate(oldToken);
+        tokenIndex.put(user.getToken(), user.getId(), user.getTokenExpiry());
+        return user;
+    }
+
+    /**
+     * Sets the presence status of the user. The change is buffered and written
+     * to the database shortly afterwards, nothing is written if the user doesn't
+     * exist.
+     *
+     * @param id
+     * @param status
+     */
+    @Transactional(propagation = Propagation.SUPPORTS)
+    public void setStatus(Long id, UserStatus status) {
+        presenceBuffer.setStatus(id, status);
+        eventPublisher.publishEvent(new UserChangedEvent(UserChangedEvent.Type.STATUS, id));
+    }
+
+    /**
+     * @return the current presence status of the user, including a change that
+     * hasn't been written to the database yet
+     */
+    @Transactional(propagation = Propagation.SUPPORTS)
+    public UserStatus getStatus(User user) {
+        return presenceBuffer.statusOf(user);
+    }
+
+    /**
+     * Replaces the stored password hash of the user, e.g. after the cost
+     * factor has been raised.
+     *
+     * @param id
+     * @param passwordHash the password hashed by the PasswordHasher
+     */
+    public void setPasswordHash(Long id, String passwordHash) {
+        userRepository.findById(id).ifPresent(user -> user.setPassword(passwordHash));
+    }
+
     /**
      * This is a helper method that will check the uniqueness criteria of the
      * username and the name
@@ -119,12 +380,29 @@ public class UserService {
      * @see User
      */
     private void checkIfUserExists(User userToBeCreated) {
-        User userByUsername = userRepository.findByUsername(userToBeCreated.getUsername());
-
-        String baseErrorMessage = "The %s provided %s not unique. Therefore, the user could not be created!";
+        // most usernames are free, the index proves that without a query
+        if (!usernameIndex.mightExist(userToBeCreated.getUsername())) {
+            return;
+        }
+        User userByUsername = userCache.findByUsername(userToBeCreated.getUsername());
 
         if (userByUsername != null) {
-            throw new ResponseStatusException(HttpStatus.CONFLICT, String.format(baseErrorMessage, "username", "is"));
+            throw new ResponseStatusException(HttpStatus.CONFLICT, String.format(NOT_UNIQUE_ERROR_MESSAGE, "username", "is"));
+        }
+        usernameIndex.falsePositive();
+    }
+
+    /**
+     * Flushes the pending changes. The username index only knows the names of
+     * this instance, if another instance has taken the same username in the
+     * meantime, the unique constraint of the database rejects it.
+     */
+    private void flushUniqueUsername() {
+        try {
+            userRepository.flush();
+        }
+        catch (DataIntegrityViolationException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, String.format(NOT_UNIQUE_ERROR_MESSAGE, "username", "is"));
         }
     }
 
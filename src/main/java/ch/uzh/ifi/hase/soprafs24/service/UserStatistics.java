@@ -0,0 +1,178 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * User Statistics
+ * This class keeps the number of users per presence status and the signups
+ * of the last days in counters, so GET /users/stats never reads the USER
+ * table. Created users are counted once their transaction has committed,
+ * status changes once the PresenceBuffer has written them, so the counters
+ * follow the table. They are replaced by counts from the database on startup
+ * and periodically, which corrects changes made around the counters, e.g.
+ * by a reactive instance or directly in the database.
+ * Days are those of the server's time zone, like the stored creation dates.
+ */
+@Component
+public class UserStatistics implements StatsSource {
+
+    private static final String COUNT_BY_STATUS = "select status, count(*) as users from \"USER\" group by status";
+
+    private static final String COUNT_SIGNUPS_BY_DAY = "select cast(creation_date as date) as signup_day, count(*) as signups "
+            + "from \"USER\" where creation_date >= ? group by cast(creation_date as date)";
+
+    private final Logger log = LoggerFactory.getLogger(UserStatistics.class);
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final int signupDays;
+
+    private final LongAdder[] statusCounts = new LongAdder[UserStatus.values().length];
+
+    // epoch day -> signups, only the days of the window are kept
+    private final ConcurrentHashMap<Long, LongAdder> signupsPerDay = new ConcurrentHashMap<>();
+
+    private final LongAdder reconciliations = new LongAdder();
+
+    private final AtomicLong lastReconcileMillis = new AtomicLong();
+
+    private final AtomicLong lastDrift = new AtomicLong();
+
+    @Autowired
+    public UserStatistics(JdbcTemplate jdbcTemplate, PresenceBuffer presenceBuffer,
+                          @Value("${user.stats.signup-days:30}") int signupDays) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.signupDays = Math.max(1, signupDays);
+        for (UserStatus status : UserStatus.values()) {
+            statusCounts[status.ordinal()] = new LongAdder();
+        }
+        presenceBuffer.addStatusListener(this::statusWritten);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onUserChanged(UserChangedEvent userChangedEvent) {
+        if (userChangedEvent.getType() == UserChangedEvent.Type.CREATED) {
+            // new users are stored OFFLINE, with the current time as creation date
+            statusCounts[UserStatus.OFFLINE.ordinal()].increment();
+            signupsPerDay.computeIfAbsent(today(), day -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Called by the PresenceBuffer for every row whose status it has changed.
+     * ONLINE and OFFLINE are the only statuses, so the row had the other one.
+     */
+    void statusWritten(UserStatus status) {
+        statusCounts[status.ordinal()].increment();
+        UserStatus previous = status == UserStatus.ONLINE ? UserStatus.OFFLINE : UserStatus.ONLINE;
+        statusCounts[previous.ordinal()].decrement();
+    }
+
+    /**
+     * @return the number of users per status, all statuses included
+     */
+    public Map<UserStatus, Long> getStatusCounts() {
+        Map<UserStatus, Long> counts = new EnumMap<>(UserStatus.class);
+        for (UserStatus status : UserStatus.values()) {
+            counts.put(status, Math.max(0, statusCounts[status.ordinal()].sum()));
+        }
+        return counts;
+    }
+
+    /**
+     * @return the signups of each day of the window, the oldest first and today last
+     */
+    public Map<LocalDate, Long> getSignupsPerDay() {
+        Map<LocalDate, Long> signups = new LinkedHashMap<>();
+        long today = today();
+        for (long day = today - signupDays + 1; day <= today; day++) {
+            LongAdder count = signupsPerDay.get(day);
+            signups.put(LocalDate.ofEpochDay(day), count == null ? 0 : count.sum());
+        }
+        return signups;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(initialDelayString = "${user.stats.reconcile-interval-millis:60000}",
+            fixedDelayString = "${user.stats.reconcile-interval-millis:60000}")
+    public synchronized void reconcile() {
+        long start = System.nanoTime();
+        long firstDay = today() - signupDays + 1;
+        Map<Integer, Long> usersByStatus = new HashMap<>();
+        Map<Long, Long> signupsByDay = new HashMap<>();
+        try {
+            jdbcTemplate.query(COUNT_BY_STATUS, resultSet -> {
+                usersByStatus.put(resultSet.getInt("status"), resultSet.getLong("users"));
+            });
+            Timestamp since = Timestamp.valueOf(LocalDate.ofEpochDay(firstDay).atStartOfDay());
+            jdbcTemplate.query(COUNT_SIGNUPS_BY_DAY, resultSet -> {
+                signupsByDay.put(resultSet.getDate("signup_day").toLocalDate().toEpochDay(), resultSet.getLong("signups"));
+            }, since);
+        }
+        catch (DataAccessException e) {
+            // the counters keep their values until the next reconciliation
+            log.warn("Could not reconcile the user statistics", e);
+            return;
+        }
+
+        // changes counted while the queries ran may be lost, the next reconciliation restores them
+        long drift = 0;
+        for (UserStatus status : UserStatus.values()) {
+            LongAdder counter = statusCounts[status.ordinal()];
+            long difference = usersByStatus.getOrDefault(status.ordinal(), 0L) - counter.sum();
+            counter.add(difference);
+            drift += Math.abs(difference);
+        }
+        signupsPerDay.keySet().removeIf(day -> day < firstDay);
+        for (long day = firstDay; day <= today(); day++) {
+            LongAdder counter = signupsPerDay.computeIfAbsent(day, key -> new LongAdder());
+            counter.add(signupsByDay.getOrDefault(day, 0L) - counter.sum());
+        }
+
+        lastDrift.set(drift);
+        reconciliations.increment();
+        lastReconcileMillis.set((System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static long today() {
+        return LocalDate.now(ZoneId.systemDefault()).toEpochDay();
+    }
+
+    @Override
+    public String getStatsName() {
+        return "userStatistics";
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("reconciliations", reconciliations.sum());
+        stats.put("lastReconcileMillis", lastReconcileMillis.get());
+        stats.put("lastDrift", lastDrift.get());
+        return stats;
+    }
+
+}
@@ -0,0 +1,115 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+
+/**
+ * User Table Version
+ * This class keeps a counter of the changes of the USER table in a single row
+ * of the TABLE_VERSION table, so that the entity tag of the user list costs one
+ * primary key lookup instead of a scan of the table.
+ * The counter is incremented for every write: by the UserEntityListener for
+ * the entities, by the import and the presence flush for their JDBC batches.
+ * The increment runs once the write has committed, in a transaction of its
+ * own, so the row is only locked for that one statement and never while a
+ * write transaction is open. A poll between the commit and the increment sees
+ * the new users under the old tag, they are fetched again with the new one.
+ * The row is created once at startup.
+ */
+@Component
+public class UserTableVersion {
+
+    static final String TABLE_NAME = "USER";
+
+    private static final String INCREMENT = "update TABLE_VERSION set version = version + 1 where name = ?";
+
+    private static final String CREATE = "insert into TABLE_VERSION (name, version) values (?, 0)";
+
+    private final Logger log = LoggerFactory.getLogger(UserTableVersion.class);
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    @Autowired
+    public UserTableVersion(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = jdbcTemplate;
+        // the write transaction has already committed, its connection mustn't be reused
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * Creates the counter once the schema exists, outside of any transaction,
+     * so the writes only have to update it.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void createIfMissing() {
+        if (current() != null) {
+            return;
+        }
+        try {
+            jdbcTemplate.update(CREATE, TABLE_NAME);
+        }
+        catch (DuplicateKeyException e) {
+            // created by another instance in the meantime
+        }
+    }
+
+    /**
+     * Increments the counter once the current transaction has committed, or at
+     * once outside of a transaction.
+     */
+    public void increment() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    incrementNow();
+                }
+            });
+        }
+        else {
+            incrementNow();
+        }
+    }
+
+    /**
+     * @return the number of changes of the USER table, 0 before the first change
+     */
+    public long getVersion() {
+        Long version = current();
+        return version == null ? 0 : version;
+    }
+
+    private void incrementNow() {
+        try {
+            transactionTemplate.executeWithoutResult(status -> jdbcTemplate.update(INCREMENT, TABLE_NAME));
+        }
+        catch (DataAccessException | TransactionException e) {
+            // the write has committed, the list is fetched again with the tag of the next change
+            log.warn("Could not increment the version of the {} table", TABLE_NAME, e);
+        }
+    }
+
+    private Long current() {
+        List<Long> versions = jdbcTemplate.queryForList("select version from TABLE_VERSION where name = ?", Long.class, TABLE_NAME);
+        return versions.isEmpty() ? null : versions.get(0);
+    }
+
+}
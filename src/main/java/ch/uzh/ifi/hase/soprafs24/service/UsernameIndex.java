@@ -0,0 +1,128 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs24.util.BloomFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Username Index
+ * This class keeps a Bloom filter of all usernames in memory. Most usernames
+ * that are checked for uniqueness are free, the filter proves that without a
+ * query; only names that might exist have to be confirmed against the database.
+ * The filter is built from the USER table once the application has started,
+ * until then every name might exist. Names are added on create and rename but
+ * never removed, an old name only costs an additional query.
+ */
+@Component
+public class UsernameIndex implements StatsSource {
+
+    private final Logger log = LoggerFactory.getLogger(UsernameIndex.class);
+
+    private final UserRepository userRepository;
+
+    private final TransactionTemplate transactionTemplate;
+
+    // created up front, so that names added while the table is read are not lost
+    private final BloomFilter filter;
+
+    private volatile boolean ready;
+
+    private volatile long buildMillis;
+
+    private final LongAdder names = new LongAdder();
+
+    private final LongAdder checks = new LongAdder();
+
+    private final LongAdder definitelyFree = new LongAdder();
+
+    private final LongAdder falsePositives = new LongAdder();
+
+    @Autowired
+    public UsernameIndex(@Qualifier("userRepository") UserRepository userRepository,
+                         PlatformTransactionManager transactionManager,
+                         @Value("${user.username-index.expected-insertions:1000000}") long expectedInsertions,
+                         @Value("${user.username-index.false-positive-probability:0.01}") double falsePositiveProbability) {
+        this.userRepository = userRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.filter = new BloomFilter(expectedInsertions, falsePositiveProbability);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void build() {
+        long start = System.nanoTime();
+        transactionTemplate.executeWithoutResult(status -> {
+            try (Stream<String> usernames = userRepository.streamAllUsernames()) {
+                usernames.forEach(this::add);
+            }
+        });
+        buildMillis = (System.nanoTime() - start) / 1_000_000;
+        ready = true;
+        log.info("Built the username index with {} names in {} ms", names.sum(), buildMillis);
+    }
+
+    public void add(String username) {
+        if (username != null) {
+            filter.put(username);
+            names.increment();
+        }
+    }
+
+    /**
+     * @return false if the username is definitely not in use, true if it might be
+     */
+    public boolean mightExist(String username) {
+        checks.increment();
+        if (ready && !filter.mightContain(username)) {
+            definitelyFree.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reports that the database has shown a possibly existing username to be
+     * free, this is how the false positive rate is measured.
+     */
+    public void falsePositive() {
+        if (ready) {
+            falsePositives.increment();
+        }
+    }
+
+    @Override
+    public String getStatsName() {
+        return "usernameIndex";
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("ready", ready ? 1 : 0);
+        stats.put("buildMillis", buildMillis);
+        stats.put("names", names.sum());
+        stats.put("bits", filter.bitSize());
+        stats.put("hashFunctions", filter.hashCount());
+        stats.put("expectedFalsePositiveProbability", filter.expectedFalsePositiveProbability());
+        stats.put("checks", checks.sum());
+        stats.put("definitelyFree", definitelyFree.sum());
+        stats.put("falsePositives", falsePositives.sum());
+        return stats;
+    }
+
+}
@@ -0,0 +1,367 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Username Search Index
+ * This class answers username prefix searches for GET /users/search from
+ * memory. All usernames are kept in one sorted array with the ids in a
+ * parallel array, a prefix is found by binary search and its matches are the
+ * following entries. Names created or renamed since the array was built are
+ * kept in a small sorted delta, which is merged into a new array once it has
+ * grown to an eighth of it. Searches never lock, they read one generation of
+ * array and delta. Prefixes are case-sensitive, like the usernames.
+ * Creations and renames are applied once their transaction has committed, and
+ * the array is rebuilt from the table every user.search.rebuild-interval-millis,
+ * so names written by other instances are found as well.
+ */
+@Component
+public class UsernameSearchIndex implements StatsSource {
+
+    private static final int MIN_COMPACTION_THRESHOLD = 1024;
+
+    // estimates for a 64-bit JVM with compressed references and compact strings
+    private static final int STRING_BYTES = 24;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int ARRAY_ENTRY_BYTES = 4 + 8;
+    private static final int DELTA_ENTRY_BYTES = 64;
+
+    private final Logger log = LoggerFactory.getLogger(UsernameSearchIndex.class);
+
+    private final UserRepository userRepository;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private volatile Generation generation = new Generation(new String[0], new long[0], 0);
+
+    // the changes not yet in the array when the table was read and the ones since, null while it isn't read, guarded by this
+    private Generation changesDuringBuild;
+
+    private volatile boolean ready;
+
+    private volatile long buildMillis;
+
+    private volatile long lastCompactionMillis;
+
+    private final LongAdder searches = new LongAdder();
+
+    private final LongAdder compactions = new LongAdder();
+
+    private final LongAdder builds = new LongAdder();
+
+    @Autowired
+    public UsernameSearchIndex(@Qualifier("userRepository") UserRepository userRepository,
+                               PlatformTransactionManager transactionManager) {
+        this.userRepository = userRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(initialDelayString = "${user.search.rebuild-interval-millis:300000}",
+            fixedDelayString = "${user.search.rebuild-interval-millis:300000}")
+    public void build() {
+        synchronized (this) {
+            if (changesDuringBuild != null) {
+                return;
+            }
+            // a change shortly before may not have reached the replica yet, so it is kept as well
+            changesDuringBuild = new Generation(new String[0], new long[0], 0);
+            changesDuringBuild.added.putAll(generation.added);
+            changesDuringBuild.removed.addAll(generation.removed);
+        }
+        try {
+            long start = System.nanoTime();
+            List<Match> matches = new ArrayList<>();
+            transactionTemplate.executeWithoutResult(status -> {
+                try (Stream<UserRepository.IdAndUsername> rows = userRepository.streamAllIdsAndUsernames()) {
+                    rows.forEach(row -> matches.add(new Match(row.getId(), row.getUsername())));
+                }
+            });
+            // sorted here, the order of the database collation may differ from String.compareTo
+            matches.sort(Comparator.comparing(Match::getUsername));
+            String[] names = new String[matches.size()];
+            long[] ids = new long[matches.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = matches.get(i).getUsername();
+                ids[i] = matches.get(i).getId();
+            }
+            synchronized (this) {
+                // names created or renamed while the table was read may be missing from it
+                generation = merge(names, ids, changesDuringBuild);
+            }
+            buildMillis = (System.nanoTime() - start) / 1_000_000;
+            builds.increment();
+            ready = true;
+            log.info("Built the username search index with {} names in {} ms", names.length, buildMillis);
+        }
+        catch (DataAccessException | TransactionException e) {
+            // the index keeps its names until the next build
+            log.warn("Could not build the username search index", e);
+        }
+        finally {
+            synchronized (this) {
+                changesDuringBuild = null;
+            }
+        }
+    }
+
+    /**
+     * Adds the name once the current transaction has committed, or at once
+     * outside of a transaction.
+     */
+    public void add(Long id, String username) {
+        if (id == null || username == null) {
+            return;
+        }
+        afterCommit(() -> apply(id, null, username));
+    }
+
+    /**
+     * Replaces the name once the current transaction has committed, or at
+     * once outside of a transaction.
+     */
+    public void rename(Long id, String oldUsername, String newUsername) {
+        if (id == null || Objects.equals(oldUsername, newUsername)) {
+            return;
+        }
+        afterCommit(() -> apply(id, oldUsername, newUsername));
+    }
+
+    private static void afterCommit(Runnable change) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    change.run();
+                }
+            });
+        }
+        else {
+            change.run();
+        }
+    }
+
+    private synchronized void apply(long id, String oldUsername, String newUsername) {
+        Generation current = generation;
+        applyTo(current, id, oldUsername, newUsername);
+        if (changesDuringBuild != null) {
+            applyTo(changesDuringBuild, id, oldUsername, newUsername);
+        }
+        compactIfNeeded(current);
+    }
+
+    private static void applyTo(Generation delta, long id, String oldUsername, String newUsername) {
+        if (oldUsername != null) {
+            delta.added.remove(oldUsername);
+            delta.removed.add(oldUsername);
+        }
+        if (newUsername != null) {
+            delta.added.put(newUsername, id);
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return up to limit users whose username starts with the prefix, ordered by username
+     */
+    public List<Match> search(String prefix, int limit) {
+        searches.increment();
+        Generation current = generation;
+        List<Match> matches = new ArrayList<>(Math.min(limit, 16));
+
+        int index = Arrays.binarySearch(current.names, prefix);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        Iterator<Map.Entry<String, Long>> added = current.added.tailMap(prefix, true).entrySet().iterator();
+        Map.Entry<String, Long> nextAdded = nextMatching(added, prefix);
+
+        while (matches.size() < limit) {
+            String name = index < current.names.length && current.names[index].startsWith(prefix) ? current.names[index] : null;
+            // names that were renamed away or taken again since the array was built
+            if (name != null && (current.removed.contains(name) || current.added.containsKey(name))) {
+                index++;
+                continue;
+            }
+            if (name == null && nextAdded == null) {
+                break;
+            }
+            if (nextAdded == null || (name != null && name.compareTo(nextAdded.getKey()) < 0)) {
+                matches.add(new Match(current.ids[index], name));
+                index++;
+            }
+            else {
+                matches.add(new Match(nextAdded.getValue(), nextAdded.getKey()));
+                nextAdded = nextMatching(added, prefix);
+            }
+        }
+        return matches;
+    }
+
+    private void compactIfNeeded(Generation current) {
+        int deltaSize = current.added.size() + current.removed.size();
+        if (deltaSize < Math.max(MIN_COMPACTION_THRESHOLD, current.names.length / 8)) {
+            return;
+        }
+        long start = System.nanoTime();
+        generation = merge(current.names, current.ids, current);
+        compactions.increment();
+        lastCompactionMillis = (System.nanoTime() - start) / 1_000_000;
+    }
+
+    /**
+     * @return a generation with the sorted names and the delta in one array and an empty delta
+     */
+    private static Generation merge(String[] names, long[] ids, Generation delta) {
+        String[] mergedNames = new String[names.length + delta.added.size()];
+        long[] mergedIds = new long[mergedNames.length];
+        long bytes = 0;
+        int merged = 0;
+        int index = 0;
+        Iterator<Map.Entry<String, Long>> added = delta.added.entrySet().iterator();
+        Map.Entry<String, Long> nextAdded = added.hasNext() ? added.next() : null;
+
+        while (index < names.length || nextAdded != null) {
+            if (index < names.length && (delta.removed.contains(names[index]) || delta.added.containsKey(names[index]))) {
+                index++;
+                continue;
+            }
+            if (nextAdded == null || (index < names.length && names[index].compareTo(nextAdded.getKey()) < 0)) {
+                mergedNames[merged] = names[index];
+                mergedIds[merged] = ids[index];
+                index++;
+            }
+            else {
+                mergedNames[merged] = nextAdded.getKey();
+                mergedIds[merged] = nextAdded.getValue();
+                nextAdded = added.hasNext() ? added.next() : null;
+            }
+            bytes += ARRAY_ENTRY_BYTES + stringBytes(mergedNames[merged]);
+            merged++;
+        }
+        return new Generation(Arrays.copyOf(mergedNames, merged), Arrays.copyOf(mergedIds, merged), bytes);
+    }
+
+    private static Map.Entry<String, Long> nextMatching(Iterator<Map.Entry<String, Long>> entries, String prefix) {
+        if (entries.hasNext()) {
+            Map.Entry<String, Long> entry = entries.next();
+            return entry.getKey().startsWith(prefix) ? entry : null;
+        }
+        return null;
+    }
+
+    private static long stringBytes(String name) {
+        int bytesPerChar = 1;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) > 0xff) {
+                bytesPerChar = 2;
+                break;
+            }
+        }
+        // the byte array is padded to a multiple of 8 bytes
+        return STRING_BYTES + ((ARRAY_HEADER_BYTES + (long) name.length() * bytesPerChar + 7) & ~7L);
+    }
+
+    @Override
+    public String getStatsName() {
+        return "usernameSearchIndex";
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        Generation current = generation;
+        long names = current.names.length + current.added.size();
+        long bytes = current.bytes + (long) (current.added.size() + current.removed.size()) * DELTA_ENTRY_BYTES;
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("ready", ready ? 1 : 0);
+        stats.put("builds", builds.sum());
+        stats.put("buildMillis", buildMillis);
+        stats.put("names", names);
+        stats.put("deltaNames", current.added.size());
+        stats.put("deltaRemovedNames", current.removed.size());
+        stats.put("estimatedBytes", bytes);
+        stats.put("estimatedBytesPerName", names == 0 ? 0 : bytes / names);
+        stats.put("searches", searches.sum());
+        stats.put("compactions", compactions.sum());
+        stats.put("lastCompactionMillis", lastCompactionMillis);
+        return stats;
+    }
+
+    public static final class Match {
+
+        private final long id;
+
+        private final String username;
+
+        Match(long id, String username) {
+            this.id = id;
+            this.username = username;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+    }
+
+    /**
+     * The sorted array of one compaction and the changes since, only the delta
+     * is modified, under the lock of the index.
+     */
+    private static final class Generation {
+
+        private final String[] names;
+
+        private final long[] ids;
+
+        // estimated size of the arrays and their names
+        private final long bytes;
+
+        private final ConcurrentSkipListMap<String, Long> added = new ConcurrentSkipListMap<>();
+
+        private final Set<String> removed = ConcurrentHashMap.newKeySet();
+
+        private Generation(String[] names, long[] ids, long bytes) {
+            this.names = names;
+            this.ids = ids;
+            this.bytes = bytes;
+        }
+    }
+
+}
@@ -0,0 +1,398 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.config.ReplicaRouting;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.metrics.StatsSource;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Warmup Service
+ * Sends synthetic read-only traffic through the application before it gets
+ * real requests, so that the first users don't wait while Hibernate builds its
+ * query plans, the connection pool opens its connections and the JIT compiles
+ * the hot paths:
+ * - findByUsername and findById are run on every connection of the primary and
+ * the replica pool, the connections are held at the same time, so the pools
+ * open all of them
+ * - GET /users, GET /users/{id}, /current_user and GET /users/search are sent
+ * to the local server with the bearer tokens of a sample of the stored users
+ * (a bearer token doesn't log the user in, nor does it create a session)
+ * - failed logins on /perform_login with the usernames of the sample verify a
+ * password hash like a real login, requests with an unknown user and without
+ * credentials go through the security filters and the error handling
+ * Nothing is written: no login succeeds and a failed one doesn't create a
+ * session. Without a local server (e.g. in a mock MVC test) only the
+ * connections are prepared.
+ * The traffic is sent in rounds until the 95th percentile of a round is below
+ * warmup.target-latency-millis. The readiness state refuses traffic until then,
+ * or until warmup.max-duration-millis has passed (logged as a warning), so an
+ * instance that can't reach the target still starts.
+ * It runs on GET /_ah/warmup (App Engine warmup requests) and, with
+ * warmup.on-startup, once the application is ready.
+ */
+@Service
+@Profile("!reactive")
+public class WarmupService implements StatsSource {
+
+    private static final String UNKNOWN_USERNAME = "warmup-unknown-user";
+
+    private static final String WRONG_PASSWORD = "warmup-wrong-password";
+
+    private static final int SAMPLE_USERS = 20;
+
+    private static final int PAGE_SIZE = 20;
+
+    private static final int MAX_CONNECTIONS = 32;
+
+    private static final int OPERATIONS = 7;
+
+    private final Logger log = LoggerFactory.getLogger(WarmupService.class);
+
+    private final UserService userService;
+
+    private final UserRepository userRepository;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final HikariDataSource primaryDataSource;
+
+    private final HikariDataSource replicaDataSource;
+
+    private final Environment environment;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final boolean onStartup;
+
+    private final long targetLatencyMicros;
+
+    private final int requestsPerRound;
+
+    private final long maxDurationMillis;
+
+    private volatile boolean done;
+
+    private volatile boolean targetMet;
+
+    private volatile long rounds;
+
+    private volatile long lastRoundP95Micros;
+
+    private volatile long durationMillis;
+
+    private volatile long preparedConnections;
+
+    private final LongAdder syntheticRequests = new LongAdder();
+
+    private final LongAdder failedRequests = new LongAdder();
+
+    @Autowired
+    public WarmupService(UserService userService, @Qualifier("userRepository") UserRepository userRepository,
+                         PlatformTransactionManager transactionManager,
+                         @Qualifier("primaryDataSource") HikariDataSource primaryDataSource,
+                         @Qualifier("replicaDataSource") HikariDataSource replicaDataSource,
+                         Environment environment, ApplicationEventPublisher eventPublisher,
+                         @Value("${warmup.on-startup:false}") boolean onStartup,
+                         @Value("${warmup.target-latency-millis:20}") long targetLatencyMillis,
+                         @Value("${warmup.requests-per-round:300}") int requestsPerRound,
+                         @Value("${warmup.max-duration-millis:30000}") long maxDurationMillis) {
+        this.userService = userService;
+        this.userRepository = userRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.primaryDataSource = primaryDataSource;
+        this.replicaDataSource = replicaDataSource;
+        this.environment = environment;
+        this.eventPublisher = eventPublisher;
+        this.onStartup = onStartup;
+        this.targetLatencyMicros = targetLatencyMillis * 1000;
+        this.requestsPerRound = Math.max(OPERATIONS, requestsPerRound);
+        this.maxDurationMillis = maxDurationMillis;
+    }
+
+    // before the StartupTimelineReport, the warm-up is part of the startup
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.LOWEST_PRECEDENCE - 1)
+    public void warmUpOnStartup() {
+        if (onStartup) {
+            warmUp();
+        }
+    }
+
+    /**
+     * Warms the application up once, later calls wait for the first one and
+     * return its result.
+     *
+     * @return whether the latency target has been met
+     */
+    public synchronized boolean warmUp() {
+        if (done) {
+            return targetMet;
+        }
+        AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.REFUSING_TRAFFIC);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxDurationMillis);
+
+        preparedConnections = prepareStatements(true) + prepareStatements(false);
+        Sample sample = sample();
+        Integer port = environment.getProperty("local.server.port", Integer.class);
+        HttpClient httpClient = port == null || port <= 0 ? null : HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(2))
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+
+        do {
+            lastRoundP95Micros = runRound(sample, httpClient, port);
+            rounds++;
+            targetMet = lastRoundP95Micros <= targetLatencyMicros;
+        } while (!targetMet && System.nanoTime() < deadline);
+
+        durationMillis = (System.nanoTime() - start) / 1_000_000;
+        if (targetMet) {
+            log.info("Warmed up in {} ms, {} rounds, p95 {} us", durationMillis, rounds, lastRoundP95Micros);
+        }
+        else {
+            log.warn("Warm-up stopped after {} ms without meeting the target of {} us, p95 {} us",
+                    durationMillis, targetLatencyMicros, lastRoundP95Micros);
+        }
+        done = true;
+        AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.ACCEPTING_TRAFFIC);
+        return targetMet;
+    }
+
+    /**
+     * Runs findByUsername and findById on every connection of the primary or
+     * the replica pool. Each transaction holds its connection until all of them
+     * have one.
+     *
+     * @return the number of prepared connections
+     */
+    private long prepareStatements(boolean primary) {
+        int connections = Math.min(MAX_CONNECTIONS, Math.max(1,
+                (primary ? primaryDataSource : replicaDataSource).getMaximumPoolSize()));
+        CyclicBarrier barrier = new CyclicBarrier(connections);
+        LongAdder prepared = new LongAdder();
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        for (int i = 0; i < connections; i++) {
+            executor.execute(() -> {
+                Runnable prepare = () -> transactionTemplate.executeWithoutResult(status -> {
+                    userRepository.findByUsername(UNKNOWN_USERNAME);
+                    userRepository.findById(-1L);
+                    prepared.increment();
+                    awaitOthers(barrier);
+                });
+                try {
+                    if (primary) {
+                        // the template is read-only, it would use the replica
+                        ReplicaRouting.onPrimary(() -> {
+                            prepare.run();
+                            return null;
+                        });
+                    }
+                    else {
+                        prepare.run();
+                    }
+                }
+                catch (RuntimeException e) {
+                    log.warn("Could not prepare the statements on a connection", e);
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return prepared.sum();
+    }
+
+    private static void awaitOthers(CyclicBarrier barrier) {
+        try {
+            barrier.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (BrokenBarrierException | TimeoutException e) {
+            // connections in use by requests, the others are prepared anyway
+        }
+    }
+
+    /**
+     * @return the ids, usernames and valid tokens (null if a user has none) of
+     * the first stored users, an unknown user if there are none
+     */
+    private Sample sample() {
+        List<User> users = userService.getUsers(null, SAMPLE_USERS);
+        if (users.isEmpty()) {
+            return new Sample(new Long[]{-1L}, new String[]{UNKNOWN_USERNAME}, new String[]{null});
+        }
+        Date now = new Date();
+        Long[] ids = new Long[users.size()];
+        String[] usernames = new String[users.size()];
+        String[] tokens = new String[users.size()];
+        for (int i = 0; i < ids.length; i++) {
+            User user = users.get(i);
+            ids[i] = user.getId();
+            usernames[i] = user.getUsername();
+            boolean valid = user.getTokenExpiry() == null || user.getTokenExpiry().after(now);
+            tokens[i] = valid ? user.getToken() : null;
+        }
+        return new Sample(ids, usernames, tokens);
+    }
+
+    /**
+     * @return the 95th percentile of the latencies of the round in microseconds
+     */
+    private long runRound(Sample sample, HttpClient httpClient, Integer port) {
+        long[] latencies = new long[requestsPerRound];
+        for (int i = 0; i < requestsPerRound; i++) {
+            int user = i % sample.ids.length;
+            long start = System.nanoTime();
+            try {
+                if (httpClient != null) {
+                    run(i % OPERATIONS, sample.ids[user], sample.usernames[user], sample.tokens[user], httpClient, port);
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                failedRequests.increment();
+                log.debug("Warm-up request failed", e);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Long.MAX_VALUE;
+            }
+            latencies[i] = (System.nanoTime() - start) / 1000;
+            syntheticRequests.increment();
+        }
+        Arrays.sort(latencies);
+        return latencies[(int) Math.ceil(latencies.length * 0.95) - 1];
+    }
+
+    private void run(int operation, Long id, String username, String token, HttpClient httpClient, int port)
+            throws IOException, InterruptedException {
+        String base = "http://localhost:" + port;
+        switch (operation) {
+            case 0:
+                send(httpClient, authorized(HttpRequest.newBuilder(URI.create(base + "/users?limit=" + PAGE_SIZE)), token));
+                break;
+            case 1:
+                // 404 for the unknown user of an empty table, the path is warmed all the same
+                send(httpClient, authorized(HttpRequest.newBuilder(URI.create(base + "/users/" + id)), token));
+                break;
+            case 2:
+                send(httpClient, authorized(HttpRequest.newBuilder(URI.create(base + "/current_user")), token));
+                break;
+            case 3: {
+                // 503 until the index is built
+                String prefix = username.substring(0, Math.min(2, username.length()));
+                send(httpClient, authorized(HttpRequest.newBuilder(URI.create(base + "/users/search?limit=10&prefix="
+                        + URLEncoder.encode(prefix, StandardCharsets.UTF_8))), token));
+                break;
+            }
+            case 4:
+                // a stored user with a wrong password: the password hasher, redirect to /login_error
+                send(httpClient, HttpRequest.newBuilder(URI.create(base + "/perform_login"))
+                        .header("Content-Type", "application/x-www-form-urlencoded")
+                        .POST(HttpRequest.BodyPublishers.ofString("username=" + URLEncoder.encode(username, StandardCharsets.UTF_8)
+                                + "&password=" + WRONG_PASSWORD)));
+                break;
+            case 5:
+                // HTTP Basic with an unknown user: filters, authentication provider, 401
+                send(httpClient, HttpRequest.newBuilder(URI.create(base + "/users/" + id))
+                        .header("Authorization", "Basic " + Base64.getEncoder().encodeToString(
+                                (UNKNOWN_USERNAME + ":" + WRONG_PASSWORD).getBytes(StandardCharsets.UTF_8))));
+                break;
+            default:
+                // anonymous: dispatcher, controller, error handling
+                send(httpClient, HttpRequest.newBuilder(URI.create(base + "/current_user")));
+                break;
+        }
+    }
+
+    private static HttpRequest.Builder authorized(HttpRequest.Builder request, String token) {
+        // without a valid token the request is answered by the security filters
+        return token == null ? request : request.header("Authorization", "Bearer " + token);
+    }
+
+    private static void send(HttpClient httpClient, HttpRequest.Builder request) throws IOException, InterruptedException {
+        httpClient.send(request.timeout(Duration.ofSeconds(5)).build(), HttpResponse.BodyHandlers.discarding());
+    }
+
+    @Override
+    public String getStatsName() {
+        return "warmup";
+    }
+
+    @Override
+    public Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("done", done ? 1 : 0);
+        stats.put("targetMet", targetMet ? 1 : 0);
+        stats.put("rounds", rounds);
+        stats.put("lastRoundP95Micros", lastRoundP95Micros);
+        stats.put("durationMillis", durationMillis);
+        stats.put("preparedConnections", preparedConnections);
+        stats.put("syntheticRequests", syntheticRequests.sum());
+        stats.put("failedRequests", failedRequests.sum());
+        return stats;
+    }
+
+    private static final class Sample {
+
+        private final Long[] ids;
+
+        private final String[] usernames;
+
+        private final String[] tokens;
+
+        private Sample(Long[] ids, String[] usernames, String[] tokens) {
+            this.ids = ids;
+            this.usernames = usernames;
+            this.tokens = tokens;
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package ch.uzh.ifi.hase.soprafs24.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adaptive Concurrency Limit
+ * Limits the number of requests in flight to a value that follows the
+ * observed latency (gradient algorithm, as in TCP Vegas): the average latency
+ * of each window of samples is compared with a baseline, the latency without
+ * queueing. While the latency stays within tolerance times the baseline the
+ * limit grows with its square root, as the server has spare capacity; once
+ * requests queue and the latency rises, the limit shrinks in proportion to
+ * the slowdown. A failed request (e.g. a timeout of the database)
+ * additionally cuts the limit multiplicatively (AIMD backoff).
+ * The limit only grows while it is actually used, an idle server keeps it.
+ * Acquiring a permit never waits, an exhausted limit is rejected at once.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    // new limits are blended in, so one noisy window moves the limit only partly
+    private static final double SMOOTHING = 0.2;
+
+    // weight of a window in the baseline latency
+    private static final double BASELINE_SMOOTHING = 0.05;
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double tolerance;
+
+    private final int windowSize;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final LongAdder accepted = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private volatile double limit;
+
+    // guarded by this
+    private int windowSamples;
+
+    private long windowNanos;
+
+    private int windowMaxInFlight;
+
+    private double baselineNanos;
+
+    private volatile long lastWindowNanos;
+
+    /**
+     * @param tolerance how much slower than the baseline a window may be before the limit shrinks, e.g. 2.0
+     * @param windowSize the number of requests the limit is updated after
+     */
+    public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, double tolerance, int windowSize) {
+        if (minLimit < 1 || maxLimit < minLimit || tolerance < 1 || windowSize < 1) {
+            throw new IllegalArgumentException("Invalid concurrency limit: min " + minLimit + ", max " + maxLimit
+                    + ", tolerance " + tolerance + ", window " + windowSize);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.windowSize = windowSize;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * @return the number of requests in flight when the permit was acquired, or -1 if the limit is exhausted
+     */
+    public int tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= getLimit()) {
+                rejected.increment();
+                return -1;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                accepted.increment();
+                return current + 1;
+            }
+        }
+    }
+
+    /**
+     * Returns the permit of a completed request.
+     *
+     * @param inFlightAtStart the value returned by tryAcquire
+     * @param failed whether the request has failed on the server, e.g. with a timeout
+     */
+    public void release(long latencyNanos, int inFlightAtStart, boolean failed) {
+        inFlight.decrementAndGet();
+        synchronized (this) {
+            if (failed) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+            }
+            windowSamples++;
+            windowNanos += latencyNanos;
+            windowMaxInFlight = Math.max(windowMaxInFlight, inFlightAtStart);
+            if (windowSamples >= windowSize) {
+                update(windowNanos / (double) windowSamples, windowMaxInFlight);
+                windowSamples = 0;
+                windowNanos = 0;
+                windowMaxInFlight = 0;
+            }
+        }
+    }
+
+    private void update(double averageNanos, int maxInFlight) {
+        lastWindowNanos = (long) averageNanos;
+        double current = limit;
+        // below half the limit the requests don't queue, the latency says nothing about the limit
+        boolean saturated = maxInFlight >= current / 2;
+        // the baseline estimates the latency without queueing: it follows a faster window at once, a
+        // slower one only gradually and only while nothing queues (or the limit can't shrink any more),
+        // so a lasting overload can't raise it, but a lasting change of the work per request does
+        if (baselineNanos == 0 || averageNanos < baselineNanos) {
+            baselineNanos = averageNanos;
+        }
+        else if (!saturated || current <= minLimit) {
+            baselineNanos += (averageNanos - baselineNanos) * BASELINE_SMOOTHING;
+        }
+        if (!saturated) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * baselineNanos / averageNanos));
+        double target = current * gradient + Math.sqrt(current);
+        double next = current * (1 - SMOOTHING) + target * SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the average latency of the last window
+     */
+    public long getLatencyMicros() {
+        return lastWindowNanos / 1000;
+    }
+
+    public synchronized long getBaselineLatencyMicros() {
+        return (long) (baselineNanos / 1000);
+    }
+
+}
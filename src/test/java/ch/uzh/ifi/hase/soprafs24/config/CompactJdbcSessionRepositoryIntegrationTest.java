@@ -0,0 +1,203 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs24.service.UserService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
+import org.springframework.session.web.http.SessionRepositoryFilter;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import javax.servlet.http.Cookie;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestBuilders.formLogin;
+import static org.springframework.security.test.web.servlet.setup.SecurityMockMvcConfigurers.springSecurity;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Tests that the sessions are stored in the HTTP_SESSION table in the compact
+ * form, so that another instance on the same database can load them.
+ *
+ * @see CompactJdbcSessionRepository
+ */
+@WebAppConfiguration
+@SpringBootTest
+public class CompactJdbcSessionRepositoryIntegrationTest {
+
+    @Qualifier("userRepository")
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private CompactJdbcSessionRepository sessionRepository;
+
+    @Autowired
+    private SessionRepositoryFilter<?> sessionRepositoryFilter;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @BeforeEach
+    public void setup() {
+        userRepository.deleteAll();
+        sessionRepository.flushTouches();
+        jdbcTemplate.update("delete from HTTP_SESSION");
+    }
+
+    /**
+     * Another application instance on the same database
+     */
+    private CompactJdbcSessionRepository otherInstance() {
+        return new CompactJdbcSessionRepository(jdbcTemplate, Duration.ofMinutes(30), 500);
+    }
+
+    @Test
+    public void login_sessionServedByAnotherInstance() throws Exception {
+        User user = new User();
+        user.setUsername("first");
+        user.setPassword("123");
+        User createdUser = userService.createUser(user);
+
+        MockMvc mockMvc = MockMvcBuilders.webAppContextSetup(webApplicationContext)
+                .addFilters(sessionRepositoryFilter)
+                .apply(springSecurity())
+                .build();
+        Cookie cookie = mockMvc.perform(formLogin().user("first").password("123").loginProcessingUrl("/perform_login"))
+                .andExpect(status().is(302))
+                .andReturn().getResponse().getCookie("JSESSIONID");
+        assertNotNull(cookie);
+
+        // only the cookie is sent, the session is loaded from the table
+        mockMvc.perform(get("/current_user").cookie(cookie))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id", is(createdUser.getId().intValue())));
+
+        String sessionId = new String(Base64.getDecoder().decode(cookie.getValue()), StandardCharsets.UTF_8);
+        CompactSession session = otherInstance().findById(sessionId);
+        assertNotNull(session);
+        assertEquals(createdUser.getId(), session.<Long>getAttribute("uid"));
+        SecurityContext context = session.getAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY);
+        assertEquals("first", context.getAuthentication().getName());
+        assertTrue(context.getAuthentication().isAuthenticated());
+
+        // the logout deletes the session for all instances
+        mockMvc.perform(post("/perform_logout").cookie(cookie))
+                .andExpect(status().is(302));
+        assertNull(otherInstance().findById(sessionId));
+    }
+
+    @Test
+    public void save_attributesCompactAndDecodedLazily() {
+        CompactSession session = sessionRepository.createSession();
+        session.setAttribute("uid", 42L);
+        session.setAttribute("name", "first");
+        List<String> list = new ArrayList<>(List.of("a", "b"));
+        session.setAttribute("list", list);
+        SimpleGrantedAuthority role = new SimpleGrantedAuthority("ROLE_USER");
+        org.springframework.security.core.userdetails.User principal =
+                new org.springframework.security.core.userdetails.User("first", "", List.of(role));
+        principal.eraseCredentials();
+        session.setAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY,
+                new SecurityContextImpl(new UsernamePasswordAuthenticationToken(principal, null, List.of(role))));
+        sessionRepository.save(session);
+
+        // the security context takes its name and authorities instead of its Java serialization
+        CompactSession loaded = otherInstance().findById(session.getId());
+        assertTrue(SessionAttributeCodec.encode(session.getAttribute(
+                HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY)).length < 32);
+        assertEquals(4, loaded.getAttributeNames().size());
+        assertEquals("first", loaded.getAttribute("name"));
+        loaded.setAttribute("uid", 43L);
+        otherInstance().save(loaded);
+
+        // the attributes that were never decoded are written back unchanged
+        CompactSession reloaded = sessionRepository.findById(session.getId());
+        assertEquals(43L, reloaded.<Long>getAttribute("uid"));
+        assertEquals(list, reloaded.getAttribute("list"));
+        SecurityContext context = reloaded.getAttribute(HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY);
+        assertEquals("first", context.getAuthentication().getName());
+        assertEquals(List.of(role), new ArrayList<>(context.getAuthentication().getAuthorities()));
+    }
+
+    @Test
+    public void save_onlyLastAccessed_writtenInBatches() {
+        // instances without the scheduled flush, so it only happens when the test calls it
+        CompactJdbcSessionRepository instance = otherInstance();
+        CompactJdbcSessionRepository otherInstance = otherInstance();
+        CompactSession session = instance.createSession();
+        session.setAttribute("uid", 1L);
+        instance.save(session);
+        Instant created = session.getLastAccessedTime().truncatedTo(ChronoUnit.MILLIS);
+
+        CompactSession loaded = instance.findById(session.getId());
+        Instant accessed = created.plusSeconds(60);
+        loaded.setLastAccessedTime(accessed);
+        instance.save(loaded);
+        assertEquals(0L, instance.getStats().get("rewritten").longValue());
+        assertEquals(1L, instance.getStats().get("pendingTouches").longValue());
+
+        // this instance sees its buffered time, the others after the flush
+        assertEquals(accessed, instance.findById(session.getId()).getLastAccessedTime());
+        assertEquals(created, otherInstance.findById(session.getId()).getLastAccessedTime());
+        instance.flushTouches();
+        assertEquals(accessed, otherInstance.findById(session.getId()).getLastAccessedTime());
+        assertEquals(0L, instance.getStats().get("pendingTouches").longValue());
+    }
+
+    @Test
+    public void findById_expired_deleted() {
+        CompactSession session = sessionRepository.createSession();
+        session.setMaxInactiveInterval(Duration.ofSeconds(1));
+        session.setLastAccessedTime(Instant.now().minusSeconds(10));
+        sessionRepository.save(session);
+
+        assertNull(sessionRepository.findById(session.getId()));
+        assertEquals(0L, jdbcTemplate.queryForObject("select count(*) from HTTP_SESSION", Long.class));
+    }
+
+    @Test
+    public void changeSessionId_rowMoved() {
+        CompactSession session = sessionRepository.createSession();
+        session.setAttribute("uid", 1L);
+        sessionRepository.save(session);
+        String oldId = session.getId();
+
+        CompactSession loaded = sessionRepository.findById(oldId);
+        String newId = loaded.changeSessionId();
+        sessionRepository.save(loaded);
+
+        assertNull(otherInstance().findById(oldId));
+        assertEquals(1L, otherInstance().findById(newId).<Long>getAttribute("uid"));
+    }
+
+}
@@ -0,0 +1,103 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import ch.uzh.ifi.hase.soprafs24.util.AdaptiveConcurrencyLimit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.http.HttpServletResponse;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * ConcurrencyLimitFilterTest
+ * Tests that the requests of an endpoint group beyond its limit are answered
+ * at once with 503 and Retry-After, and that other requests aren't limited.
+ */
+public class ConcurrencyLimitFilterTest {
+
+    private ConcurrencyLimitFilter filter;
+
+    @BeforeEach
+    public void setup() {
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("user.concurrency-limit.signups.initial-limit", "1")
+                .withProperty("user.concurrency-limit.signups.min-limit", "1");
+        filter = new ConcurrencyLimitFilter(environment, true, 2);
+    }
+
+    private MockHttpServletResponse perform(String method, String path) throws Exception {
+        return perform(new MockHttpServletRequest(method, path));
+    }
+
+    private MockHttpServletResponse perform(MockHttpServletRequest request) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+        return response;
+    }
+
+    @Test
+    public void doFilter_limitExhausted_503WithRetryAfter() throws Exception {
+        AdaptiveConcurrencyLimit signups = filter.getLimit(ConcurrencyLimitFilter.EndpointGroup.SIGNUPS);
+        int inFlight = signups.tryAcquire();
+
+        MockHttpServletResponse response = perform("POST", "/users");
+
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, response.getStatus());
+        assertEquals("2", response.getHeader("Retry-After"));
+        assertEquals("{\"status\":503, \"error\":\"The server is overloaded, please try again later\"}",
+                response.getContentAsString());
+        assertEquals(1L, filter.getStats().get("signups.rejected"));
+
+        // the other groups have their own limits
+        assertEquals(HttpServletResponse.SC_OK, perform("GET", "/users/1").getStatus());
+        assertEquals(HttpServletResponse.SC_OK, perform("POST", "/perform_login").getStatus());
+
+        signups.release(1000, inFlight, false);
+        assertEquals(HttpServletResponse.SC_OK, perform("POST", "/users").getStatus());
+        assertEquals(0, filter.getStats().get("signups.inFlight"));
+    }
+
+    @Test
+    public void doFilter_unlimitedEndpoints_notCounted() throws Exception {
+        perform("GET", "/users/events");
+        perform("GET", "/users/export");
+        perform("PUT", "/users/1");
+        perform("GET", "/current_user");
+
+        assertEquals(0L, filter.getStats().get("reads.accepted"));
+        assertEquals(0L, filter.getStats().get("signups.accepted"));
+        assertEquals(0L, filter.getStats().get("login.accepted"));
+    }
+
+    @Test
+    public void doFilter_readsCounted() throws Exception {
+        MockHttpServletRequest page = new MockHttpServletRequest("GET", "/users");
+        page.addParameter("limit", "10");
+        perform(page);
+        perform("GET", "/users/1");
+        perform("GET", "/users/search");
+
+        assertEquals(3L, filter.getStats().get("reads.accepted"));
+        assertEquals(64, filter.getStats().get("reads.limit"));
+        assertEquals(0L, filter.getStats().get("list.accepted"));
+    }
+
+    @Test
+    public void doFilter_unpagedList_ownGroup() throws Exception {
+        AdaptiveConcurrencyLimit list = filter.getLimit(ConcurrencyLimitFilter.EndpointGroup.LIST);
+        for (int i = 0; i < 4; i++) {
+            list.tryAcquire();
+        }
+
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, perform("GET", "/users").getStatus());
+        // the point reads aren't held back by the full lists
+        assertEquals(HttpServletResponse.SC_OK, perform("GET", "/users/1").getStatus());
+        assertEquals(1L, filter.getStats().get("list.rejected"));
+        assertEquals(1L, filter.getStats().get("reads.accepted"));
+    }
+
+}
@@ -0,0 +1,97 @@
+package ch.uzh.ifi.hase.soprafs24.config;
+
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs24.service.UserService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that read-only transactions are routed to the replica and that the
+ * reads of a request that has written stay on the primary.
+ */
+@WebAppConfiguration
+@SpringBootTest
+public class ReplicaRoutingIntegrationTest {
+
+    @Qualifier("userRepository")
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private ReplicaRoutingDataSource routingDataSource;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @BeforeEach
+    public void setup() {
+        userRepository.deleteAll();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        ReplicaRouting.endRequest();
+    }
+
+    @Test
+    public void readOnlyServiceMethod_usesReplica() {
+        User user = new User();
+        user.setUsername("replicaUsername");
+        user.setPassword("123");
+        long primaryConnections = routingDataSource.getStats().get("primaryConnections").longValue();
+        user = userService.createUser(user);
+        assertTrue(routingDataSource.getStats().get("primaryConnections").longValue() > primaryConnections);
+
+        long replicaConnections = routingDataSource.getStats().get("replicaConnections").longValue();
+        // the replica pool connects to the same database in tests
+        assertEquals(1, userService.getUsers(null, 10).size());
+        assertEquals("replicaUsername", userService.getUser(user.getId()).getUsername());
+        assertTrue(routingDataSource.getStats().get("replicaConnections").longValue() > replicaConnections);
+    }
+
+    @Test
+    public void currentTarget_readOnlyOutsideRequest_replica() {
+        assertEquals(ReplicaRouting.Target.REPLICA, targetOf(readOnly()));
+        assertEquals(ReplicaRouting.Target.PRIMARY, targetOf(new TransactionTemplate(transactionManager)));
+        assertEquals(ReplicaRouting.Target.PRIMARY, ReplicaRouting.onPrimary(() -> targetOf(readOnly())));
+    }
+
+    @Test
+    public void currentTarget_requestAfterWrite_primary() {
+        ReplicaRouting.beginRequest(false);
+        assertEquals(ReplicaRouting.Target.REPLICA, targetOf(readOnly()));
+        // a read-write transaction of the request
+        targetOf(new TransactionTemplate(transactionManager));
+        assertEquals(ReplicaRouting.Target.PRIMARY, targetOf(readOnly()));
+        assertTrue(ReplicaRouting.endRequest());
+
+        // a later request of a session that has written recently
+        ReplicaRouting.beginRequest(true);
+        assertEquals(ReplicaRouting.Target.PRIMARY, targetOf(readOnly()));
+        assertFalse(ReplicaRouting.endRequest());
+    }
+
+    private TransactionTemplate readOnly() {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+        return transactionTemplate;
+    }
+
+    private static ReplicaRouting.Target targetOf(TransactionTemplate transactionTemplate) {
+        return transactionTemplate.execute(status -> ReplicaRouting.currentTarget());
+    }
+
+}
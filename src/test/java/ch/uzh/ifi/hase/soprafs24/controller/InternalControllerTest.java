@@ -0,0 +1,111 @@
+package ch.uzh.ifi.hase.soprafs24.controller;
+
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserPostDTO;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.RequestPostProcessor;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
+import static org.springframework.security.test.web.servlet.setup.SecurityMockMvcConfigurers.springSecurity;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * InternalControllerTest
+ * Tests that the statistics, the startup report and the metrics of the instance are exposed,
+ * to the configured addresses only.
+ */
+@WebAppConfiguration
+@SpringBootTest
+public class InternalControllerTest {
+
+    private MockMvc mockMvc;
+
+    @Qualifier("userRepository")
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @BeforeEach
+    public void setup() {
+        this.mockMvc = MockMvcBuilders.webAppContextSetup(webApplicationContext).apply(springSecurity()).build();
+        userRepository.deleteAll();
+    }
+
+    @Test
+    public void getStats_containsCacheStatistics() throws Exception {
+        mockMvc.perform(get("/internal/stats"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.userCache").exists());
+    }
+
+    @Test
+    public void getStartup_containsTimeToReady() throws Exception {
+        mockMvc.perform(get("/internal/startup"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.jvmToReadyMillis").isNumber())
+                .andExpect(jsonPath("$.lazyInitialization").value(false));
+    }
+
+    @Test
+    public void getMetrics_containsTimersOfCalledMethods() throws Exception {
+        UserPostDTO userPostDTO = new UserPostDTO();
+        userPostDTO.setUsername("testUsername");
+        userPostDTO.setPassword("123");
+
+        // First we create a user, which goes through the controller, the service and the repository
+        mockMvc.perform(post("/users")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(new ObjectMapper().writeValueAsString(userPostDTO)))
+                .andExpect(status().is(201));
+
+        // Then the timers of these calls are in the Prometheus text format
+        mockMvc.perform(get("/internal/metrics"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("hotpath_calls_seconds_bucket")))
+                .andExpect(content().string(containsString("layer=\"controller\",method=\"createUser\"")))
+                .andExpect(content().string(containsString("layer=\"service\",method=\"createUser\"")))
+                .andExpect(content().string(containsString("layer=\"repository\",method=\"save\"")))
+                .andExpect(content().string(containsString("hotpath_in_flight")))
+                // and the values of /internal/stats
+                .andExpect(content().string(containsString("app_stats{source=\"userCache\",stat=")));
+    }
+
+    private static RequestPostProcessor remoteAddress(String address) {
+        return request -> {
+            request.setRemoteAddr(address);
+            return request;
+        };
+    }
+
+    @Test
+    public void getStats_otherAddress_forbidden() throws Exception {
+        // even for a logged-in user
+        mockMvc.perform(get("/internal/stats").with(user("someone")).with(remoteAddress("203.0.113.7")))
+                .andExpect(status().isForbidden());
+        mockMvc.perform(get("/internal/metrics").with(user("someone")).with(remoteAddress("203.0.113.7")))
+                .andExpect(status().isForbidden());
+
+        // the readiness is checked from outside
+        mockMvc.perform(get("/internal/ready").with(remoteAddress("203.0.113.7")))
+                .andExpect(result -> assertNotEquals(403, result.getResponse().getStatus()));
+    }
+
+}
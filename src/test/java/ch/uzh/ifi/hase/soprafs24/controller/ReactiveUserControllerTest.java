@@ -0,0 +1,237 @@
+package ch.uzh.ifi.hase.soprafs24.controller;
+
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs24.rest.json.JsonResponseWriter;
+import ch.uzh.ifi.hase.soprafs24.rest.mapper.DTOMapper;
+import ch.uzh.ifi.hase.soprafs24.service.UsernameSearchIndex;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * ReactiveUserControllerTest
+ * Runs the user endpoints on the reactive profile against its own H2
+ * database, with the same status codes as the servlet stack.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "spring.main.web-application-type=reactive",
+        "spring.datasource.url=jdbc:h2:mem:reactive-test",
+        "spring.r2dbc.url=r2dbc:h2:mem:///reactive-test"})
+@ActiveProfiles("reactive")
+public class ReactiveUserControllerTest {
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @Qualifier("userRepository")
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private UsernameSearchIndex usernameSearchIndex;
+
+    @BeforeEach
+    public void setup() {
+        userRepository.deleteAll();
+    }
+
+    @Test
+    public void createUser_thenGetUser_withBasicAuthentication() {
+        Long id = createUser("reactiveUser", "123");
+
+        webTestClient.get().uri("/users/{id}", id)
+                .headers(headers -> headers.setBasicAuth("reactiveUser", "123"))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.username").isEqualTo("reactiveUser")
+                .jsonPath("$.status").isEqualTo("ONLINE");
+
+        webTestClient.post().uri("/users").bodyValue(userPostDTO("reactiveUser", "456"))
+                .exchange()
+                .expectStatus().isEqualTo(409);
+    }
+
+    @Test
+    public void getUser_notModified() {
+        Long id = createUser("etagUser", "123");
+
+        String eTag = webTestClient.get().uri("/users/{id}", id)
+                .headers(headers -> headers.setBasicAuth("etagUser", "123"))
+                .exchange()
+                .expectStatus().isOk()
+                .returnResult(String.class)
+                .getResponseHeaders().getETag();
+        assertNotNull(eTag);
+
+        webTestClient.get().uri("/users/{id}", id)
+                .headers(headers -> {
+                    headers.setBasicAuth("etagUser", "123");
+                    headers.setIfNoneMatch(eTag);
+                })
+                .exchange()
+                .expectStatus().isNotModified();
+    }
+
+    @Test
+    public void updateUser_ownProfileOnly() {
+        Long id = createUser("updateUser", "123");
+        Long otherId = createUser("otherUser", "123");
+
+        webTestClient.put().uri("/users/{id}", id)
+                .headers(headers -> headers.setBasicAuth("updateUser", "123"))
+                .bodyValue(userPostDTO("updatedUser", null))
+                .exchange()
+                .expectStatus().isNoContent();
+
+        webTestClient.put().uri("/users/{id}", otherId)
+                .headers(headers -> headers.setBasicAuth("updatedUser", "123"))
+                .bodyValue(userPostDTO("stolenUser", null))
+                .exchange()
+                .expectStatus().isEqualTo(409);
+
+        webTestClient.get().uri("/current_user")
+                .headers(headers -> headers.setBasicAuth("updatedUser", "123"))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.id").isEqualTo(id.intValue())
+                .jsonPath("$.name").isEqualTo("updatedUser");
+    }
+
+    @Test
+    public void updateUser_searchIndexFollows_emptyUsernameRejected() {
+        Long id = createUser("searchUser", "123");
+        assertEquals(List.of("searchUser"), usernames(usernameSearchIndex.search("searchU", 10)));
+
+        webTestClient.put().uri("/users/{id}", id)
+                .headers(headers -> headers.setBasicAuth("searchUser", "123"))
+                .bodyValue(userPostDTO("renamedUser", null))
+                .exchange()
+                .expectStatus().isNoContent();
+        assertTrue(usernameSearchIndex.search("searchU", 10).isEmpty());
+        assertEquals(List.of("renamedUser"), usernames(usernameSearchIndex.search("renamedU", 10)));
+
+        webTestClient.put().uri("/users/{id}", id)
+                .headers(headers -> headers.setBasicAuth("renamedUser", "123"))
+                .bodyValue(userPostDTO(null, null))
+                .exchange()
+                .expectStatus().isEqualTo(409);
+    }
+
+    @Test
+    public void getUser_datesLikeServletStack() throws IOException {
+        Long id = createUser("dateUser", "123");
+        UserPostDTO birthday = userPostDTO("dateUser", null);
+        birthday.setBirthday(new Date(946684800000L));
+        webTestClient.put().uri("/users/{id}", id)
+                .headers(headers -> headers.setBasicAuth("dateUser", "123"))
+                .bodyValue(birthday)
+                .exchange()
+                .expectStatus().isNoContent();
+
+        String reactiveBody = webTestClient.get().uri("/users/{id}", id)
+                .headers(headers -> headers.setBasicAuth("dateUser", "123"))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class)
+                .returnResult()
+                .getResponseBody();
+        // the same user as the UserController writes it
+        ByteArrayOutputStream servletBody = new ByteArrayOutputStream();
+        JsonResponseWriter writer = new JsonResponseWriter(servletBody);
+        writer.writeUser(DTOMapper.INSTANCE.convertEntityToUserGetDTO(userRepository.findByUsername("dateUser")));
+        writer.flushBuffer();
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        JsonNode reactiveUser = objectMapper.readTree(reactiveBody);
+        JsonNode servletUser = objectMapper.readTree(servletBody.toByteArray());
+        for (String field : new String[]{"creationDate", "birthday"}) {
+            assertTrue(reactiveUser.get(field).isNumber(), field);
+            assertEquals(servletUser.get(field), reactiveUser.get(field), field);
+        }
+    }
+
+    @Test
+    public void getCurrentUser_usernameEscaped() {
+        Long id = createUser("quoted\"user\\", "123");
+
+        webTestClient.get().uri("/current_user")
+                .headers(headers -> headers.setBasicAuth("quoted\"user\\", "123"))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.id").isEqualTo(id.intValue())
+                .jsonPath("$.name").isEqualTo("quoted\"user\\");
+
+        webTestClient.get().uri("/login_error")
+                .exchange()
+                .expectBody()
+                .jsonPath("$.error").isEqualTo("The credentials are incorrect");
+    }
+
+    @Test
+    public void bearerToken_authentication() {
+        Long id = createUser("tokenUser", "123");
+        String token = userRepository.findByUsername("tokenUser").getToken();
+
+        webTestClient.get().uri("/current_user")
+                .headers(headers -> headers.setBearerAuth(token))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.id").isEqualTo(id.intValue());
+
+        webTestClient.get().uri("/current_user")
+                .headers(headers -> headers.setBearerAuth("invalid"))
+                .exchange()
+                .expectStatus().isUnauthorized()
+                .expectHeader().valueEquals(HttpHeaders.WWW_AUTHENTICATE, "Bearer error=\"invalid_token\"");
+
+        webTestClient.get().uri("/current_user")
+                .exchange()
+                .expectStatus().isUnauthorized();
+    }
+
+    private Long createUser(String username, String password) {
+        UserGetDTO createdUser = webTestClient.post().uri("/users").bodyValue(userPostDTO(username, password))
+                .exchange()
+                .expectStatus().isCreated()
+                .expectBody(UserGetDTO.class)
+                .returnResult()
+                .getResponseBody();
+        assertNotNull(createdUser);
+        return createdUser.getId();
+    }
+
+    private static List<String> usernames(List<UsernameSearchIndex.Match> matches) {
+        return matches.stream().map(UsernameSearchIndex.Match::getUsername).collect(Collectors.toList());
+    }
+
+    private static UserPostDTO userPostDTO(String username, String password) {
+        UserPostDTO userPostDTO = new UserPostDTO();
+        userPostDTO.setUsername(username);
+        userPostDTO.setPassword(password);
+        return userPostDTO;
+    }
+
+}
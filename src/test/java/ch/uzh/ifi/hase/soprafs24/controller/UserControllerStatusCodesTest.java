@@ -4,14 +4,18 @@ import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs24.entity.User;
 import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
 import ch.uzh.ifi.hase.soprafs24.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs24.service.PresenceBuffer;
 import ch.uzh.ifi.hase.soprafs24.service.UserService;
+import ch.uzh.ifi.hase.soprafs24.service.UserStatistics;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jayway.jsonpath.JsonPath;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockHttpSession;
@@ -24,19 +28,27 @@ import org.springframework.web.context.WebApplicationContext;
 import org.springframework.web.server.ResponseStatusException;
 
 import javax.servlet.http.Cookie;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
 import java.util.Date;
+import java.util.zip.GZIPInputStream;
 
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestBuilders.formLogin;
 import static org.springframework.security.test.web.servlet.response.SecurityMockMvcResultMatchers.authenticated;
 import static org.springframework.security.test.web.servlet.response.SecurityMockMvcResultMatchers.unauthenticated;
 import static org.springframework.security.test.web.servlet.setup.SecurityMockMvcConfigurers.springSecurity;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -58,6 +70,12 @@ public class UserControllerStatusCodesTest {
     @Autowired
     private UserRepository userRepository;
 
+    @Autowired
+    private PresenceBuffer presenceBuffer;
+
+    @Autowired
+    private UserStatistics userStatistics;
+
     @Autowired
     private WebApplicationContext webApplicationContext;
 
@@ -165,6 +183,144 @@ public class UserControllerStatusCodesTest {
                 .andExpect(jsonPath("$[1].status", is(UserStatus.OFFLINE.toString()))); // the status of the second created user is still OFFLINE
     }
 
+    @Test
+    public void get_users_page() throws Exception {
+
+        // First we create three users
+        User[] createdUsers = new User[3];
+        for (int i = 0; i < createdUsers.length; i++) {
+            User user = new User();
+            user.setUsername("user" + i);
+            user.setPassword("123");
+            createdUsers[i] = userService.createUser(user);
+        }
+
+        // Then we perform the login process using the first created user credentials returning the MvcResult from that request
+        MvcResult res = mockMvc
+                .perform(formLogin()
+                        .user("user0")
+                        .password("123")
+                        .loginProcessingUrl("/perform_login")
+                )
+                .andExpect(status().is(302))
+                .andExpect(authenticated()).andReturn();
+
+        // We get the request authenticated session
+        MockHttpSession session = (MockHttpSession) res.getRequest().getSession(false);
+
+        // The first page holds the first two users and a cursor pointing after the second one
+        mockMvc.perform(get("/users").param("limit", "2").session(session))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.users", hasSize(2)))
+                .andExpect(jsonPath("$.users[0].username", is("user0")))
+                .andExpect(jsonPath("$.users[1].username", is("user1")))
+                .andExpect(jsonPath("$.nextCursor", is(createdUsers[1].getId().intValue())));
+
+        // The second page starts after the cursor and, since it isn't full, has no further cursor
+        mockMvc.perform(get("/users").param("after", createdUsers[1].getId().toString()).param("limit", "2").session(session))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.users", hasSize(1)))
+                .andExpect(jsonPath("$.users[0].username", is("user2")))
+                .andExpect(jsonPath("$.nextCursor").doesNotExist());
+
+        // A limit outside of the allowed range is rejected
+        mockMvc.perform(get("/users").param("limit", "0").session(session))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void bearer_token_authentication() throws Exception {
+
+        User user = new User();
+        user.setUsername("first");
+        user.setPassword("123");
+
+        // First we create the user and log in with it
+        User createdUser = userService.createUser(user);
+
+        MvcResult res = mockMvc
+                .perform(formLogin()
+                        .user("first")
+                        .password("123")
+                        .loginProcessingUrl("/perform_login")
+                )
+                .andExpect(status().is(302))
+                .andExpect(authenticated()).andReturn();
+
+        MockHttpSession session = (MockHttpSession) res.getRequest().getSession(false);
+
+        // Then we request a token from the logged-in session
+        assert session != null;
+        String token = JsonPath.read(mockMvc.perform(post("/token").session(session))
+                .andExpect(status().is(201))
+                .andExpect(jsonPath("$.expiresAt").exists())
+                .andReturn().getResponse().getContentAsString(), "$.token");
+
+        // The token alone authenticates the request, without creating a session
+        MvcResult tokenResult = mockMvc.perform(get("/current_user").header("Authorization", "Bearer " + token))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id", is(createdUser.getId().intValue())))
+                .andReturn();
+        assertNull(tokenResult.getRequest().getSession(false));
+
+        // A new token replaces the old one
+        String rotatedToken = JsonPath.read(mockMvc.perform(post("/token").header("Authorization", "Bearer " + token))
+                .andExpect(status().is(201))
+                .andReturn().getResponse().getContentAsString(), "$.token");
+
+        mockMvc.perform(get("/users/" + createdUser.getId()).header("Authorization", "Bearer " + token))
+                .andExpect(status().isUnauthorized());
+        mockMvc.perform(get("/users/" + createdUser.getId()).header("Authorization", "Bearer " + rotatedToken))
+                .andExpect(status().isOk());
+
+        // An unknown token is rejected as well
+        mockMvc.perform(get("/users").header("Authorization", "Bearer unknown"))
+                .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    public void user_events_stream() throws Exception {
+
+        User user = new User();
+        user.setUsername("first");
+        user.setPassword("123");
+
+        // First we create a user and log in with it
+        userService.createUser(user);
+
+        MvcResult res = mockMvc
+                .perform(formLogin()
+                        .user("first")
+                        .password("123")
+                        .loginProcessingUrl("/perform_login")
+                )
+                .andExpect(status().is(302))
+                .andExpect(authenticated()).andReturn();
+
+        MockHttpSession session = (MockHttpSession) res.getRequest().getSession(false);
+
+        // Then we subscribe to the events, the response stays open
+        assert session != null;
+        MvcResult events = mockMvc.perform(get("/users/events").session(session))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        // A new user is pushed to the subscriber
+        User user2 = new User();
+        user2.setUsername("second");
+        user2.setPassword("139");
+        userService.createUser(user2);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        String content = events.getResponse().getContentAsString();
+        while (!content.contains("event:created") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            content = events.getResponse().getContentAsString();
+        }
+        assertTrue(content.contains("event:created"));
+        assertTrue(content.contains("\"username\":\"second\""));
+    }
+
     @Test
     public void createUser_valid_201_status() throws Exception {
 
@@ -250,6 +406,60 @@ public class UserControllerStatusCodesTest {
                 .andExpect(jsonPath("$.status", is(UserStatus.ONLINE.toString())));
     }
 
+    @Test
+    public void getUser_not_modified_304_status() throws Exception {
+
+        User user = new User();
+        user.setUsername("first");
+        user.setPassword("123");
+
+        // First we create the user and log in with it
+        User createdUser = userService.createUser(user);
+
+        MvcResult res = mockMvc
+                .perform(formLogin()
+                        .user("first")
+                        .password("123")
+                        .loginProcessingUrl("/perform_login")
+                )
+                .andExpect(status().is(302))
+                .andExpect(authenticated()).andReturn();
+
+        MockHttpSession session = (MockHttpSession) res.getRequest().getSession(false);
+        // the ONLINE status of the login is written, so the versions don't change during the test
+        presenceBuffer.flush();
+
+        // The responses carry an ETag
+        assert session != null;
+        String userETag = mockMvc.perform(get("/users/" + createdUser.getId()).session(session))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
+        String usersETag = mockMvc.perform(get("/users").session(session))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
+
+        // As long as nothing changes, the ETag is answered with 304 "Not Modified" and no body
+        assert userETag != null && usersETag != null;
+        mockMvc.perform(get("/users/" + createdUser.getId()).session(session).header("If-None-Match", userETag))
+                .andExpect(status().isNotModified());
+        mockMvc.perform(get("/users").session(session).header("If-None-Match", usersETag))
+                .andExpect(status().isNotModified());
+
+        // After an update the user is returned again
+        UserPostDTO userPostDTO = new UserPostDTO();
+        userPostDTO.setUsername("changed");
+        mockMvc.perform(put("/users/" + createdUser.getId()).session(session)
+                        .content(asJsonString(userPostDTO))
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().is(204));
+
+        mockMvc.perform(get("/users/" + createdUser.getId()).session(session).header("If-None-Match", userETag))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.username", is("changed")));
+        mockMvc.perform(get("/users").session(session).header("If-None-Match", usersETag))
+                .andExpect(status().isOk());
+    }
+
     @Test
     public void getUser_not_exists_404_status() throws Exception {
 
@@ -427,6 +637,70 @@ public class UserControllerStatusCodesTest {
         assertEquals(error, "We can only update our own profile");;
     }
 
+    @Test
+    public void updateUser_if_match_stale_412_status() throws Exception {
+
+        User user = new User();
+        user.setUsername("first");
+        user.setPassword("123");
+
+        // First we create the user and log in with it
+        User createdUser = userService.createUser(user);
+
+        MvcResult res = mockMvc
+                .perform(formLogin()
+                        .user("first")
+                        .password("123")
+                        .loginProcessingUrl("/perform_login")
+                )
+                .andExpect(status().is(302))
+                .andExpect(authenticated()).andReturn();
+
+        MockHttpSession session = (MockHttpSession) res.getRequest().getSession(false);
+        // the ONLINE status of the login is written, so the version only changes with the updates
+        presenceBuffer.flush();
+
+        assert session != null;
+        String userETag = mockMvc.perform(get("/users/" + createdUser.getId()).session(session))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
+        assert userETag != null;
+
+        // An update in the version we have read succeeds and returns the ETag of the new version
+        UserPostDTO userPostDTO = new UserPostDTO();
+        userPostDTO.setUsername("changed");
+        String updatedETag = mockMvc.perform(put("/users/" + createdUser.getId()).session(session)
+                        .header("If-Match", userETag)
+                        .content(asJsonString(userPostDTO))
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().is(204))
+                .andReturn().getResponse().getHeader("ETag");
+        assertNotEquals(userETag, updatedETag);
+        mockMvc.perform(get("/users/" + createdUser.getId()).session(session).header("If-None-Match", updatedETag))
+                .andExpect(status().isNotModified());
+
+        // An update based on the old version would overwrite the first one, the response has a Status 412
+        userPostDTO.setUsername("stale");
+        String error = mockMvc.perform(put("/users/" + createdUser.getId()).session(session)
+                        .header("If-Match", userETag)
+                        .content(asJsonString(userPostDTO))
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().is(412))
+                .andReturn().getResponse().getErrorMessage();
+        assertEquals("The user has been changed since it was read", error);
+
+        // Weak ETags never match
+        mockMvc.perform(put("/users/" + createdUser.getId()).session(session)
+                        .header("If-Match", "W/" + updatedETag)
+                        .content(asJsonString(userPostDTO))
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().is(412));
+
+        mockMvc.perform(get("/users/" + createdUser.getId()).session(session))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.username", is("changed")));
+    }
+
     @Test
     public void logout_204_status() throws Exception {
 
@@ -470,6 +744,222 @@ public class UserControllerStatusCodesTest {
         }
     }
 
+    @Test
+    public void import_users_batch_per_item_results() throws Exception {
+
+        User user = new User();
+        user.setUsername("existing");
+        user.setPassword("123");
+
+        // First we create one user whose username is already taken for the import
+        userService.createUser(user);
+
+        // Then we perform the login process, the import is only open to logged-in users
+        MvcResult res = mockMvc
+                .perform(formLogin()
+                        .user("existing")
+                        .password("123")
+                        .loginProcessingUrl("/perform_login")
+                )
+                .andExpect(status().is(302))
+                .andExpect(authenticated()).andReturn();
+
+        MockHttpSession session = (MockHttpSession) res.getRequest().getSession(false);
+
+        // One user per line: a new one, a repetition within the batch, a taken username, an empty password and another new one
+        String body = "{\"username\":\"imported1\",\"password\":\"1\"}\n"
+                + "{\"username\":\"imported1\",\"password\":\"2\"}\n"
+                + "{\"username\":\"existing\",\"password\":\"3\"}\n"
+                + "{\"username\":\"imported2\",\"password\":\"\"}\n"
+                + "{\"username\":\"imported3\",\"password\":\"4\"}\n";
+
+        mockMvc.perform(post("/users/batch")
+                        .session(session)
+                        .contentType(MediaType.APPLICATION_NDJSON)
+                        .content(body))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.created", is(2)))
+                .andExpect(jsonPath("$.rejected", is(3)))
+                .andExpect(jsonPath("$.results", hasSize(5)))
+                .andExpect(jsonPath("$.results[0].status", is(201)))
+                .andExpect(jsonPath("$.results[1].status", is(409)))
+                .andExpect(jsonPath("$.results[2].status", is(409)))
+                .andExpect(jsonPath("$.results[3].status", is(409)))
+                .andExpect(jsonPath("$.results[4].status", is(201)));
+
+        // The created users can log in like users created through POST /users
+        mockMvc.perform(formLogin()
+                        .user("imported3")
+                        .password("4")
+                        .loginProcessingUrl("/perform_login"))
+                .andExpect(authenticated());
+
+        // A JSON array is accepted as well, without a session the import is rejected
+        mockMvc.perform(post("/users/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"username\":\"imported4\",\"password\":\"5\"}]"))
+                .andExpect(status().isUnauthorized());
+        mockMvc.perform(post("/users/batch")
+                        .session(session)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"username\":\"imported4\",\"password\":\"5\"}]"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.created", is(1)));
+    }
+
+    @Test
+    public void user_stats_from_counters() throws Exception {
+
+        // the counters start from the emptied table
+        presenceBuffer.flush();
+        userStatistics.reconcile();
+
+        for (String username : new String[]{"statsFirst", "statsSecond", "statsThird"}) {
+            User user = new User();
+            user.setUsername(username);
+            user.setPassword("123");
+            userService.createUser(user);
+        }
+
+        MvcResult res = mockMvc
+                .perform(formLogin()
+                        .user("statsFirst")
+                        .password("123")
+                        .loginProcessingUrl("/perform_login")
+                )
+                .andExpect(status().is(302))
+                .andExpect(authenticated()).andReturn();
+
+        MockHttpSession session = (MockHttpSession) res.getRequest().getSession(false);
+        // the status is counted once it has been written
+        presenceBuffer.flush();
+
+        String today = LocalDate.now().toString();
+        mockMvc.perform(get("/users/stats").session(session))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.total", is(3)))
+                .andExpect(jsonPath("$.usersByStatus.ONLINE", is(1)))
+                .andExpect(jsonPath("$.usersByStatus.OFFLINE", is(2)))
+                .andExpect(jsonPath("$.signupsPerDay['" + today + "']", is(3)));
+
+        // A reconciliation with the database leaves the counts as they are
+        userStatistics.reconcile();
+        assertEquals(0L, userStatistics.getStats().get("lastDrift").longValue());
+
+        mockMvc.perform(get("/users/stats"))
+                .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    public void search_users_by_prefix() throws Exception {
+
+        for (String username : new String[]{"searchBob", "searchAnna", "searchAlice", "otherUser"}) {
+            User user = new User();
+            user.setUsername(username);
+            user.setPassword("123");
+            userService.createUser(user);
+        }
+
+        MvcResult res = mockMvc
+                .perform(formLogin()
+                        .user("searchBob")
+                        .password("123")
+                        .loginProcessingUrl("/perform_login")
+                )
+                .andExpect(status().is(302))
+                .andExpect(authenticated()).andReturn();
+
+        MockHttpSession session = (MockHttpSession) res.getRequest().getSession(false);
+
+        // The matches are ordered by username and cut at the limit
+        mockMvc.perform(get("/users/search").param("prefix", "search").param("limit", "2").session(session))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(2)))
+                .andExpect(jsonPath("$[0].username", is("searchAlice")))
+                .andExpect(jsonPath("$[1].username", is("searchAnna")));
+
+        // A renamed user is found by the new name only
+        User searchBob = userService.getUser("searchBob");
+        User renamed = new User();
+        renamed.setUsername("searchBert");
+        userService.updateUser(searchBob.getId(), renamed);
+
+        mockMvc.perform(get("/users/search").param("prefix", "searchB").session(session))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].username", is("searchBert")))
+                .andExpect(jsonPath("$[0].id", is(searchBob.getId().intValue())));
+
+        // The limit is bounded and the search is only open to logged-in users
+        mockMvc.perform(get("/users/search").param("prefix", "search").param("limit", "0").session(session))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/users/search").param("prefix", "search"))
+                .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    public void export_users_ndjson_csv_and_gzip() throws Exception {
+
+        User user = new User();
+        user.setUsername("exporter");
+        user.setPassword("123");
+        userService.createUser(user);
+
+        User quotedUser = new User();
+        quotedUser.setUsername("quoted,\"user\"");
+        quotedUser.setPassword("123");
+        userService.createUser(quotedUser);
+
+        MvcResult res = mockMvc
+                .perform(formLogin()
+                        .user("exporter")
+                        .password("123")
+                        .loginProcessingUrl("/perform_login")
+                )
+                .andExpect(status().is(302))
+                .andExpect(authenticated()).andReturn();
+
+        MockHttpSession session = (MockHttpSession) res.getRequest().getSession(false);
+
+        // NDJSON is the default, one user per line in the order of their ids
+        String ndjson = mockMvc.perform(get("/users/export").session(session))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, "application/x-ndjson"))
+                .andReturn().getResponse().getContentAsString();
+        String[] lines = ndjson.split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("exporter", JsonPath.read(lines[0], "$.username"));
+        assertEquals("ONLINE", JsonPath.read(lines[0], "$.status"));
+        assertEquals("quoted,\"user\"", JsonPath.read(lines[1], "$.username"));
+
+        // CSV has a header line and quotes the username with the comma
+        String csv = mockMvc.perform(get("/users/export").param("format", "csv").session(session))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        String[] rows = csv.split("\r\n");
+        assertEquals(3, rows.length);
+        assertEquals("id,username,birthday,creationDate,status", rows[0]);
+        assertTrue(rows[1].startsWith(user.getId() + ",exporter,,"));
+        assertTrue(rows[1].endsWith(",ONLINE"));
+        assertTrue(rows[2].contains(",\"quoted,\"\"user\"\"\","));
+
+        // A client accepting gzip gets the same lines compressed
+        byte[] compressed = mockMvc.perform(get("/users/export").session(session)
+                        .header(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andReturn().getResponse().getContentAsByteArray();
+        try (GZIPInputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            assertEquals(ndjson, new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+        }
+
+        // Unknown formats and requests without a session are rejected
+        mockMvc.perform(get("/users/export").param("format", "xml").session(session))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/users/export"))
+                .andExpect(status().isUnauthorized());
+    }
+
     /**
      * Helper Method to convert userPostDTO into a JSON string such that the input
      * can be processed
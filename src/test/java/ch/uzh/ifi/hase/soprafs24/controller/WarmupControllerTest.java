@@ -0,0 +1,75 @@
+package ch.uzh.ifi.hase.soprafs24.controller;
+
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserPostDTO;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.security.test.web.servlet.setup.SecurityMockMvcConfigurers.springSecurity;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * WarmupControllerTest
+ * Tests that a warmup request runs the warm-up once, without changing the
+ * stored users, and that the instance is ready afterwards.
+ */
+@WebAppConfiguration
+@SpringBootTest
+public class WarmupControllerTest {
+
+    private MockMvc mockMvc;
+
+    @Qualifier("userRepository")
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @BeforeEach
+    public void setup() {
+        this.mockMvc = MockMvcBuilders.webAppContextSetup(webApplicationContext).apply(springSecurity()).build();
+        userRepository.deleteAll();
+    }
+
+    @Test
+    public void warmup_readOnlyAndReady() throws Exception {
+        UserPostDTO userPostDTO = new UserPostDTO();
+        userPostDTO.setUsername("warmupUsername");
+        userPostDTO.setPassword("123");
+        mockMvc.perform(post("/users")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(new ObjectMapper().writeValueAsString(userPostDTO)))
+                .andExpect(status().is(201));
+        Long version = userRepository.findByUsername("warmupUsername").getVersion();
+
+        mockMvc.perform(get("/_ah/warmup"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.done").value(1))
+                .andExpect(jsonPath("$.rounds").value(greaterThan(0)))
+                .andExpect(jsonPath("$.preparedConnections").value(greaterThan(0)));
+
+        // the synthetic requests only read
+        assertEquals(1, userRepository.count());
+        assertEquals(version, userRepository.findByUsername("warmupUsername").getVersion());
+
+        mockMvc.perform(get("/internal/ready"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.readiness").value("ACCEPTING_TRAFFIC"));
+    }
+
+}
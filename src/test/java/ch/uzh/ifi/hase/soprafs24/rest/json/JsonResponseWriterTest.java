@@ -0,0 +1,87 @@
+package ch.uzh.ifi.hase.soprafs24.rest.json;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.rest.dto.UserGetDTO;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * JsonResponseWriterTest
+ * Tests that the writer produces byte for byte the JSON of the default
+ * Jackson message converter, for usernames that need escaping as well.
+ */
+public class JsonResponseWriterTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = Jackson2ObjectMapperBuilder.json().build();
+
+    @Test
+    public void writeUser_sameAsJackson() throws IOException {
+        for (String username : Arrays.asList("firstname@lastname", "quote\"backslash\\", "tab\tnewline\n\u0001\u001f",
+                "Z\u00fcrich", "\u65e5\u672c\u8a9e", "emoji \ud83d\ude00", "")) {
+            UserGetDTO userGetDTO = userGetDTO(42L, username, UserStatus.ONLINE);
+            assertArrayEquals(OBJECT_MAPPER.writeValueAsBytes(userGetDTO), write(userGetDTO), username);
+        }
+    }
+
+    @Test
+    public void writeUser_nullFields_sameAsJackson() throws IOException {
+        UserGetDTO userGetDTO = new UserGetDTO();
+        assertArrayEquals(OBJECT_MAPPER.writeValueAsBytes(userGetDTO), write(userGetDTO));
+    }
+
+    @Test
+    public void writeUsers_largerThanBuffer_sameAsJackson() throws IOException {
+        UserGetDTO[] userGetDTOs = new UserGetDTO[1000];
+        for (int i = 0; i < userGetDTOs.length; i++) {
+            userGetDTOs[i] = userGetDTO((long) i, "user" + i, i % 2 == 0 ? UserStatus.ONLINE : UserStatus.OFFLINE);
+        }
+        List<UserGetDTO> users = Arrays.asList(userGetDTOs);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        JsonResponseWriter writer = new JsonResponseWriter(outputStream, 64);
+        writer.writeUsers(users);
+        writer.flushBuffer();
+
+        assertArrayEquals(OBJECT_MAPPER.writeValueAsBytes(users), outputStream.toByteArray());
+    }
+
+    @Test
+    public void writeNumber_edgeValues() throws IOException {
+        for (long value : new long[]{0, 9, 10, -1, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            JsonResponseWriter writer = new JsonResponseWriter(outputStream);
+            writer.writeNumber(value);
+            writer.flushBuffer();
+            assertEquals(Long.toString(value), outputStream.toString());
+        }
+    }
+
+    private static byte[] write(UserGetDTO userGetDTO) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        JsonResponseWriter writer = new JsonResponseWriter(outputStream);
+        writer.writeUser(userGetDTO);
+        writer.flushBuffer();
+        return outputStream.toByteArray();
+    }
+
+    private static UserGetDTO userGetDTO(Long id, String username, UserStatus status) {
+        UserGetDTO userGetDTO = new UserGetDTO();
+        userGetDTO.setId(id);
+        userGetDTO.setUsername(username);
+        userGetDTO.setBirthday(new Date(946684800000L));
+        userGetDTO.setCreationDate(new Date(1709613011658L));
+        userGetDTO.setStatus(status);
+        return userGetDTO;
+    }
+
+}
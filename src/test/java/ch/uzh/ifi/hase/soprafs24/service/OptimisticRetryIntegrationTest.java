@@ -0,0 +1,142 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for the OptimisticRetry.
+ *
+ * @see OptimisticRetry
+ */
+@WebAppConfiguration
+@SpringBootTest
+public class OptimisticRetryIntegrationTest {
+
+    private static final int WRITERS = 6;
+
+    private static final int WRITES_PER_WRITER = 30;
+
+    private static final int STATUS_CHANGES = 60;
+
+    @Qualifier("userRepository")
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private PresenceBuffer presenceBuffer;
+
+    @Autowired
+    private OptimisticRetry optimisticRetry;
+
+    @BeforeEach
+    public void setup() {
+        userRepository.deleteAll();
+    }
+
+    @Test
+    public void concurrentWrites_noLostUpdates() throws Exception {
+        User user = new User();
+        user.setUsername("testUsername");
+        user.setPassword("testPassword");
+        Long id = userService.createUser(user).getId();
+        presenceBuffer.flush();
+        long initialVersion = userService.getVersion(id);
+
+        AtomicLong successfulWrites = new AtomicLong();
+        AtomicLong exhaustedWrites = new AtomicLong();
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        CyclicBarrier start = new CyclicBarrier(WRITERS + 1);
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + 1);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            // every write changes the user, so each successful one increments its version exactly once
+            for (int writer = 0; writer < WRITERS; writer++) {
+                int writerIndex = writer;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < WRITES_PER_WRITER; i++) {
+                        long unique = (long) writerIndex * WRITES_PER_WRITER + i;
+                        try {
+                            switch (i % 3) {
+                                case 0:
+                                    User update = new User();
+                                    update.setUsername("testUsername");
+                                    update.setBirthday(new Date(unique * 86_400_000L));
+                                    optimisticRetry.run(() -> userService.updateUser(id, update));
+                                    break;
+                                case 1:
+                                    optimisticRetry.run(() -> userService.issueToken(id));
+                                    break;
+                                default:
+                                    optimisticRetry.run(() -> userService.setPasswordHash(id, "hash-" + unique));
+                                    break;
+                            }
+                            successfulWrites.incrementAndGet();
+                        }
+                        catch (OptimisticLockingFailureException e) {
+                            // all attempts conflicted, nothing has been written
+                            exhaustedWrites.incrementAndGet();
+                        }
+                        catch (Throwable e) {
+                            failures.add(e);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            // the status changes are written as atomic updates that increment the version as well
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < STATUS_CHANGES; i++) {
+                    userService.setStatus(id, i % 2 == 0 ? UserStatus.ONLINE : UserStatus.OFFLINE);
+                    presenceBuffer.flush();
+                }
+                return null;
+            }));
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        // nothing failed but conflicts, e.g. no lock timeouts
+        assertTrue(failures.isEmpty(), () -> "unexpected failures: " + failures);
+        assertEquals(WRITERS * WRITES_PER_WRITER, successfulWrites.get() + exhaustedWrites.get());
+        assertTrue(successfulWrites.get() > 0);
+
+        // no write has been overwritten by another one
+        assertEquals(initialVersion + successfulWrites.get() + STATUS_CHANGES, userService.getVersion(id));
+
+        Map<String, Number> stats = optimisticRetry.getStats();
+        assertTrue(stats.get("conflicts").longValue() >= stats.get("exhausted").longValue());
+        assertTrue(stats.get("exhausted").longValue() >= exhaustedWrites.get());
+    }
+
+}
@@ -0,0 +1,65 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PasswordHasherTest {
+
+    private PasswordHasher passwordHasher;
+
+    @BeforeEach
+    public void setup() {
+        // the lowest BCrypt cost keeps the test fast
+        passwordHasher = new PasswordHasher(4, 2, 8, 5000);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        passwordHasher.shutdown();
+    }
+
+    @Test
+    public void hash_matches_success() {
+        String hash = passwordHasher.hash("123");
+
+        assertNotEquals("123", hash);
+        assertTrue(passwordHasher.matches("123", hash));
+        assertFalse(passwordHasher.matches("124", hash));
+        assertFalse(passwordHasher.needsUpgrade(hash));
+    }
+
+    @Test
+    public void hash_samePassword_differentSalt() {
+        assertNotEquals(passwordHasher.hash("123"), passwordHasher.hash("123"));
+    }
+
+    @Test
+    public void matches_clearTextPassword_needsUpgrade() {
+        assertTrue(passwordHasher.matches("123", "123"));
+        assertFalse(passwordHasher.matches("124", "123"));
+        assertTrue(passwordHasher.needsUpgrade("123"));
+    }
+
+    @Test
+    public void matchesUnknownUser_verifiesAHash() {
+        assertFalse(passwordHasher.matchesUnknownUser("123"));
+        assertFalse(passwordHasher.matchesUnknownUserAsync("123").join());
+
+        // one BCrypt verification each, like a wrong password of an existing user
+        assertEquals(2L, passwordHasher.getStats().get("verify.count").longValue());
+    }
+
+    @Test
+    public void needsUpgrade_lowerCost_true() {
+        PasswordHasher strongerHasher = new PasswordHasher(5, 1, 8, 5000);
+        try {
+            assertTrue(strongerHasher.needsUpgrade(passwordHasher.hash("123")));
+        }
+        finally {
+            strongerHasher.shutdown();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for the PresenceBuffer.
+ *
+ * @see PresenceBuffer
+ */
+@WebAppConfiguration
+@SpringBootTest
+public class PresenceBufferIntegrationTest {
+
+    @Qualifier("userRepository")
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private PresenceBuffer presenceBuffer;
+
+    @Autowired
+    private UserService userService;
+
+    @BeforeEach
+    public void setup() {
+        userRepository.deleteAll();
+    }
+
+    @Test
+    public void setStatus_visibleImmediately_writtenOnFlush() {
+        User user = new User();
+        user.setUsername("testUsername");
+        user.setPassword("testPassword");
+        User createdUser = userService.createUser(user);
+
+        userService.setStatus(createdUser.getId(), UserStatus.ONLINE);
+
+        // the buffered status is returned before it has been written
+        assertEquals(UserStatus.ONLINE, userService.getStatus(userService.getUser(createdUser.getId())));
+
+        presenceBuffer.flush();
+
+        assertEquals(UserStatus.ONLINE, userRepository.findById(createdUser.getId()).orElseThrow().getStatus());
+        assertEquals(UserStatus.ONLINE, userService.getStatus(userService.getUser(createdUser.getId())));
+    }
+
+    @Test
+    public void setStatus_severalChanges_lastOneWins() {
+        User user = new User();
+        user.setUsername("testUsername");
+        user.setPassword("testPassword");
+        User createdUser = userService.createUser(user);
+
+        userService.setStatus(createdUser.getId(), UserStatus.ONLINE);
+        userService.setStatus(createdUser.getId(), UserStatus.OFFLINE);
+        userService.setStatus(createdUser.getId(), UserStatus.ONLINE);
+        presenceBuffer.flush();
+
+        assertEquals(UserStatus.ONLINE, userRepository.findById(createdUser.getId()).orElseThrow().getStatus());
+        assertEquals(0, presenceBuffer.getStats().get("pending").intValue());
+    }
+
+}
@@ -0,0 +1,76 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Date;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * UserEventStreamTest
+ * Tests that a reconnecting client gets every missed event the replay buffer
+ * still holds, even if there are more than fit into its queue.
+ */
+public class UserEventStreamTest {
+
+    @Mock
+    private UserCache userCache;
+
+    @Mock
+    private PresenceBuffer presenceBuffer;
+
+    private UserEventStream userEventStream;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+        User user = new User();
+        user.setId(1L);
+        user.setUsername("testUsername");
+        user.setCreationDate(new Date());
+        Mockito.when(userCache.findById(1L)).thenReturn(Optional.of(user));
+        Mockito.when(presenceBuffer.statusOf(Mockito.any())).thenReturn(UserStatus.ONLINE);
+        // a queue of 4 events, a replay buffer of 32
+        userEventStream = new UserEventStream(userCache, presenceBuffer, 60000, 4, 32, 10, 1);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        userEventStream.shutdown();
+    }
+
+    @Test
+    public void subscribe_gapLargerThanQueue_replayed() {
+        long lastEventId = userEventStream.lastEventId();
+        for (int i = 0; i < 20; i++) {
+            userEventStream.onUserChanged(new UserChangedEvent(UserChangedEvent.Type.UPDATED, 1L));
+        }
+
+        userEventStream.subscribe(lastEventId);
+
+        assertEquals(20L, userEventStream.getStats().get("replayed").longValue());
+        assertEquals(1, userEventStream.getStats().get("subscribers").intValue());
+    }
+
+    @Test
+    public void subscribe_gapLargerThanReplay_reset() {
+        long lastEventId = userEventStream.lastEventId();
+        for (int i = 0; i < 40; i++) {
+            userEventStream.onUserChanged(new UserChangedEvent(UserChangedEvent.Type.UPDATED, 1L));
+        }
+
+        userEventStream.subscribe(lastEventId);
+
+        assertEquals(0L, userEventStream.getStats().get("replayed").longValue());
+        assertEquals(1, userEventStream.getStats().get("subscribers").intValue());
+    }
+
+}
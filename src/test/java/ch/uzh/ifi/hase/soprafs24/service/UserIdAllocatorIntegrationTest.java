@@ -0,0 +1,85 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.entity.User;
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for the UserIdAllocator.
+ *
+ * @see UserIdAllocator
+ */
+@WebAppConfiguration
+@SpringBootTest
+public class UserIdAllocatorIntegrationTest {
+
+    @Qualifier("userRepository")
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private UserIdAllocator userIdAllocator;
+
+    @Autowired
+    private UserService userService;
+
+    @BeforeEach
+    public void setup() {
+        userRepository.deleteAll();
+    }
+
+    @Test
+    public void nextId_concurrentCalls_uniqueIds() throws Exception {
+        int threads = 8;
+        int idsPerThread = 500;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+
+        // many threads draw ids at the same time, crossing several block boundaries
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < idsPerThread; j++) {
+                    assertTrue(ids.add(userIdAllocator.nextId()));
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(threads * idsPerThread, ids.size());
+    }
+
+    @Test
+    public void createUser_ids_increase() {
+        User first = new User();
+        first.setUsername("first");
+        first.setPassword("123");
+        User createdFirst = userService.createUser(first);
+
+        User second = new User();
+        second.setUsername("second");
+        second.setPassword("123");
+        User createdSecond = userService.createUser(second);
+
+        assertNotNull(createdFirst.getId());
+        assertTrue(createdSecond.getId() > createdFirst.getId());
+    }
+}
@@ -31,6 +31,9 @@ public class UserServiceIntegrationTest {
     @Autowired
     private UserService userService;
 
+    @Autowired
+    private PresenceBuffer presenceBuffer;
+
     @BeforeEach
     public void setup() {
         userRepository.deleteAll();
@@ -157,4 +160,35 @@ public class UserServiceIntegrationTest {
         // check that an error is thrown
         assertThrows(ResponseStatusException.class, () -> userService.updateUser(createdUser2.getId(), testUser3));
     }
+
+    @Test
+    public void getUsersETag_changesWithEveryWrite() {
+        presenceBuffer.flush();
+        String initial = userService.getUsersETag();
+        assertEquals(initial, userService.getUsersETag());
+
+        User testUser = new User();
+        testUser.setUsername("testUsername");
+        testUser.setPassword("123");
+        User createdUser = userService.createUser(testUser);
+        String afterCreate = userService.getUsersETag();
+        assertNotEquals(initial, afterCreate);
+
+        User changedUser = new User();
+        changedUser.setUsername("testUsername");
+        changedUser.setBirthday(new Date());
+        userService.updateUser(createdUser.getId(), changedUser);
+        String afterUpdate = userService.getUsersETag();
+        assertNotEquals(afterCreate, afterUpdate);
+
+        // a buffered status change, then the flush that writes it
+        userService.setStatus(createdUser.getId(), UserStatus.ONLINE);
+        String pending = userService.getUsersETag();
+        assertNotEquals(afterUpdate, pending);
+        presenceBuffer.flush();
+        String afterFlush = userService.getUsersETag();
+        assertNotEquals(afterUpdate, afterFlush);
+        assertNotEquals(pending, afterFlush);
+        assertEquals(afterFlush, userService.getUsersETag());
+    }
 }
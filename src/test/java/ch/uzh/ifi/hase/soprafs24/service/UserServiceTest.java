@@ -5,13 +5,16 @@ import ch.uzh.ifi.hase.soprafs24.entity.User;
 import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.util.Date;
+import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -20,15 +23,40 @@ public class UserServiceTest {
     @Mock
     private UserRepository userRepository;
 
-    @InjectMocks
+    @Mock
+    private UserIdAllocator userIdAllocator;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+
     private UserService userService;
 
+    private TokenIndex tokenIndex;
+
     private User testUser;
 
     @BeforeEach
     public void setup() {
         MockitoAnnotations.openMocks(this);
 
+        // the cache reads through to the mocked repository and the username index is
+        // never built, so every uniqueness check goes to the repository as well
+        UserCache userCache = new UserCache(userRepository, 100, 60, 5000);
+        tokenIndex = new TokenIndex(userRepository, 3600, 100, 60);
+        UserTableVersion userTableVersion = new UserTableVersion(jdbcTemplate, transactionManager);
+        userService = new UserService(userRepository, userIdAllocator, userCache,
+                new UsernameIndex(userRepository, transactionManager, 100, 0.01),
+                new UsernameSearchIndex(userRepository, transactionManager),
+                new PasswordHasher(4, 1, 8, 5000), tokenIndex,
+                new PresenceBuffer(jdbcTemplate, userCache, userTableVersion, 100),
+                userTableVersion, eventPublisher, transactionManager);
+
         // given
         testUser = new User();
         testUser.setId(1L);
@@ -75,4 +103,18 @@ public class UserServiceTest {
         assertThrows(ResponseStatusException.class, () -> userService.createUser(testUser));
     }
 
+    @Test
+    public void issueToken_newToken_resolvedWithoutLookup() {
+        String oldToken = "old-token";
+        testUser.setToken(oldToken);
+        Mockito.when(userRepository.findById(1L)).thenReturn(Optional.of(testUser));
+
+        User user = userService.issueToken(1L);
+
+        // a bearer-only client can use the new token at once, even if the replica doesn't have it yet
+        assertEquals(Optional.of(1L), tokenIndex.resolve(user.getToken()));
+        assertTrue(tokenIndex.resolve(oldToken).isEmpty());
+        Mockito.verify(userRepository, Mockito.never()).findByToken(user.getToken());
+    }
+
 }
@@ -0,0 +1,73 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+/**
+ * UserTableVersionTest
+ * Tests that the counter row is only written once the write transaction has
+ * committed, never while it is open.
+ */
+public class UserTableVersionTest {
+
+    private static final String INCREMENT = "update TABLE_VERSION set version = version + 1 where name = ?";
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private UserTableVersion userTableVersion;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+        userTableVersion = new UserTableVersion(jdbcTemplate, transactionManager);
+    }
+
+    @Test
+    public void increment_inTransaction_afterCommit() {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            userTableVersion.increment();
+            Mockito.verify(jdbcTemplate, Mockito.never()).update(INCREMENT, "USER");
+
+            TransactionSynchronizationUtils.triggerAfterCommit();
+            Mockito.verify(jdbcTemplate).update(INCREMENT, "USER");
+        }
+        finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void increment_rolledBack_notCounted() {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            userTableVersion.increment();
+            TransactionSynchronizationUtils.invokeAfterCompletion(TransactionSynchronizationManager.getSynchronizations(),
+                    TransactionSynchronization.STATUS_ROLLED_BACK);
+        }
+        finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        Mockito.verify(jdbcTemplate, Mockito.never()).update(INCREMENT, "USER");
+    }
+
+    @Test
+    public void increment_withoutTransaction_atOnce() {
+        userTableVersion.increment();
+
+        Mockito.verify(jdbcTemplate).update(INCREMENT, "USER");
+    }
+
+}
@@ -0,0 +1,145 @@
+package ch.uzh.ifi.hase.soprafs24.service;
+
+import ch.uzh.ifi.hase.soprafs24.repository.UserRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UsernameSearchIndexTest {
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private UsernameSearchIndex index;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+        Mockito.when(userRepository.streamAllIdsAndUsernames()).thenReturn(Stream.of(
+                row(3L, "carol"), row(1L, "alice"), row(4L, "alina"), row(2L, "bob")));
+        index = new UsernameSearchIndex(userRepository, transactionManager);
+    }
+
+    @Test
+    public void search_afterBuild_sortedAndLimited() {
+        assertFalse(index.isReady());
+        index.build();
+        assertTrue(index.isReady());
+
+        assertEquals(List.of("alice", "alina"), usernames(index.search("al", 10)));
+        assertEquals(List.of("alice"), usernames(index.search("al", 1)));
+        assertEquals(List.of(1L), index.search("alice", 10).stream().map(UsernameSearchIndex.Match::getId).collect(Collectors.toList()));
+        assertEquals(List.of("alice", "alina", "bob", "carol"), usernames(index.search("", 10)));
+        assertTrue(index.search("dave", 10).isEmpty());
+    }
+
+    @Test
+    public void search_createdAndRenamed_mergedWithBuiltNames() {
+        // created while the table is read
+        index.add(5L, "alfred");
+        index.build();
+        index.add(6L, "albert");
+        index.rename(1L, "alice", "zoe");
+        assertEquals(List.of("albert", "alfred", "alina"), usernames(index.search("al", 10)));
+
+        // the old name is taken again by another user
+        index.rename(6L, "albert", "alice");
+        List<UsernameSearchIndex.Match> matches = index.search("ali", 10);
+        assertEquals(List.of("alice", "alina"), usernames(matches));
+        assertEquals(6L, matches.get(0).getId());
+        assertEquals(List.of("zoe"), usernames(index.search("z", 10)));
+    }
+
+    @Test
+    public void add_largeDelta_compacted() {
+        index.build();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            String username = String.format("user%04d", i);
+            index.add(1000L + i, username);
+            expected.add(username);
+        }
+
+        assertTrue(index.getStats().get("compactions").longValue() > 0);
+        assertEquals(expected.subList(0, 100), usernames(index.search("user", 100)));
+        assertEquals(List.of("user2999"), usernames(index.search("user2999", 10)));
+        assertEquals(3004L, index.getStats().get("names").longValue());
+    }
+
+    @Test
+    public void rename_inTransaction_appliedAfterCommit() {
+        index.build();
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            index.rename(1L, "alice", "zoe");
+            assertEquals(List.of("alice", "alina"), usernames(index.search("al", 10)));
+            TransactionSynchronizationUtils.triggerAfterCommit();
+        }
+        finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        assertEquals(List.of("alina"), usernames(index.search("al", 10)));
+        assertEquals(List.of("zoe"), usernames(index.search("z", 10)));
+
+        // rolled back
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            index.add(7L, "alan");
+            TransactionSynchronizationUtils.invokeAfterCompletion(TransactionSynchronizationManager.getSynchronizations(),
+                    TransactionSynchronization.STATUS_ROLLED_BACK);
+        }
+        finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        assertEquals(List.of("alina"), usernames(index.search("al", 10)));
+    }
+
+    @Test
+    public void build_again_namesOfOtherInstances() {
+        index.build();
+        // written by another instance: alice renamed to zoe, dave created
+        Mockito.when(userRepository.streamAllIdsAndUsernames()).thenReturn(Stream.of(
+                row(3L, "carol"), row(1L, "zoe"), row(4L, "alina"), row(2L, "bob"), row(5L, "dave")));
+        index.build();
+
+        assertEquals(List.of("alina"), usernames(index.search("al", 10)));
+        assertEquals(List.of("dave"), usernames(index.search("d", 10)));
+        assertEquals(List.of("zoe"), usernames(index.search("z", 10)));
+        assertEquals(2L, index.getStats().get("builds").longValue());
+    }
+
+    private static List<String> usernames(List<UsernameSearchIndex.Match> matches) {
+        return matches.stream().map(UsernameSearchIndex.Match::getUsername).collect(Collectors.toList());
+    }
+
+    private static UserRepository.IdAndUsername row(Long id, String username) {
+        return new UserRepository.IdAndUsername() {
+            @Override
+            public Long getId() {
+                return id;
+            }
+
+            @Override
+            public String getUsername() {
+                return username;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,91 @@
+package ch.uzh.ifi.hase.soprafs24.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * AdaptiveConcurrencyLimitTest
+ * Tests that the limit rejects at once when it is exhausted, grows while the
+ * latency stays at the baseline and shrinks once the requests queue.
+ */
+public class AdaptiveConcurrencyLimitTest {
+
+    /**
+     * Completes a window of requests with the given latency, all started with the limit in use
+     */
+    private static void window(AdaptiveConcurrencyLimit limit, long latencyMillis, boolean failed) {
+        for (int i = 0; i < 10; i++) {
+            int inFlight = limit.tryAcquire();
+            assertTrue(inFlight > 0);
+            limit.release(TimeUnit.MILLISECONDS.toNanos(latencyMillis), limit.getLimit(), failed);
+        }
+    }
+
+    @Test
+    public void tryAcquire_limitExhausted_rejected() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 1, 10, 2.0, 10);
+
+        assertEquals(1, limit.tryAcquire());
+        assertEquals(2, limit.tryAcquire());
+        assertEquals(-1, limit.tryAcquire());
+        assertEquals(2, limit.getInFlight());
+        assertEquals(1, limit.getRejected());
+
+        limit.release(1000, 1, false);
+        assertEquals(2, limit.tryAcquire());
+        assertEquals(3, limit.getAccepted());
+    }
+
+    @Test
+    public void release_latencyAtBaseline_limitGrows() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10, 2, 100, 2.0, 10);
+
+        for (int i = 0; i < 20; i++) {
+            window(limit, 1, false);
+        }
+
+        assertTrue(limit.getLimit() > 20, "limit " + limit.getLimit());
+        assertEquals(1000, limit.getBaselineLatencyMicros());
+    }
+
+    @Test
+    public void release_latencyAboveTolerance_limitShrinks() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(50, 2, 100, 2.0, 10);
+        window(limit, 1, false);
+
+        for (int i = 0; i < 50; i++) {
+            window(limit, 10, false);
+        }
+
+        // the lasting overload doesn't raise the baseline
+        assertTrue(limit.getLimit() < 10, "limit " + limit.getLimit());
+        assertEquals(1000, limit.getBaselineLatencyMicros());
+        assertEquals(10_000, limit.getLatencyMicros());
+    }
+
+    @Test
+    public void release_unsaturated_limitKept() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(50, 2, 100, 2.0, 10);
+
+        for (int i = 0; i < 100; i++) {
+            int inFlight = limit.tryAcquire();
+            limit.release(TimeUnit.MILLISECONDS.toNanos(i < 10 ? 1 : 10), inFlight, false);
+        }
+
+        assertEquals(50, limit.getLimit());
+    }
+
+    @Test
+    public void release_failed_limitBacksOff() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(50, 2, 100, 2.0, 10);
+
+        int inFlight = limit.tryAcquire();
+        limit.release(1000, inFlight, true);
+
+        assertEquals(45, limit.getLimit());
+    }
+
+}
@@ -0,0 +1,53 @@
+package ch.uzh.ifi.hase.soprafs24.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * BloomFilterTest
+ * Tests that the filter never forgets a name and stays close to the false
+ * positive probability it has been sized for.
+ */
+public class BloomFilterTest {
+
+    @Test
+    public void mightContain_insertedValues_true() {
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        for (int i = 0; i < 10_000; i++) {
+            filter.put("user" + i);
+        }
+
+        // no false negatives
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(filter.mightContain("user" + i));
+        }
+    }
+
+    @Test
+    public void mightContain_otherValues_falsePositiveRateWithinBounds() {
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        for (int i = 0; i < 10_000; i++) {
+            filter.put("user" + i);
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+
+        // sized for 1%, allow some statistical slack
+        assertTrue(falsePositives < 2_000, "false positives: " + falsePositives);
+        assertTrue(filter.expectedFalsePositiveProbability() < 0.02);
+    }
+
+    @Test
+    public void mightContain_emptyFilter_false() {
+        BloomFilter filter = new BloomFilter(100, 0.01);
+
+        assertFalse(filter.mightContain("username"));
+        assertEquals(0.0, filter.expectedFalsePositiveProbability());
+    }
+}